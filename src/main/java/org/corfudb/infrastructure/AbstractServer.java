@@ -6,6 +6,8 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 
+import java.util.List;
+
 /**
  * Created by mwei on 12/4/15.
  */
@@ -43,6 +45,44 @@ public abstract class AbstractServer {
         }
     }
 
+    /**
+     * Whether handling a message may block the calling thread, for example on disk I/O.
+     * The router handles messages which may block on a separate thread pool, and all
+     * other messages directly on the event loop which read them. By default, this is
+     * decided by the message type, through the blocking flag of its {@link ServerHandler}.
+     *
+     * @param msg An incoming message.
+     * @return True, if handling the message may block.
+     */
+    public boolean isBlocking(CorfuMsg msg) {
+        return getHandler() != null && getHandler().isBlocking(msg.getMsgType());
+    }
+
+    /**
+     * Whether the router should queue an incoming message for this server and
+     * deliver it once per channel read cycle, with the other queued messages
+     * of the channel, through handleMessageBatch. Other messages are delivered
+     * through handleMessage as they are read.
+     *
+     * @param msg An incoming message.
+     * @return True, if the message should be delivered in a batch.
+     */
+    public boolean isBatching(CorfuMsg msg) {
+        return false;
+    }
+
+    /**
+     * Handle a batch of incoming Netty messages, which were read from the same
+     * channel. By default, each message is handled in turn.
+     *
+     * @param msgs The incoming messages, in the order they were read.
+     * @param ctx  The channel handler context.
+     * @param r    The router that took in the messages.
+     */
+    public void handleMessageBatch(List<CorfuMsg> msgs, ChannelHandlerContext ctx, IServerRouter r) {
+        msgs.forEach(m -> handleMessage(m, ctx, r));
+    }
+
     /**
      * Reset the server.
      */
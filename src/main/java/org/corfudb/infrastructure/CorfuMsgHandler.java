@@ -8,6 +8,7 @@ import java.lang.invoke.*;
 import java.lang.reflect.Modifier;
 import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -27,9 +28,13 @@ public class CorfuMsgHandler {
     /** The handler map. */
     private Map<CorfuMsgType, Handler> handlerMap;
 
+    /** The types of messages whose handlers may block. */
+    private Set<CorfuMsgType> blockingTypes;
+
     /** Construct a new instance of CorfuMsgHandler. */
     public CorfuMsgHandler() {
         handlerMap = new ConcurrentHashMap<>();
+        blockingTypes = ConcurrentHashMap.newKeySet();
     }
 
     /** Add a handler to this message handler.
@@ -46,6 +51,28 @@ public class CorfuMsgHandler {
         return this;
     }
 
+    /** Add a handler which may block to this message handler.
+     *
+     * @param messageType       The type of CorfuMsg this handler will handle.
+     * @param handler           The handler itself.
+     * @param <T>               A CorfuMsg type.
+     * @return                  This handler, to support chaining.
+     */
+    public <T extends CorfuMsg> CorfuMsgHandler
+    addBlockingHandler(CorfuMsgType messageType, Handler<T> handler) {
+        blockingTypes.add(messageType);
+        return addHandler(messageType, handler);
+    }
+
+    /** Check whether the handler of a message type may block.
+     *
+     * @param messageType       The type of CorfuMsg.
+     * @return                  True, if the handler may block.
+     */
+    public boolean isBlocking(CorfuMsgType messageType) {
+        return blockingTypes.contains(messageType);
+    }
+
     /** Handle an incoming CorfuMsg.
      *
      * @param message   The message to handle.
@@ -82,6 +109,9 @@ public class CorfuMsgHandler {
                     if (handlerMap.containsKey(a.type())) {
                         throw new RuntimeException("Handler for " + a.type() + " already registered!");
                     }
+                    if (a.blocking()) {
+                        blockingTypes.add(a.type());
+                    }
                     // convert the method into a Java8 Lambda for maximum execution speed...
                     try {
                         if (Modifier.isStatic(x.getModifiers())) {
@@ -8,9 +8,10 @@ import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.logging.LogLevel;
@@ -20,7 +21,9 @@ import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidator;
 import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.NettyTransport;
 import org.corfudb.util.Version;
 import org.docopt.Docopt;
 import org.fusesource.jansi.AnsiConsole;
@@ -37,7 +40,8 @@ import static org.fusesource.jansi.Ansi.ansi;
 /**
  * This is the new Corfu server single-process executable.
  * <p>
- * The command line options are documented in the USAGE variable.
+ * The command line options are documented in the USAGE variable. Besides its port, the
+ * server accepts clients in the same JVM at local:&lt;port&gt;.
  * <p>
  * Created by mwei on 11/30/15.
  */
@@ -60,23 +64,71 @@ public class CorfuServer {
             "Corfu Server, the server for the Corfu Infrastructure.\n"
                     + "\n"
                     + "Usage:\n"
-                    + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>] <port>\n"
+                    + "\tcorfu_server (-l <path>|-m) [-fs] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>]\n"
+                    + "\t            [--max-dirty=<bytes>] [--max-dirty-age=<millis>]\n"
+                    + "\t            [--cache-admission=<policy>] [--cache-max-entry=<bytes>] [--batch-tokens]\n"
+                    + "\t            [--recover-scan=<threads>] [--conflict-table-size=<slots>]\n"
+                    + "\t            [--sequencer-partition=<index>] [--sequencer-partitions=<count>]\n"
+                    + "\t            [--token-block=<tokens>] [--tail-notify-delay=<millis>]\n"
+                    + "\t            [--conflict-window=<tokens>] [--transport=<type>]\n"
+                    + "\t            [--blocking-messages=<types>] <port>\n"
                     + "\n"
                     + "Options:\n"
                     + " -l <path>, --log-path=<path>            Set the path to the storage file for the log unit.\n"
                     + " -s, --single                            Deploy a single-node configuration.\n"
                     + "                                         The server will be bootstrapped with a simple one-unit layout.\n"
                     + " -f, --sync                              Flush all writes to disk before acknowledging.\n"
+                    + " --max-dirty=<bytes>                     Enable write-back mode: acknowledge writes before they are\n"
+                    + "                                         flushed to disk, but throttle writers once this many bytes\n"
+                    + "                                         are unflushed across all logs of the unit. 0 disables\n"
+                    + "                                         write-back mode [default: 0].\n"
+                    + " --max-dirty-age=<millis>                In write-back mode, the maximum time unflushed writes wait\n"
+                    + "                                         before being flushed to disk [default: 1000].\n"
                     + " -a <address>, --address=<address>       IP address to advertise to external clients [default: localhost].\n"
                     + " -m, --memory                            Run the unit in-memory (non-persistent).\n"
                     + "                                         Data will be lost when the server exits!\n"
                     + " -c <size>, --max-cache=<size>           The size of the in-memory cache to serve requests from -\n"
                     + "                                         If there is no log, then this is the max size of the log unit\n"
                     + "                                         evicted entries will be auto-trimmed. [default: 1000000000].\n"
+                    + " --cache-admission=<policy>              Which writes are admitted to the log unit cache: ALL admits\n"
+                    + "                                         every write, READ only admits entries when they are read.\n"
+                    + "                                         Ignored for in-memory or async (non --sync, no --max-dirty)\n"
+                    + "                                         log units, which always admit writes [default: ALL].\n"
+                    + " --cache-max-entry=<bytes>               Writes larger than this are not admitted to the log unit\n"
+                    + "                                         cache, 0 for no limit [default: 0].\n"
                     + " -t <token>, --initial-token=<token>     The first token the sequencer will issue, or -1 to recover\n"
                     + "                                         from the log. [default: -1].\n"
+                    + " --recover-scan=<threads>                When recovering, scan the local log written after the\n"
+                    + "                                         sequencer checkpoint with this many threads before\n"
+                    + "                                         accepting requests. 0 disables the scan [default: 0].\n"
                     + " -k <seconds>, --checkpoint=<seconds>    The rate the sequencer should checkpoint its state to disk,\n"
                     + "                                         in seconds [default: 60].\n"
+                    + " --conflict-table-size=<slots>           The number of slots the sequencer tracks transaction conflict\n"
+                    + "                                         keys in. Keys which share a slot conflict with each other\n"
+                    + "                                         [default: 262144].\n"
+                    + " --conflict-window=<tokens>              Streams the sequencer has not issued a token for in this many\n"
+                    + "                                         tokens are moved out of its active state, and transactions\n"
+                    + "                                         which read before that point abort. 0 keeps every stream\n"
+                    + "                                         active [default: 0].\n"
+                    + " --sequencer-partitions=<count>          The number of sequencers streams are partitioned across, which\n"
+                    + "                                         must match the sequencers of a partitioned layout [default: 1].\n"
+                    + " --sequencer-partition=<index>           The index of this sequencer in the sequencers of a partitioned\n"
+                    + "                                         layout [default: 0].\n"
+                    + " --token-block=<tokens>                  The number of consecutive addresses each sequencer partition\n"
+                    + "                                         owns at a time. Must be at least the largest number of tokens\n"
+                    + "                                         requested at once [default: 1000].\n"
+                    + " --tail-notify-delay=<millis>            How long the sequencer collects stream tail advances before\n"
+                    + "                                         pushing them to subscribed clients [default: 1].\n"
+                    + " --batch-tokens                          Resolve all token requests read from a client connection\n"
+                    + "                                         together and flush their responses at once.\n"
+                    + " --transport=<type>                      The socket transport to serve clients over: EPOLL, NIO, or AUTO\n"
+                    + "                                         to use EPOLL when it is available and NIO otherwise. EPOLL\n"
+                    + "                                         falls back to NIO where it is not available [default: AUTO].\n"
+                    + " --blocking-messages=<types>             A comma separated list of the message types to handle on a\n"
+                    + "                                         separate thread pool instead of the event loop which read\n"
+                    + "                                         them, or NONE. By default, only messages which may block,\n"
+                    + "                                         such as log unit reads which miss the cache and writes to\n"
+                    + "                                         disk, use the thread pool.\n"
                     + " -p <seconds>, --compact=<seconds>       The rate the log unit should compact entries (find the,\n"
                     + "                                         contiguous tail) in seconds [default: 60].\n"
                     + " -d <level>, --log-level=<level>         Set the logging level, valid levels are: \n"
@@ -84,6 +136,35 @@ public class CorfuServer {
                     + " -h, --help  Show this screen\n"
                     + " --version  Show version\n";
 
+    /**
+     * Serve clients in this JVM at local:&lt;name&gt;, over in-process channels. Messages are
+     * handed over as buffers, without a socket or length framing. The channels run on the
+     * event loops of any transport.
+     *
+     * @param name        The name of the local address.
+     * @param bossGroup   The event loops which accept channels.
+     * @param workerGroup The event loops which serve channels.
+     * @param router      The router of the server.
+     * @return A future which completes when the address is bound.
+     */
+    public static ChannelFuture bindLocal(String name, EventLoopGroup bossGroup, EventLoopGroup workerGroup,
+                                          NettyServerRouter router) {
+        return new ServerBootstrap()
+                .group(bossGroup, workerGroup)
+                .channel(LocalServerChannel.class)
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT)
+                .childHandler(new ChannelInitializer<LocalChannel>() {
+                    @Override
+                    public void initChannel(LocalChannel ch) throws Exception {
+                        ch.pipeline().addLast(new NettyFlushConsolidator());
+                        ch.pipeline().addLast(new NettyCorfuMessageDecoder());
+                        ch.pipeline().addLast(new NettyCorfuMessageEncoder());
+                        ch.pipeline().addLast(router);
+                    }
+                })
+                .bind(new LocalAddress(name));
+    }
+
     public static void printLogo() {
         System.out.println(ansi().fg(WHITE).a("▄████████  ▄██████▄     ▄████████    ▄████████ ███    █▄").reset());
         System.out.println(ansi().fg(WHITE).a("███    ███ ███    ███   ███    ███   ███    ███ ███    ███").reset());
@@ -160,9 +241,14 @@ public class CorfuServer {
         ServerContext serverContext = new ServerContext(opts, router);
 
         // Add each role to the router.
-        router.addServer(new SequencerServer(serverContext));
+        SequencerServer sequencerServer = new SequencerServer(serverContext);
+        LogUnitServer logUnitServer = new LogUnitServer(serverContext);
+        router.addServer(sequencerServer);
         router.addServer(new LayoutServer(serverContext));
-        router.addServer(new LogUnitServer(serverContext));
+        router.addServer(logUnitServer);
+
+        // Bring the sequencer up to date with the local log before accepting requests.
+        sequencerServer.recoverFromLog(logUnitServer.getLocalLog());
         router.baseServer.setOptionsMap(opts);
 
         // Create the event loops responsible for servicing inbound messages.
@@ -170,7 +256,10 @@ public class CorfuServer {
         EventLoopGroup workerGroup;
         EventExecutorGroup ee;
 
-        bossGroup = new NioEventLoopGroup(1, new ThreadFactory() {
+        NettyTransport transport = NettyTransport.select((String) opts.get("--transport"));
+        log.info("Serving clients over the {} transport", transport);
+
+        bossGroup = transport.newEventLoopGroup(1, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
 
             @Override
@@ -181,7 +270,7 @@ public class CorfuServer {
             }
         });
 
-        workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        workerGroup = transport.newEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
 
             @Override
@@ -205,10 +294,13 @@ public class CorfuServer {
         });
 
 
+        // Messages are handled on the event loops, except for those which may block.
+        router.setBlockingExecutors(ee);
+
         try {
             ServerBootstrap b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.getServerChannelClass())
                     .option(ChannelOption.SO_BACKLOG, 100)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
                     .childOption(ChannelOption.SO_REUSEADDR, true)
@@ -218,14 +310,17 @@ public class CorfuServer {
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new NettyFlushConsolidator());
                             ch.pipeline().addLast(new LengthFieldPrepender(4));
                             ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
-                            ch.pipeline().addLast(ee, router);
+                            ch.pipeline().addLast(new NettyCorfuMessageDecoder());
+                            ch.pipeline().addLast(new NettyCorfuMessageEncoder());
+                            ch.pipeline().addLast(router);
                         }
                     });
             ChannelFuture f = b.bind(port).sync();
+            // Clients in this JVM can skip the socket.
+            bindLocal(Integer.toString(port), bossGroup, workerGroup, router).sync();
             while (true) {
                 try {
                     f.channel().closeFuture().sync();
@@ -240,6 +335,7 @@ public class CorfuServer {
         } finally {
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            ee.shutdownGracefully();
         }
 
     }
@@ -0,0 +1,148 @@
+package org.corfudb.infrastructure;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * An immutable summary of the state of streams which were evicted from the
+ * active state of the sequencer.
+ * <p>
+ * Each stream takes four longs (most significant bits, least significant
+ * bits, last issued token and last local offset) in a single array which is
+ * sorted by stream ID, so a stream costs 32 bytes and no objects, and is
+ * found by binary search. The summary is rebuilt in bulk when streams are
+ * evicted.
+ */
+final class EvictedStreamSummary {
+
+    static final EvictedStreamSummary EMPTY = new EvictedStreamSummary(new long[0]);
+
+    private static final int STRIDE = 4;
+
+    /**
+     * A consumer of summarized streams.
+     */
+    @FunctionalInterface
+    interface StreamConsumer {
+        void accept(UUID id, long lastIssued, long lastLocalOffset);
+    }
+
+    /**
+     * A filter of summarized streams.
+     */
+    @FunctionalInterface
+    interface StreamFilter {
+        boolean test(long msb, long lsb);
+    }
+
+    private final long[] entries;
+
+    private EvictedStreamSummary(long[] entries) {
+        this.entries = entries;
+    }
+
+    int size() {
+        return entries.length / STRIDE;
+    }
+
+    /**
+     * Get the last issued token of a stream.
+     *
+     * @return The last issued token, or defaultValue if the stream is not in the summary.
+     */
+    long getLastIssued(UUID id, long defaultValue) {
+        int i = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        return i < 0 ? defaultValue : entries[i * STRIDE + 2];
+    }
+
+    /**
+     * Get the last local offset of a stream.
+     *
+     * @return The last local offset, or defaultValue if the stream is not in the summary.
+     */
+    long getLastLocalOffset(UUID id, long defaultValue) {
+        int i = find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        return i < 0 ? defaultValue : entries[i * STRIDE + 3];
+    }
+
+    void forEach(StreamConsumer consumer) {
+        for (int i = 0; i < entries.length; i += STRIDE) {
+            consumer.accept(new UUID(entries[i], entries[i + 1]), entries[i + 2], entries[i + 3]);
+        }
+    }
+
+    /**
+     * Build a new summary from this one and newly evicted streams.
+     *
+     * @param evicted The evicted streams, as (msb, lsb, last issued, last local offset)
+     *                quadruples. They replace the summarized state of the same streams.
+     * @param count   The number of evicted streams.
+     * @param drop    Streams of this summary to leave out of the new summary.
+     * @return The new summary.
+     */
+    EvictedStreamSummary merge(long[] evicted, int count, StreamFilter drop) {
+        long[] added = sort(Arrays.copyOf(evicted, count * STRIDE));
+        long[] merged = new long[entries.length + added.length];
+        int i = 0;
+        int j = 0;
+        int n = 0;
+        while (i < entries.length || j < added.length) {
+            int cmp = i == entries.length ? 1 : j == added.length ? -1
+                    : compare(entries[i], entries[i + 1], added[j], added[j + 1]);
+            if (cmp < 0) {
+                if (!drop.test(entries[i], entries[i + 1])) {
+                    System.arraycopy(entries, i, merged, n, STRIDE);
+                    n += STRIDE;
+                }
+                i += STRIDE;
+            } else {
+                System.arraycopy(added, j, merged, n, STRIDE);
+                n += STRIDE;
+                j += STRIDE;
+                if (cmp == 0) {
+                    i += STRIDE;
+                }
+            }
+        }
+        return new EvictedStreamSummary(n == merged.length ? merged : Arrays.copyOf(merged, n));
+    }
+
+    private int find(long msb, long lsb) {
+        int lo = 0;
+        int hi = size() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compare(entries[mid * STRIDE], entries[mid * STRIDE + 1], msb, lsb);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    private static int compare(long msb1, long lsb1, long msb2, long lsb2) {
+        int cmp = Long.compare(msb1, msb2);
+        return cmp != 0 ? cmp : Long.compare(lsb1, lsb2);
+    }
+
+    /**
+     * Sort quadruples by stream ID.
+     */
+    private static long[] sort(long[] quads) {
+        Integer[] order = new Integer[quads.length / STRIDE];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> compare(quads[a * STRIDE], quads[a * STRIDE + 1],
+                quads[b * STRIDE], quads[b * STRIDE + 1]));
+        long[] sorted = new long[quads.length];
+        for (int i = 0; i < order.length; i++) {
+            System.arraycopy(quads, order[i] * STRIDE, sorted, i * STRIDE, STRIDE);
+        }
+        return sorted;
+    }
+}
@@ -9,6 +9,21 @@ import org.corfudb.protocols.wireprotocol.CorfuMsg;
 public interface IServerRouter {
     void sendResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg);
 
+    /**
+     * Write a response without flushing it. The response is only guaranteed
+     * to be sent once flushResponses is called on the same context.
+     * Routers which do not buffer responses just send them.
+     */
+    default void writeResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg) {
+        sendResponse(ctx, inMsg, outMsg);
+    }
+
+    /**
+     * Flush any responses written with writeResponse.
+     */
+    default void flushResponses(ChannelHandlerContext ctx) {
+    }
+
     /**
      * Get the current epoch.
      */
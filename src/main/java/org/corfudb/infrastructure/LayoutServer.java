@@ -130,6 +130,15 @@ public class LayoutServer extends AbstractServer {
         }
     }
 
+    /**
+     * Layout changes are persisted to the data store before they are acknowledged,
+     * so they block unless the server runs in memory.
+     */
+    @Override
+    public boolean isBlocking(CorfuMsg msg) {
+        return msg.getMsgType() != CorfuMsgType.LAYOUT_REQUEST && !(Boolean) opts.get("--memory");
+    }
+
     @Override
     public void reset() {
     }
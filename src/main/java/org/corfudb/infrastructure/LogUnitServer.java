@@ -4,6 +4,7 @@ import com.github.benmanes.caffeine.cache.CacheWriter;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.Range;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
@@ -29,6 +30,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Created by mwei on 12/10/15.
@@ -36,11 +38,13 @@ import java.util.concurrent.atomic.AtomicBoolean;
  * A Log Unit Server, which is responsible for providing the persistent storage for the Corfu Distributed Shared Log.
  * <p>
  * All reads and writes go through a cache. If the sync flag (--sync) is set, the cache is configured in write-through
- * mode, otherwise the cache is configured in write-back mode. For persistence, every 10,000 log entries are written
- * to individual files (logs), which are represented as FileHandles. Each FileHandle contains a pointer to the tail
- * of the file, a memory-mapped file channel, and a set of addresses known to be in the file. To write an entry, the
- * pointer to the tail is first extended to the length of the entry, and the entry is added to the set of known
- * addresses. A header is written, which consists of the ASCII characters LE, followed by a set of flags,
+ * mode, otherwise the cache is configured in write-back mode. If a dirty limit (--max-dirty) is set, writes are
+ * acknowledged before they are forced to disk, but the amount of unflushed data of all the logs of the server is
+ * bounded by --max-dirty bytes and --max-dirty-age milliseconds (see {@link WriteBackFlusher}). For persistence,
+ * every 10,000 log entries are written to individual files (logs), which are represented as FileHandles. Each
+ * FileHandle contains a pointer to the tail of the file, a memory-mapped file channel, and a set of addresses known
+ * to be in the file. To write an entry, the pointer to the tail is first extended to the length of the entry, and
+ * the entry is added to the set of known addresses. A header is written, which consists of the ASCII characters LE, followed by a set of flags,
  * the log unit address, the size of the entry, then the metadata size, metadata and finally the entry itself.
  * When the entry is complete, a written flag is set in the flags field.
  */
@@ -70,7 +74,7 @@ public class LogUnitServer extends AbstractServer {
     /**
      * Service an incoming write request.
      */
-    @ServerHandler(type=CorfuMsgType.WRITE)
+    @ServerHandler(type=CorfuMsgType.WRITE, blocking=true)
     public void write(CorfuPayloadMsg<WriteRequest> msg, ChannelHandlerContext ctx, IServerRouter r) {
         log.debug("log write: global: {}, streams: {}, backpointers: {}", msg.getPayload().getGlobalAddress(),
                 msg.getPayload().getStreamAddresses(), msg.getPayload().getData().getBackpointerMap());
@@ -78,16 +82,27 @@ public class LogUnitServer extends AbstractServer {
         msg.getPayload().clearCommit();
         try {
             if (msg.getPayload().getWriteMode() != WriteMode.REPLEX_STREAM) {
-                dataCache.put(new LogAddress(msg.getPayload().getGlobalAddress(), null), msg.getPayload().getData());
+                writeEntry(new LogAddress(msg.getPayload().getGlobalAddress(), null), msg.getPayload().getData());
                 r.sendResponse(ctx, msg, CorfuMsgType.WRITE_OK.msg());
                 return;
             } else {
                 // In replex stream mode, we allocate a local token first, and use it as the
                 // stream address.
                 //Long token = getLog(msg.getPayload().getStreamID()).getToken(1);
-                for (UUID streamID : msg.getPayload().getStreamAddresses().keySet()) {
-                    dataCache.put(new LogAddress(msg.getPayload().getStreamAddresses().get(streamID), streamID),
-                            msg.getPayload().getData());
+                LogData entry = msg.getPayload().getData();
+                try {
+                    for (UUID streamID : msg.getPayload().getStreamAddresses().keySet()) {
+                        // Every stream write takes its own reference to the data.
+                        if (entry.getData() != null) {
+                            entry.getData().retain();
+                        }
+                        writeEntry(new LogAddress(msg.getPayload().getStreamAddresses().get(streamID), streamID),
+                                entry);
+                    }
+                } finally {
+                    if (entry.getData() != null) {
+                        entry.getData().release();
+                    }
                 }
                 r.sendResponse(ctx, msg, CorfuMsgType.WRITE_OK.msg());
             }
@@ -99,10 +114,67 @@ public class LogUnitServer extends AbstractServer {
         }
     }
 
+    /**
+     * Write an entry, either through the data cache or, if the entry is not admitted
+     * to the cache, directly to the backing log. The write takes one reference to the
+     * data of the entry, which the cache keeps, or which is released once the backing
+     * log has copied the entry or the write was rejected.
+     *
+     * @param address The address to write to.
+     * @param entry   The entry to write.
+     */
+    private void writeEntry(LogAddress address, LogData entry) {
+        boolean cached = false;
+        try {
+            if (admitWrite(address, entry)) {
+                dataCache.put(address, entry);
+                cached = true;
+            } else {
+                // Computing the mapping excludes a concurrent hole fill of the address.
+                dataCache.asMap().compute(address, (a, present) -> {
+                    if (present != null) {
+                        throw new RuntimeException("overwrite");
+                    }
+                    getLog(a.getStream()).write(a.getAddress(), entry);
+                    return null;
+                });
+                cacheWriteArounds.increment();
+            }
+        } finally {
+            // Unless the cache keeps the entry, the buffer is no longer needed.
+            if (!cached && entry.getData() != null) {
+                entry.getData().release();
+            }
+        }
+    }
+
+    /**
+     * Decide whether a write should be admitted to the data cache.
+     * Writes are only kept out of the cache if the backing log can serve them back
+     * immediately, otherwise a read following the write could miss it.
+     *
+     * @param address The address being written.
+     * @param entry   The entry being written.
+     * @return True, if the write should be inserted into the cache.
+     */
+    private boolean admitWrite(LogAddress address, LogData entry) {
+        if (cacheAdmission == CacheAdmissionPolicy.ALL && maxCacheEntrySize <= 0) {
+            return true;
+        }
+        if ((Boolean) opts.get("--memory") || !getLog(address.getStream()).isReadYourWrites()) {
+            return true;
+        }
+        if (cacheAdmission == CacheAdmissionPolicy.READ) {
+            return false;
+        }
+        return maxCacheEntrySize <= 0 || entry.getData() == null
+                || entry.getData().readableBytes() <= maxCacheEntrySize;
+    }
+
     /**
      * Service an incoming commit request.
      */
-    @ServerHandler(type=CorfuMsgType.COMMIT)
+    @ServerHandler(type=CorfuMsgType.COMMIT, blocking=true)
     public void commit(CorfuPayloadMsg<CommitRequest> msg, ChannelHandlerContext ctx, IServerRouter r) {
         Map<UUID, Long> streamAddresses = msg.getPayload().getStreams();
         if (streamAddresses == null) {
@@ -131,12 +203,12 @@ public class LogUnitServer extends AbstractServer {
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
-    @ServerHandler(type=CorfuMsgType.STREAM_TOKEN)
+    @ServerHandler(type=CorfuMsgType.STREAM_TOKEN, blocking=true)
     private void stream_token(CorfuPayloadMsg<UUID> msg, ChannelHandlerContext ctx, IServerRouter r) {
         r.sendResponse(ctx, msg, CorfuMsgType.STREAM_TOKEN_RESPONSE.payloadMsg(getLog(msg.getPayload()).getToken(0)));
     }
 
-    @ServerHandler(type=CorfuMsgType.READ_REQUEST)
+    @ServerHandler(type=CorfuMsgType.READ_REQUEST, blocking=true)
     private void read(CorfuPayloadMsg<ReadRequest> msg, ChannelHandlerContext ctx, IServerRouter r) {
         log.debug("log read: {} {}", msg.getPayload().getStreamID(), msg.getPayload().getRange());
         ReadResponse rr = new ReadResponse();
@@ -154,6 +226,28 @@ public class LogUnitServer extends AbstractServer {
         r.sendResponse(ctx, msg, CorfuMsgType.READ_RESPONSE.payloadMsg(rr));
     }
 
+    /**
+     * In-memory log units never block. Otherwise, reads only block if they miss the
+     * data cache, so reads served from the cache are handled on the event loop.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean isBlocking(CorfuMsg msg) {
+        if ((Boolean) opts.get("--memory")) {
+            return false;
+        }
+        if (msg.getMsgType() == CorfuMsgType.READ_REQUEST) {
+            ReadRequest request = ((CorfuPayloadMsg<ReadRequest>) msg).getPayload();
+            for (long l = request.getRange().lowerEndpoint(); l <= request.getRange().upperEndpoint(); l++) {
+                if (dataCache.getIfPresent(new LogAddress(l, request.getStreamID())) == null) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return super.isBlocking(msg);
+    }
+
     @ServerHandler(type=CorfuMsgType.GC_INTERVAL)
     private void gc_interval(CorfuPayloadMsg<Long> msg, ChannelHandlerContext ctx, IServerRouter r) {
         gcRetry.setRetryInterval(msg.getPayload());
@@ -166,9 +260,20 @@ public class LogUnitServer extends AbstractServer {
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
-    @ServerHandler(type=CorfuMsgType.FILL_HOLE)
+    @ServerHandler(type=CorfuMsgType.FILL_HOLE, blocking=true)
     private void fill_hole(CorfuPayloadMsg<TrimRequest> msg, ChannelHandlerContext ctx, IServerRouter r) {
-        dataCache.get(new LogAddress(msg.getPayload().getPrefix(), msg.getPayload().getStream()), x -> LogData.HOLE);
+        try {
+            // The address may have been written around the cache, in which case there is no hole to fill.
+            dataCache.get(new LogAddress(msg.getPayload().getPrefix(), msg.getPayload().getStream()),
+                    address -> {
+                        LogData entry = handleRetrieval(address);
+                        return entry == null ? LogData.HOLE : entry;
+                    });
+        } catch (RuntimeException re) {
+            log.error("Hole fill at {} failed", msg.getPayload().getPrefix(), re);
+            r.sendResponse(ctx, msg, CorfuMsgType.ERROR_SERVER_EXCEPTION.msg());
+            return;
+        }
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
@@ -195,6 +300,41 @@ public class LogUnitServer extends AbstractServer {
     LoadingCache<LogAddress, LogData> dataCache;
     long maxCacheSize;
 
+    /**
+     * Policies which decide whether a write is admitted to the data cache.
+     * Reads always admit the entry they load.
+     */
+    public enum CacheAdmissionPolicy {
+        /** Admit every write, unless it exceeds the maximum entry size (--cache-max-entry). */
+        ALL,
+        /** Never admit writes (write-around), entries are admitted the first time they are read. */
+        READ
+    }
+
+    /**
+     * The admission policy for writes (--cache-admission).
+     */
+    @Getter
+    CacheAdmissionPolicy cacheAdmission;
+
+    /**
+     * Writes with a payload larger than this many bytes are not admitted to the cache,
+     * or 0 if there is no limit (--cache-max-entry).
+     */
+    @Getter
+    long maxCacheEntrySize;
+
+    /**
+     * The number of writes which bypassed the cache.
+     */
+    final LongAdder cacheWriteArounds = new LongAdder();
+
+    /**
+     * The dirty data budget and flusher shared by all the logs of this server, or null
+     * if write-back mode is disabled.
+     */
+    private final WriteBackFlusher writeBack;
+
     private final AbstractLocalLog localLog;
 
     private final ConcurrentHashMap<UUID, AbstractLocalLog> streamLogs = new ConcurrentHashMap<>();
@@ -208,17 +348,39 @@ public class LogUnitServer extends AbstractServer {
                 }
                 else {
                     String logdir = opts.get("--log-path") + File.separator + "log" + File.separator + stream;
-                    return new RollingLog(0, Long.MAX_VALUE, logdir, (Boolean) opts.get("--sync"));
+                    // Stream logs are kept in a directory of their own, which may not exist yet.
+                    new File(logdir).getParentFile().mkdirs();
+                    return getRollingLog(logdir);
                 }
             });
         }
     }
 
+    /**
+     * Open a rolling log, using the --sync option of this server. In write-back mode, the log
+     * shares the dirty data budget of the server.
+     *
+     * @param logdir The directory of the log.
+     * @return A rolling log for the directory.
+     */
+    private RollingLog getRollingLog(String logdir) {
+        return new RollingLog(0, Long.MAX_VALUE, logdir, (Boolean) opts.get("--sync"), writeBack);
+    }
+
     public LogUnitServer(ServerContext serverContext) {
         this.opts = serverContext.getServerConfig();
 
         maxCacheSize = Utils.parseLong(opts.get("--max-cache"));
+        cacheAdmission = CacheAdmissionPolicy.valueOf(
+                Utils.getOption(opts, "--cache-admission", String.class, "ALL").toUpperCase());
+        maxCacheEntrySize = Utils.getOption(opts, "--cache-max-entry", Long.class, 0L);
         String logdir = opts.get("--log-path") + File.separator + "log";
+        long maxDirty = Utils.getOption(opts, "--max-dirty", Long.class, 0L);
+        if (maxDirty > 0 && !(Boolean) opts.get("--memory") && !(Boolean) opts.get("--sync")) {
+            writeBack = new WriteBackFlusher(maxDirty, Utils.getOption(opts, "--max-dirty-age", Long.class, 1000L));
+        } else {
+            writeBack = null;
+        }
         if ((Boolean) opts.get("--memory")) {
             log.warn("Log unit opened in-memory mode (Maximum size={}). " +
                     "This should be run for testing purposes only. " +
@@ -227,7 +389,7 @@ public class LogUnitServer extends AbstractServer {
             localLog = new InMemoryLog(0, Long.MAX_VALUE);
             reset();
         } else {
-            localLog = new RollingLog(0, Long.MAX_VALUE, logdir, (Boolean) opts.get("--sync"));
+            localLog = getRollingLog(logdir);
         }
 
         reset();
@@ -247,13 +409,13 @@ public class LogUnitServer extends AbstractServer {
 
         if (dataCache != null) {
             /** Free all references */
-            dataCache.asMap().values().parallelStream()
-                    .map(m -> m.getData().release());
+            dataCache.invalidateAll();
         }
 
         dataCache = Caffeine.<LogAddress,LogData>newBuilder()
                 .<LogAddress,LogData>weigher((k, v) -> v.getData() == null ? 1 : v.getData().readableBytes())
                 .maximumWeight(maxCacheSize)
+                .recordStats()
                 .removalListener(this::handleEviction)
                 .writer(new CacheWriter<LogAddress, LogData>() {
                     @Override
@@ -304,6 +466,16 @@ public class LogUnitServer extends AbstractServer {
         return entry;
     }
 
+    /**
+     * Get the local log of the global log, which bypasses the cache.
+     * Used by colocated servers to recover before any requests are accepted.
+     *
+     * @return The local log.
+     */
+    public AbstractLocalLog getLocalLog() {
+        return localLog;
+    }
+
     public synchronized void handleEviction(LogAddress address, LogData entry, RemovalCause cause) {
         log.trace("Eviction[{}]: {}", address, cause);
         if (entry.getData() != null) {
@@ -360,9 +532,20 @@ public class LogUnitServer extends AbstractServer {
         }
 
         log.info("Garbage collection pass complete. Freed {} entries", freedEntries);
+        logCacheStats();
         return true;
     }
 
+    /**
+     * Log the hit ratio and admission statistics of the data cache, for tuning the admission policy.
+     */
+    public void logCacheStats() {
+        CacheStats stats = dataCache.stats();
+        log.info("Cache stats: hit ratio={}, hits={}, misses={}, evictions={}, admission={}, write-arounds={}",
+                String.format("%.3f", stats.hitRate()), stats.hitCount(), stats.missCount(),
+                stats.evictionCount(), cacheAdmission, cacheWriteArounds.sum());
+    }
+
     public void trimEntry(long address, Set<java.util.UUID> streams, LogData entry) {
         // Add this entry to the trimmed range map.
         //trimRange.add(Range.closed(address, address));
@@ -382,6 +565,17 @@ public class LogUnitServer extends AbstractServer {
     public void shutdown() {
         scheduler.shutdownNow();
         dataCache.invalidateAll(); //should evict all entries
+        // force any unflushed writes to disk
+        localLog.close();
+        streamLogs.values().forEach(AbstractLocalLog::close);
+        if (writeBack != null) {
+            writeBack.shutdown();
+        }
+    }
+
+    @VisibleForTesting
+    WriteBackFlusher getWriteBack() {
+        return writeBack;
     }
 
     @VisibleForTesting
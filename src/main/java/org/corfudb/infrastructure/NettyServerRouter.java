@@ -3,6 +3,10 @@ package org.corfudb.infrastructure;
 import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -10,8 +14,13 @@ import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuMsgType;
 import org.corfudb.protocols.wireprotocol.CorfuPayloadMsg;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 
@@ -28,6 +37,17 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
     public static final String PREFIX_EPOCH = "SERVER_EPOCH";
     public static final String KEY_EPOCH = "CURRENT";
 
+    /**
+     * Messages for batching servers, queued on a channel until its read cycle completes.
+     */
+    static final AttributeKey<Map<AbstractServer, List<CorfuMsg>>> PENDING_BATCHES =
+            AttributeKey.valueOf("pendingBatches");
+
+    /**
+     * The executor a channel runs its blocking handlers on.
+     */
+    static final AttributeKey<EventExecutor> BLOCKING_EXECUTOR = AttributeKey.valueOf("blockingExecutor");
+
     /**
      * This map stores the mapping from message type to netty server handler.
      */
@@ -42,12 +62,46 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
     @Setter
     long serverEpoch;
 
+    /**
+     * The executors messages which may block are handled on, or null to handle
+     * every message on the event loop which read it.
+     */
+    @Getter
+    @Setter
+    EventExecutorGroup blockingExecutors;
+
+    /**
+     * The message types which are handled on the blocking executors, or null to
+     * let each server decide which of its messages may block.
+     */
+    final Set<CorfuMsgType> blockingTypes;
+
     public NettyServerRouter(Map<String, Object> opts) {
         handlerMap = new ConcurrentHashMap<>();
+        blockingTypes = parseBlockingTypes((String) opts.get("--blocking-messages"));
         baseServer = new BaseServer();
         addServer(baseServer);
     }
 
+    /**
+     * Parse a comma separated list of message types, or NONE.
+     *
+     * @param types The list of message types, or null.
+     * @return The set of message types, or null if no list was given.
+     */
+    static Set<CorfuMsgType> parseBlockingTypes(String types) {
+        if (types == null) {
+            return null;
+        }
+        Set<CorfuMsgType> set = EnumSet.noneOf(CorfuMsgType.class);
+        for (String type : types.split(",")) {
+            if (!type.trim().isEmpty() && !type.trim().equalsIgnoreCase("NONE")) {
+                set.add(CorfuMsgType.valueOf(type.trim().toUpperCase()));
+            }
+        }
+        return set;
+    }
+
     /**
      * Add a new netty server handler to the router.
      *
@@ -78,6 +132,26 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
         log.trace("Sent response: {}", outMsg);
     }
 
+    /**
+     * Write a netty message through this router without flushing the channel.
+     *
+     * @param ctx    Channel handler context to use.
+     * @param inMsg  Incoming message to respond to.
+     * @param outMsg Outgoing message.
+     */
+    @Override
+    public void writeResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg) {
+        outMsg.copyBaseFields(inMsg);
+        outMsg.setEpoch(getServerEpoch());
+        ctx.write(outMsg);
+        log.trace("Wrote response: {}", outMsg);
+    }
+
+    @Override
+    public void flushResponses(ChannelHandlerContext ctx) {
+        ctx.flush();
+    }
+
     /**
      * Validate the epoch of a CorfuMsg, and send a WRONG_EPOCH response if
      * the server is in the wrong epoch. Ignored if the message type is reset (which
@@ -119,7 +193,13 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
                 if (validateEpoch(m, ctx)) {
                     // Route the message to the handler.
                     log.trace("Message routed to {}: {}", handler.getClass().getSimpleName(), msg);
-                    handler.handleMessage(m, ctx, this);
+                    if (isBlocking(handler, m)) {
+                        getBlockingExecutor(ctx).execute(() -> handleBlocking(handler, m, ctx));
+                    } else if (handler.isBatching(m)) {
+                        getPendingBatches(ctx).computeIfAbsent(handler, k -> new ArrayList<>()).add(m);
+                    } else {
+                        handler.handleMessage(m, ctx, this);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -127,6 +207,78 @@ public class NettyServerRouter extends ChannelInboundHandlerAdapter
         }
     }
 
+    /**
+     * Check whether a message should be handled on the blocking executors.
+     *
+     * @param handler The server the message is routed to.
+     * @param m       The incoming message.
+     * @return True, if the message should be handled on the blocking executors.
+     */
+    private boolean isBlocking(AbstractServer handler, CorfuMsg m) {
+        if (blockingExecutors == null) {
+            return false;
+        }
+        return blockingTypes != null ? blockingTypes.contains(m.getMsgType()) : handler.isBlocking(m);
+    }
+
+    /**
+     * Get the blocking executor of a channel. Each channel sticks to one executor,
+     * so its blocking messages are handled in the order they were read.
+     *
+     * @param ctx Channel handler context
+     * @return The blocking executor of the channel.
+     */
+    private EventExecutor getBlockingExecutor(ChannelHandlerContext ctx) {
+        Attribute<EventExecutor> attr = ctx.channel().attr(BLOCKING_EXECUTOR);
+        EventExecutor executor = attr.get();
+        if (executor == null) {
+            executor = blockingExecutors.next();
+            attr.set(executor);
+        }
+        return executor;
+    }
+
+    private void handleBlocking(AbstractServer handler, CorfuMsg m, ChannelHandlerContext ctx) {
+        try {
+            handler.handleMessage(m, ctx, this);
+        } catch (Exception e) {
+            log.error("Exception during blocking handler!", e);
+        }
+    }
+
+    /**
+     * Deliver the messages queued for batching servers during this read cycle.
+     * All messages for a channel are read and completed on its event loop,
+     * so the queue is never accessed concurrently.
+     *
+     * @param ctx Channel handler context
+     */
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) {
+        Map<AbstractServer, List<CorfuMsg>> batches = ctx.channel().attr(PENDING_BATCHES).get();
+        if (batches != null && !batches.isEmpty()) {
+            batches.forEach((server, msgs) -> {
+                try {
+                    server.handleMessageBatch(msgs, ctx, this);
+                } catch (Exception e) {
+                    log.error("Exception during batch of {} messages!", msgs.size(), e);
+                }
+            });
+            batches.clear();
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    private Map<AbstractServer, List<CorfuMsg>> getPendingBatches(ChannelHandlerContext ctx) {
+        Attribute<Map<AbstractServer, List<CorfuMsg>>> attr = ctx.channel().attr(PENDING_BATCHES);
+        Map<AbstractServer, List<CorfuMsg>> batches = attr.get();
+        if (batches == null) {
+            batches = new LinkedHashMap<>();
+            attr.set(batches);
+        }
+        return batches;
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("Error in handling inbound message, {}", cause);
@@ -1,36 +1,67 @@
 package org.corfudb.infrastructure;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.Striped;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.corfudb.infrastructure.log.AbstractLocalLog;
 import org.corfudb.protocols.wireprotocol.*;
+import org.corfudb.util.ConcurrentUuidLongMap;
 import org.corfudb.util.Utils;
 import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
-import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Consumer;
 
 /**
  * This server implements the sequencer functionality of Corfu.
  * <p>
- * It currently supports a single operation, which is a incoming request:
+ * It currently supports the following incoming requests:
  * <p>
  * TOKEN_REQ - Request the next token.
  * <p>
+ * TOKEN_MULTI_REQ - Request tokens for a batch of token requests.
+ * <p>
+ * STREAM_SUBSCRIBE - Subscribe to the tails of a set of streams. Tail advances
+ * are collected for --tail-notify-delay milliseconds and then pushed to the
+ * subscriber in one STREAM_TAILS_NOTIFY message.
+ * <p>
+ * A sequencer may be one partition of a partitioned sequencer, in which case it
+ * only issues addresses from its own blocks of the address space, and registers
+ * its streams at addresses issued by other partitions for requests which span
+ * partitions (see SequencerView).
+ * <p>
  * Created by mwei on 12/8/15.
  */
 @Slf4j
@@ -47,39 +78,183 @@ public class SequencerServer extends AbstractServer {
     AtomicLong globalIndex;
 
     /**
-     * The file channel.
+     * The path of the checkpoint file, or null for an in-memory sequencer.
+     */
+    Path checkpointPath;
+
+    /**
+     * The number of threads used to scan the log after loading a checkpoint,
+     * or 0 if the log should not be scanned.
      */
-    FileChannel fc;
+    final int recoveryThreads;
+
+    /**
+     * Whether the state was restored from a checkpoint and may be behind the log.
+     */
+    boolean recovering;
 
     /**
      * A simple map of the most recently issued token for any given stream.
      */
-    ConcurrentHashMap<UUID, Long> lastIssuedMap;
+    ConcurrentUuidLongMap lastIssuedMap;
 
     // A map of stream local addresses
-    ConcurrentHashMap<UUID, Long> lastLocalOffsetMap;
+    ConcurrentUuidLongMap lastLocalOffsetMap;
+
+    /**
+     * The number of lock stripes which serialize token issuance per stream.
+     */
+    static final int STREAM_LOCK_STRIPES = 1024;
+
+    /**
+     * Striped locks guarding the per-stream state. Requests for different
+     * streams usually map to different stripes and do not contend.
+     */
+    final Striped<Lock> streamLocks = Striped.lock(STREAM_LOCK_STRIPES);
+
+    /**
+     * Whether token requests are resolved in batches, once per channel read cycle.
+     */
+    @Getter
+    final boolean batching;
+
+    /**
+     * The default number of slots in the key conflict table.
+     */
+    static final int DEFAULT_CONFLICT_TABLE_SIZE = 1 << 18;
+
+    /**
+     * The last address written to each slot of the key conflict table, by transactions
+     * which sent hashed conflict keys. Keys which hash to the same slot share an entry,
+     * which can only cause extra aborts, never missed conflicts.
+     */
+    final AtomicLongArray conflictTable;
+
+    /**
+     * The last address of each stream which was written without conflict keys. A write
+     * without keys conflicts with every key of the stream.
+     */
+    ConcurrentUuidLongMap lastUnkeyedWriteMap;
+
+    /**
+     * The first address reflected in the conflict table and lastUnkeyedWriteMap, which
+     * are not checkpointed. Transactions which read before it are checked per stream.
+     */
+    volatile long conflictKeyFloor;
+
+    /**
+     * How many addresses behind the global tail a stream stays in the active state
+     * after its last write, or 0 to keep every stream active.
+     */
+    final long conflictWindow;
+
+    /**
+     * Streams last written before this address were evicted from the active state, so
+     * transactions which read before it are aborted.
+     */
+    volatile long conflictWatermark = Long.MIN_VALUE;
+
+    /**
+     * The state of streams evicted from lastIssuedMap and lastLocalOffsetMap. Streams in
+     * those maps shadow their entry here.
+     */
+    volatile EvictedStreamSummary evictedStreams = EvictedStreamSummary.EMPTY;
+
+    /**
+     * How often idle streams are evicted, in seconds.
+     */
+    static final long EVICTION_INTERVAL = 1L;
+
+    /**
+     * The partition of the address space this sequencer issues addresses from, and
+     * the number of partitions. Partition p owns the blocks of tokenBlock addresses
+     * whose index modulo the number of partitions is p.
+     */
+    @Getter
+    final int partition;
+
+    @Getter
+    final int partitions;
+
+    /**
+     * The number of consecutive addresses in each block of the address space.
+     */
+    final long tokenBlock;
+
+    /**
+     * How long the state replaced by a request which spans partitions is kept, in seconds,
+     * so that the request can be released if another partition rejects it.
+     */
+    static final long RELEASE_WINDOW = 10L;
+
+    /**
+     * The state replaced by recent requests which span partitions, by issued address.
+     */
+    final Cache<Long, PendingIssue> pendingIssues = Caffeine.newBuilder()
+            .expireAfterWrite(RELEASE_WINDOW, TimeUnit.SECONDS)
+            .build();
+
+    /**
+     * How long tail advances are collected before they are pushed to a subscriber.
+     */
+    final long tailNotifyDelay;
+
+    /**
+     * A scheduler, which pushes tail notifications to subscribers.
+     */
+    private final ScheduledExecutorService notifier = Executors.newScheduledThreadPool(1,
+            new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Seq-Notify-%d").build());
+
+    /**
+     * Subscribers to stream tails, by connection.
+     */
+    final Map<ChannelHandlerContext, TailSubscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * The subscribers of each stream which has any.
+     */
+    final Map<UUID, Set<TailSubscriber>> streamSubscribers = new ConcurrentHashMap<>();
 
     public SequencerServer(ServerContext serverContext) {
         Map<String, Object> opts = serverContext.getServerConfig();
-        lastIssuedMap = new ConcurrentHashMap<>();
-        lastLocalOffsetMap = new ConcurrentHashMap<>();
+        lastIssuedMap = new ConcurrentUuidLongMap();
+        lastLocalOffsetMap = new ConcurrentUuidLongMap();
+        lastUnkeyedWriteMap = new ConcurrentUuidLongMap();
         globalIndex = new AtomicLong();
+        batching = Boolean.TRUE.equals(opts.get("--batch-tokens"));
+        recoveryThreads = Utils.getOption(opts, "--recover-scan", Integer.class, 0);
+        int conflictTableSize = Integer.highestOneBit(Math.max(1,
+                Utils.getOption(opts, "--conflict-table-size", Integer.class, DEFAULT_CONFLICT_TABLE_SIZE)));
+        conflictTable = new AtomicLongArray(conflictTableSize);
+        partitions = Math.max(1, Utils.getOption(opts, "--sequencer-partitions", Integer.class, 1));
+        partition = Utils.getOption(opts, "--sequencer-partition", Integer.class, 0);
+        tokenBlock = Math.max(1, Utils.getOption(opts, "--token-block", Long.class, 1000L));
+        tailNotifyDelay = Utils.getOption(opts, "--tail-notify-delay", Long.class, 1L);
+        conflictWindow = Utils.getOption(opts, "--conflict-window", Long.class, 0L);
+        if (conflictWindow > 0) {
+            scheduler.scheduleAtFixedRate(this::evictIdleStreams, EVICTION_INTERVAL, EVICTION_INTERVAL,
+                    TimeUnit.SECONDS);
+        }
+        if (partition < 0 || partition >= partitions) {
+            throw new IllegalArgumentException("Sequencer partition " + partition + " is not one of "
+                    + partitions + " partitions");
+        }
+        for (int i = 0; i < conflictTableSize; i++) {
+            conflictTable.lazySet(i, -1L);
+        }
         try {
             if (!(Boolean) opts.get("--memory")) {
-                fc = FileChannel.open(FileSystems.getDefault().getPath(opts.get("--log-path") + File.separator + "sequencer_checkpoint"), EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
+                checkpointPath = FileSystems.getDefault().getPath(opts.get("--log-path") + File.separator + "sequencer_checkpoint");
                 scheduler.scheduleAtFixedRate(this::checkpointState, Utils.parseLong(opts.get("--checkpoint")), Utils.parseLong(opts.get("--checkpoint")), TimeUnit.SECONDS);
             }
             long newIndex = Utils.parseLong(opts.get("--initial-token"));
             if (newIndex == -1) {
                 if (!(Boolean) opts.get("--memory")) {
-                    ByteBuffer b = ByteBuffer.allocate((int) fc.size());
-                    fc.read(b);
-                    if (fc.size() >= 8) {
-                        globalIndex.set(b.getLong(0));
-                    } else {
+                    if (!loadCheckpoint()) {
                         log.warn("Sequencer recovery requested but checkpoint not set, defaulting to 0");
                         globalIndex.set(0);
                     }
+                    recovering = true;
                 } else {
                     log.warn("Sequencer recovery requested but has no meaning for a in-memory server, defaulting to 0");
                     globalIndex.set(0);
@@ -91,114 +266,173 @@ public class SequencerServer extends AbstractServer {
         } catch (Exception ex) {
             log.warn("Exception parsing initial token, default to 0.", ex);
         }
+        conflictKeyFloor = globalIndex.get();
     }
 
     /**
      * Checkpoints the state of the sequencer.
+     * <p>
+     * The checkpoint contains the global index followed by the last issued
+     * token and last local offset of every stream. All stream stripes are
+     * briefly taken while the global index is read, so every stream token
+     * below the checkpointed index is reflected in the stream state which is
+     * copied afterwards. The file is written to a temporary file first and
+     * then atomically moved into place.
      */
-    public void checkpointState() {
-        ByteBuffer b = ByteBuffer.allocate(8);
-        long checkpointAddress = globalIndex.get();
-        b.putLong(globalIndex.get());
-        b.flip();
+    public synchronized void checkpointState() {
+        long checkpointAddress;
+        for (int i = 0; i < streamLocks.size(); i++) {
+            streamLocks.getAt(i).lock();
+        }
         try {
-            fc.write(b, 0L);
+            checkpointAddress = globalIndex.get();
+        } finally {
+            for (int i = 0; i < streamLocks.size(); i++) {
+                streamLocks.getAt(i).unlock();
+            }
+        }
+
+        ByteBuf buf = Unpooled.buffer(12 + lastIssuedMap.size() * 32);
+        buf.writeLong(checkpointAddress);
+        buf.writeInt(0);
+        // Streams may move between the active maps and the summary while they are
+        // copied, so each stream is written once, with its state from wherever it is.
+        Set<UUID> streams = new HashSet<>();
+        Consumer<UUID> write = id -> {
+            if (streams.add(id)) {
+                writeStreamState(buf, id, getLastIssued(id), getLastLocalOffset(id));
+            }
+        };
+        lastIssuedMap.forEach((id, lastIssued) -> write.accept(id));
+        lastLocalOffsetMap.forEach((id, lastLocalOffset) -> write.accept(id));
+        evictedStreams.forEach((id, lastIssued, lastLocalOffset) -> write.accept(id));
+        buf.setInt(8, streams.size());
+        ByteBuffer b = buf.nioBuffer();
+
+        Path tmpPath = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+        try (FileChannel fc = FileChannel.open(tmpPath, StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (b.hasRemaining()) {
+                fc.write(b);
+            }
             fc.force(true);
-            log.debug("Sequencer state successfully checkpointed at {}", checkpointAddress);
+            fc.close();
+            Files.move(tmpPath, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.debug("Sequencer state successfully checkpointed at {} ({} streams)", checkpointAddress, streams.size());
         } catch (IOException ie) {
             log.warn("Sequencer checkpoint failed due to exception", ie);
         }
     }
 
+    private static void writeStreamState(ByteBuf buf, UUID id, long lastIssued, long lastLocalOffset) {
+        buf.writeLong(id.getMostSignificantBits());
+        buf.writeLong(id.getLeastSignificantBits());
+        buf.writeLong(lastIssued);
+        buf.writeLong(lastLocalOffset);
+    }
+
+    /**
+     * Load the state of the sequencer from the checkpoint file. Checkpoints
+     * which only contain the global index are also accepted.
+     *
+     * @return True, if a checkpoint was loaded.
+     * @throws IOException If the checkpoint could not be read.
+     */
+    private boolean loadCheckpoint() throws IOException {
+        if (!Files.exists(checkpointPath)) {
+            return false;
+        }
+        ByteBuffer b = ByteBuffer.wrap(Files.readAllBytes(checkpointPath));
+        if (b.remaining() < 8) {
+            return false;
+        }
+        globalIndex.set(b.getLong());
+        int numStreams = b.remaining() >= 4 ? b.getInt() : 0;
+        for (int i = 0; i < numStreams; i++) {
+            UUID id = new UUID(b.getLong(), b.getLong());
+            long lastIssued = b.getLong();
+            long lastLocalOffset = b.getLong();
+            if (lastIssued != -1L) {
+                lastIssuedMap.put(id, lastIssued);
+            }
+            if (lastLocalOffset != -1L) {
+                lastLocalOffsetMap.put(id, lastLocalOffset);
+            }
+        }
+        log.info("Sequencer checkpoint loaded at {} ({} streams)", globalIndex.get(), numStreams);
+        return true;
+    }
+
+    /**
+     * Bring the state restored from a checkpoint up to date with the log, by
+     * scanning the entries written since the checkpoint in parallel. This
+     * must be called before the server accepts requests, and does nothing
+     * unless the sequencer is recovering and --recover-scan is set.
+     * <p>
+     * Each scan of the log reads its part of the log once, and the scans are
+     * run by --recover-scan threads.
+     *
+     * @param localLog The global log of the colocated log unit.
+     */
+    public void recoverFromLog(AbstractLocalLog localLog) {
+        if (!recovering || recoveryThreads <= 0) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(recoveryThreads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("Seq-Recovery-%d").build());
+        long start = globalIndex.get();
+        AtomicLong tail = new AtomicLong(start - 1);
+        try {
+            List<Future<?>> scans = new ArrayList<>();
+            for (Runnable scan : localLog.getScans(start, (entry, address) -> {
+                recoverEntry(entry, address);
+                tail.accumulateAndGet(address, Math::max);
+            })) {
+                scans.add(pool.submit(scan));
+            }
+            for (Future<?> scan : scans) {
+                scan.get();
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Sequencer recovery failed!", e);
+        } finally {
+            pool.shutdownNow();
+        }
+        globalIndex.set(Math.max(globalIndex.get(), tail.get() + 1));
+        conflictKeyFloor = globalIndex.get();
+        recovering = false;
+        log.info("Sequencer recovered from log suffix [{}, {}], initial token set to {}",
+                start, tail.get(), globalIndex.get());
+    }
+
+    /**
+     * Fold an entry of the log into the stream state.
+     */
+    private void recoverEntry(LogData entry, long address) {
+        entry.getStreams().forEach(id -> lastIssuedMap.merge(id, address, Math::max));
+        entry.getLogicalAddresses().forEach((id, offset) -> lastLocalOffsetMap.merge(id, offset, Math::max));
+    }
+
     @Override
-    public synchronized void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+    public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
         switch(msg.getMsgType()) {
             case TOKEN_REQ:
                 {
                     TokenRequest req = ((CorfuPayloadMsg<TokenRequest>) msg).getPayload();
-                    if (req.getNumTokens() == 0) {
-                        long max = 0L;
-                        boolean hit = false;
-                        ImmutableMap.Builder<UUID, Long> streamsLastIssued = ImmutableMap.builder();
-                        for (UUID id : req.getStreams()) {
-                            lastLocalOffsetMap.compute(id, ( k,  v) -> {
-                                if (v == null) {
-                                    streamsLastIssued.put(k, -1L);
-                                    return null;
-                                }
-                                streamsLastIssued.put(k, v);
-                                return v;
-                            });
-                            Long lastIssued = lastIssuedMap.get(id);
-                            if (lastIssued != null) {
-                                hit = true;
-                            }
-                            max = Math.max(max, lastIssued == null ? Long.MIN_VALUE : lastIssued);
-                        }
-                        if (!hit) {
-                            max = -1L;
-                        }
-                        if (req.getStreams().size() == 0) {
-                            max = globalIndex.get() - 1;
-                        }
-                        r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(new TokenResponse(max, Collections.emptyMap(), streamsLastIssued.build())));
-                    } else {
-                        long thisIssue = globalIndex.getAndAdd(req.getNumTokens());
-                        if (req.getStreams() == null) {
-                            r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(new TokenResponse(thisIssue, Collections.emptyMap(), Collections.emptyMap())));
-                            return;
-                        }
-                        if (req.getTxnResolution()) {
-                            long timestamp = req.getReadTimestamp();
-                            if (timestamp != -1L) {
-                                AtomicBoolean abort = new AtomicBoolean(false);
-                                for (UUID id : req.getStreams()) {
-                                    if (abort.get()) {
-                                        break;
-                                    }
-                                    lastIssuedMap.compute(id, ( k,  v) -> {
-                                        if (v == null) {
-                                            return null;
-                                        } else {
-                                            if (v > timestamp) {
-                                                log.debug("Rejecting request due to {} > {} on stream {}", v, timestamp, id);
-                                                abort.set(true);
-                                            }
-                                        }
-                                        return v;
-                                    });
-                                }
-                                if (abort.get()) {
-                                    globalIndex.getAndAdd(-req.getNumTokens());
-                                    r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap())));
-                                    return;
-                                }
-                            }
-                        }
-                        ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
-                        ImmutableMap.Builder<UUID, Long> localAddresses = ImmutableMap.builder();
-                        for (UUID id : req.getStreams()) {
-                            lastIssuedMap.compute(id, ( k,  v) -> {
-                                if (v == null) {
-                                    mb.put(k, -1L);
-                                    return thisIssue + req.getNumTokens() - 1;
-                                }
-                                mb.put(k, v);
-                                return Math.max(thisIssue + req.getNumTokens() - 1, v);
-                            });
-                            if (((CorfuPayloadMsg<TokenRequest>) msg).getPayload().getReplexOverwrite() || !((CorfuPayloadMsg<TokenRequest>) msg).getPayload().getOverwrite()) {
-                                lastLocalOffsetMap.compute(id, ( k,  v) -> {
-                                    if (v == null) {
-                                        localAddresses.put(k, 0L);
-                                        return 0L;
-                                    }
-                                    localAddresses.put(k, v + req.getNumTokens());
-                                    return v + req.getNumTokens();
-                                });
-                            }
-                        }
-                        r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(new TokenResponse(thisIssue, mb.build(), localAddresses.build())));
-                    }
+                    r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(issueTokens(req)));
+                }
+                break;
+            case TOKEN_MULTI_REQ:
+                {
+                    MultiTokenRequest req = ((CorfuPayloadMsg<MultiTokenRequest>) msg).getPayload();
+                    r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_MULTI_RES.payloadMsg(
+                            new MultiTokenResponse(issueTokens(req.getRequests()))));
+                }
+                break;
+            case STREAM_SUBSCRIBE:
+                {
+                    StreamSubscription req = ((CorfuPayloadMsg<StreamSubscription>) msg).getPayload();
+                    r.sendResponse(ctx, msg, CorfuMsgType.STREAM_TAILS.payloadMsg(subscribe(req, msg, ctx, r)));
                 }
                 break;
             default:
@@ -207,6 +441,672 @@ public class SequencerServer extends AbstractServer {
         }
     }
 
+    /**
+     * Token requests are batched if batching is enabled. Other messages, such as
+     * subscriptions, are handled as they are read.
+     */
+    @Override
+    public boolean isBatching(CorfuMsg msg) {
+        return batching && (msg.getMsgType() == CorfuMsgType.TOKEN_REQ
+                || msg.getMsgType() == CorfuMsgType.TOKEN_MULTI_REQ);
+    }
+
+    /**
+     * Resolve all token requests read from a channel in one cycle. The stripes
+     * of every stream in the batch are taken once, the requests are resolved
+     * in order, and the responses are flushed together.
+     *
+     * @param msgs The token requests, in the order they were read.
+     * @param ctx  The channel handler context.
+     * @param r    The router that took in the messages.
+     */
+    @Override
+    public void handleMessageBatch(List<CorfuMsg> msgs, ChannelHandlerContext ctx, IServerRouter r) {
+        List<TokenRequest> reqs = new ArrayList<>(msgs.size());
+        for (CorfuMsg msg : msgs) {
+            if (msg.getMsgType() == CorfuMsgType.TOKEN_REQ) {
+                reqs.add(((CorfuPayloadMsg<TokenRequest>) msg).getPayload());
+            } else if (msg.getMsgType() == CorfuMsgType.TOKEN_MULTI_REQ) {
+                reqs.addAll(((CorfuPayloadMsg<MultiTokenRequest>) msg).getPayload().getRequests());
+            } else {
+                log.warn("Unknown message type {} passed to handler!", msg.getMsgType());
+                throw new RuntimeException("Unsupported message passed to handler!");
+            }
+        }
+
+        List<TokenResponse> resps = issueTokens(reqs);
+        int next = 0;
+        for (CorfuMsg msg : msgs) {
+            if (msg.getMsgType() == CorfuMsgType.TOKEN_REQ) {
+                r.writeResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(resps.get(next++)));
+            } else {
+                int count = ((CorfuPayloadMsg<MultiTokenRequest>) msg).getPayload().getRequests().size();
+                r.writeResponse(ctx, msg, CorfuMsgType.TOKEN_MULTI_RES.payloadMsg(
+                        new MultiTokenResponse(resps.subList(next, next + count))));
+                next += count;
+            }
+        }
+        r.flushResponses(ctx);
+    }
+
+    /**
+     * Resolve a list of token requests in order. The stripes of every stream
+     * in the list are taken once for each run of requests between releases.
+     * Releases take the stripes of the streams they restore, which are not
+     * known in advance, so they run without holding the stripes of the list.
+     *
+     * @param reqs The token requests.
+     * @return The responses, in the order of the requests.
+     */
+    List<TokenResponse> issueTokens(List<TokenRequest> reqs) {
+        List<TokenResponse> resps = new ArrayList<>(reqs.size());
+        int start = 0;
+        for (int i = 0; i < reqs.size(); i++) {
+            TokenRequest req = reqs.get(i);
+            if (req.getNumTokens() == 0 && req.getAssignedToken() != -1L) {
+                issueLockedTokens(reqs.subList(start, i), resps);
+                resps.add(releaseTokens(req.getAssignedToken()));
+                start = i + 1;
+            }
+        }
+        issueLockedTokens(reqs.subList(start, reqs.size()), resps);
+        return resps;
+    }
+
+    /**
+     * Resolve a run of token requests in order, none of which is a release, holding the
+     * stripes of all their streams.
+     *
+     * @param reqs  The token requests.
+     * @param resps The list to add the responses to.
+     */
+    private void issueLockedTokens(List<TokenRequest> reqs, List<TokenResponse> resps) {
+        if (reqs.isEmpty()) {
+            return;
+        }
+        Set<UUID> streams = new HashSet<>();
+        for (TokenRequest req : reqs) {
+            if (req.getNumTokens() != 0 && req.getStreams() != null) {
+                streams.addAll(req.getStreams());
+            }
+        }
+
+        Iterable<Lock> locks = streamLocks.bulkGet(streams);
+        locks.forEach(Lock::lock);
+        try {
+            for (TokenRequest req : reqs) {
+                resps.add(req.getNumTokens() == 0 || req.getStreams() == null || req.getStreams().isEmpty()
+                        ? issueTokens(req) : issueStreamTokens(req));
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Resolve a token request against the current sequencer state.
+     * <p>
+     * Requests for zero tokens are read-only and never take a lock. Requests
+     * which do not touch any stream only increment the global counter. Requests
+     * which touch streams hold the stripes of those streams while the token is
+     * taken, so that tokens of a stream are issued in backpointer order, but
+     * requests on disjoint streams proceed in parallel.
+     *
+     * @param req The token request.
+     * @return The response to send to the client.
+     */
+    TokenResponse issueTokens(TokenRequest req) {
+        if (req.getNumTokens() == 0) {
+            if (req.getAssignedToken() != -1L) {
+                return releaseTokens(req.getAssignedToken());
+            }
+            if (req.getMinToken() != -1L) {
+                globalIndex.accumulateAndGet(req.getMinToken() + 1, Math::max);
+            }
+            return queryTokens(req);
+        }
+        if (req.getStreams() == null || req.getStreams().isEmpty()) {
+            long token = allocate(req.getNumTokens(), req.getMinToken());
+            return token == -1L ? rejected() : new TokenResponse(token,
+                    Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        Iterable<Lock> locks = streamLocks.bulkGet(req.getStreams());
+        locks.forEach(Lock::lock);
+        try {
+            return issueStreamTokens(req);
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+    }
+
+    /**
+     * Issue tokens for a request which touches streams. The caller must hold
+     * the stripes of all streams in the request.
+     *
+     * @param req The token request.
+     * @return The response to send to the client.
+     */
+    private TokenResponse issueStreamTokens(TokenRequest req) {
+        if (req.getTxnResolution() && req.getReadTimestamp() != -1L) {
+            long timestamp = req.getReadTimestamp();
+            if (timestamp < conflictWatermark) {
+                log.debug("Rejecting request due to read timestamp {} before the conflict window at {}",
+                        timestamp, conflictWatermark);
+                return rejected();
+            }
+            boolean keyed = timestamp + 1 >= conflictKeyFloor;
+            for (UUID id : req.getStreams()) {
+                Set<Long> keys = keyed ? getConflictKeys(req, id) : null;
+                if (keys == null ? hasStreamConflict(id, timestamp) : hasKeyConflict(id, keys, timestamp)) {
+                    return rejected();
+                }
+            }
+        }
+
+        long thisIssue;
+        if (req.getAssignedToken() != -1L) {
+            thisIssue = req.getAssignedToken();
+            // Backpointers must go backwards, so a stream can't be registered before its last token.
+            for (UUID id : req.getStreams()) {
+                long v = getLastIssued(id);
+                if (v >= thisIssue) {
+                    log.debug("Rejecting assigned token {} due to {} on stream {}", thisIssue, v, id);
+                    return rejected();
+                }
+            }
+            globalIndex.accumulateAndGet(thisIssue + req.getNumTokens(), Math::max);
+        } else {
+            thisIssue = allocate(req.getNumTokens(), req.getMinToken());
+            if (thisIssue == -1L) {
+                return rejected();
+            }
+        }
+        long lastIssue = thisIssue + req.getNumTokens() - 1;
+        boolean advanceLocal = req.getReplexOverwrite() || !req.getOverwrite();
+        // Requests which span partitions may still be rejected by another partition.
+        PendingIssue pending = req.getMinToken() != -1L || req.getAssignedToken() != -1L
+                ? new PendingIssue(lastIssue) : null;
+        ImmutableMap.Builder<UUID, Long> mb = ImmutableMap.builder();
+        ImmutableMap.Builder<UUID, Long> localAddresses = ImmutableMap.builder();
+        for (UUID id : req.getStreams()) {
+            long backpointer = getLastIssued(id);
+            mb.put(id, backpointer);
+            if (pending != null) {
+                pending.lastIssued.put(id, backpointer);
+            }
+            if (!lastIssuedMap.containsKey(id)) {
+                reactivate(id);
+            }
+            lastIssuedMap.merge(id, lastIssue, Math::max);
+            if (!streamSubscribers.isEmpty()) {
+                notifySubscribers(id, lastIssue);
+            }
+            Set<Long> keys = getConflictKeys(req, id);
+            if (keys == null) {
+                if (pending != null) {
+                    pending.lastUnkeyedWrites.put(id, lastUnkeyedWriteMap.getOrDefault(id, -1L));
+                }
+                lastUnkeyedWriteMap.merge(id, lastIssue, Math::max);
+            } else {
+                // Keys which were only read are not recorded, so they don't abort other readers.
+                for (long key : getWriteKeys(req, id)) {
+                    if (pending != null) {
+                        pending.slots.putIfAbsent(conflictSlot(key), conflictTable.get(conflictSlot(key)));
+                    }
+                    recordKeyWrite(key, lastIssue);
+                }
+            }
+            if (advanceLocal) {
+                long offset = getLastLocalOffset(id);
+                long newOffset = offset == -1L ? req.getNumTokens() - 1 : offset + req.getNumTokens();
+                if (pending != null) {
+                    pending.localOffsets.put(id, new long[]{offset, newOffset});
+                }
+                lastLocalOffsetMap.put(id, newOffset);
+                localAddresses.put(id, newOffset);
+            }
+        }
+        if (pending != null) {
+            pendingIssues.put(thisIssue, pending);
+        }
+        return new TokenResponse(thisIssue, mb.build(), localAddresses.build());
+    }
+
+    /**
+     * Release the streams of a request spanning partitions which were issued or registered
+     * at an address, because another partition rejected the request. The last token,
+     * local offset and conflict keys of each stream are reset to their state before
+     * the request, unless a later request replaced them. The address itself stays
+     * issued, and is hole filled by the client.
+     *
+     * @param token The address the request was issued at.
+     * @return The response to send to the client, which is rejected if the request
+     *         is unknown or was issued more than RELEASE_WINDOW seconds ago.
+     */
+    private TokenResponse releaseTokens(long token) {
+        PendingIssue pending = pendingIssues.getIfPresent(token);
+        if (pending == null) {
+            log.warn("Not releasing tokens at {}, which were not issued recently", token);
+            return rejected();
+        }
+        Iterable<Lock> locks = streamLocks.bulkGet(pending.lastIssued.keySet());
+        locks.forEach(Lock::lock);
+        try {
+            pending.lastIssued.forEach((id, v) -> restore(lastIssuedMap, id, pending.lastIssue, v));
+            pending.lastUnkeyedWrites.forEach((id, v) -> restore(lastUnkeyedWriteMap, id, pending.lastIssue, v));
+            pending.localOffsets.forEach((id, v) -> restore(lastLocalOffsetMap, id, v[1], v[0]));
+            synchronized (pendingIssues) {
+                pending.slots.forEach((slot, v) -> conflictTable.compareAndSet(slot, pending.lastIssue, v));
+                pendingIssues.invalidate(token);
+            }
+        } finally {
+            locks.forEach(Lock::unlock);
+        }
+        log.debug("Released tokens at {} for streams {}", token, pending.lastIssued.keySet());
+        return new TokenResponse(token, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Reset the value of a stream to a previous value, if it still has the value a request set.
+     */
+    private static void restore(ConcurrentUuidLongMap map, UUID id, long expected, long previous) {
+        if (map.getOrDefault(id, -1L) == expected) {
+            if (previous == -1L) {
+                map.remove(id);
+            } else {
+                map.put(id, previous);
+            }
+        }
+    }
+
+    /**
+     * Copy the local offset of a stream which becomes active again out of the evicted
+     * stream summary. Once the stream is in lastIssuedMap its summary may be dropped,
+     * so this must be done before, under the stripe of the stream.
+     *
+     * @param id The stream.
+     */
+    private void reactivate(UUID id) {
+        long offset = evictedStreams.getLastLocalOffset(id, -1L);
+        if (offset != -1L) {
+            lastLocalOffsetMap.merge(id, offset, Math::max);
+        }
+    }
+
+    /**
+     * Reserve a range of consecutive addresses owned by this sequencer.
+     *
+     * @param numTokens The number of addresses to reserve.
+     * @param minToken  The reserved addresses must be greater than this, or -1 for no bound.
+     * @return The first reserved address, or -1 if the range is larger than a block.
+     */
+    private long allocate(long numTokens, long minToken) {
+        if (partitions == 1 && minToken == -1L) {
+            return globalIndex.getAndAdd(numTokens);
+        }
+        if (partitions > 1 && numTokens > tokenBlock) {
+            log.warn("Rejecting request for {} tokens, which is more than the token block of {}",
+                    numTokens, tokenBlock);
+            return -1L;
+        }
+        while (true) {
+            long current = globalIndex.get();
+            long start = ownedAddress(Math.max(current, minToken + 1), numTokens);
+            if (globalIndex.compareAndSet(current, start + numTokens)) {
+                return start;
+            }
+        }
+    }
+
+    /**
+     * Get the first address at or after an address from which a range of addresses
+     * is owned by this sequencer.
+     *
+     * @param address   The address to start from.
+     * @param numTokens The number of addresses in the range.
+     * @return The first address of the range.
+     */
+    long ownedAddress(long address, long numTokens) {
+        if (partitions == 1) {
+            return address;
+        }
+        long block = address / tokenBlock;
+        if (block % partitions == partition && address % tokenBlock + numTokens <= tokenBlock) {
+            return address;
+        }
+        long next = block - block % partitions + partition;
+        if (next <= block) {
+            next += partitions;
+        }
+        return next * tokenBlock;
+    }
+
+    /**
+     * The state a request which spans partitions replaced when its streams were issued or
+     * registered, which is restored if another partition rejects the request.
+     */
+    static class PendingIssue {
+
+        /** The last address of the request. */
+        final long lastIssue;
+
+        /** The previous last token of each stream. */
+        final Map<UUID, Long> lastIssued = new HashMap<>();
+
+        /** The previous last write without conflict keys of each stream which had none. */
+        final Map<UUID, Long> lastUnkeyedWrites = new HashMap<>();
+
+        /** The previous and the new local offset of each stream whose offset was advanced. */
+        final Map<UUID, long[]> localOffsets = new HashMap<>();
+
+        /** The previous value of each conflict table slot the request wrote. */
+        final Map<Integer, Long> slots = new ConcurrentHashMap<>();
+
+        PendingIssue(long lastIssue) {
+            this.lastIssue = lastIssue;
+        }
+    }
+
+    private static TokenResponse rejected() {
+        return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    private static Set<Long> getConflictKeys(TokenRequest req, UUID id) {
+        return req.getConflictKeys() == null ? null : req.getConflictKeys().get(id);
+    }
+
+    private static Set<Long> getWriteKeys(TokenRequest req, UUID id) {
+        return req.getWriteKeys() == null ? Collections.emptySet()
+                : req.getWriteKeys().getOrDefault(id, Collections.emptySet());
+    }
+
+    /**
+     * Get the last token issued for a stream, which may have been evicted.
+     */
+    long getLastIssued(UUID id) {
+        long v = lastIssuedMap.getOrDefault(id, -1L);
+        return v != -1L ? v : evictedStreams.getLastIssued(id, -1L);
+    }
+
+    /**
+     * Get the last local offset of a stream, which may have been evicted.
+     */
+    long getLastLocalOffset(UUID id) {
+        long v = lastLocalOffsetMap.getOrDefault(id, -1L);
+        return v != -1L ? v : evictedStreams.getLastLocalOffset(id, -1L);
+    }
+
+    /**
+     * Evict streams which were not written within the conflict window from the active
+     * state into the evicted stream summary.
+     * <p>
+     * The conflict watermark is raised first, so transactions which could conflict with
+     * an evicted stream are aborted before its entry disappears. The summary is then
+     * published with the evicted streams, and only then are they removed from the active
+     * maps, under their stripe locks and only if they were not written in the meantime,
+     * so the state of a stream is always found in one of them.
+     */
+    synchronized void evictIdleStreams() {
+        long watermark = globalIndex.get() - conflictWindow;
+        if (conflictWindow <= 0 || watermark <= conflictWatermark) {
+            return;
+        }
+        conflictWatermark = watermark;
+
+        long[][] evicted = {new long[64]};
+        int[] count = {0};
+        lastIssuedMap.forEach((id, lastIssued) -> {
+            if (lastIssued < watermark) {
+                if ((count[0] + 1) * 4 > evicted[0].length) {
+                    evicted[0] = Arrays.copyOf(evicted[0], evicted[0].length * 2);
+                }
+                int i = count[0]++ * 4;
+                evicted[0][i] = id.getMostSignificantBits();
+                evicted[0][i + 1] = id.getLeastSignificantBits();
+                evicted[0][i + 2] = lastIssued;
+                evicted[0][i + 3] = lastLocalOffsetMap.getOrDefault(id, -1L);
+            }
+        });
+        // Summarized streams which became active again are shadowed, so they can be dropped:
+        // their local offset was copied to lastLocalOffsetMap when they were reactivated.
+        evictedStreams = evictedStreams.merge(evicted[0], count[0],
+                (msb, lsb) -> lastIssuedMap.containsKey(new UUID(msb, lsb)));
+
+        int removed = 0;
+        for (int i = 0; i < count[0] * 4; i += 4) {
+            UUID id = new UUID(evicted[0][i], evicted[0][i + 1]);
+            Lock lock = streamLocks.get(id);
+            lock.lock();
+            try {
+                if (lastIssuedMap.getOrDefault(id, -1L) == evicted[0][i + 2]
+                        && lastLocalOffsetMap.getOrDefault(id, -1L) == evicted[0][i + 3]) {
+                    lastIssuedMap.remove(id);
+                    lastLocalOffsetMap.remove(id);
+                    removed++;
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+        lastUnkeyedWriteMap.forEach((id, lastWrite) -> {
+            if (lastWrite < watermark) {
+                Lock lock = streamLocks.get(id);
+                lock.lock();
+                try {
+                    if (lastUnkeyedWriteMap.getOrDefault(id, -1L) < watermark) {
+                        lastUnkeyedWriteMap.remove(id);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        lastIssuedMap.shrink();
+        lastLocalOffsetMap.shrink();
+        lastUnkeyedWriteMap.shrink();
+        log.debug("Evicted {} streams last written before {}, {} streams summarized, {} active",
+                removed, watermark, evictedStreams.size(), lastIssuedMap.size());
+    }
+
+    /**
+     * Check whether a stream was written after a transaction read it. Evicted streams
+     * can't conflict, since transactions which read before they were last written abort.
+     */
+    private boolean hasStreamConflict(UUID id, long timestamp) {
+        long v = lastIssuedMap.getOrDefault(id, -1L);
+        if (v > timestamp) {
+            log.debug("Rejecting request due to {} > {} on stream {}", v, timestamp, id);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether any of the keys a transaction accessed in a stream was written after
+     * the transaction read it, or the stream was written without conflict keys.
+     */
+    private boolean hasKeyConflict(UUID id, Set<Long> keys, long timestamp) {
+        long v = lastUnkeyedWriteMap.getOrDefault(id, -1L);
+        if (v > timestamp) {
+            log.debug("Rejecting request due to unkeyed write {} > {} on stream {}", v, timestamp, id);
+            return true;
+        }
+        for (long key : keys) {
+            v = conflictTable.get(conflictSlot(key));
+            if (v > timestamp) {
+                log.debug("Rejecting request due to {} > {} on key {} of stream {}", v, timestamp, key, id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void recordKeyWrite(long key, long address) {
+        int slot = conflictSlot(key);
+        long current;
+        do {
+            current = conflictTable.get(slot);
+        } while (current < address && !conflictTable.compareAndSet(slot, current, address));
+        if (current > address) {
+            // A registration at an address before a request which may still be released
+            // is hidden by it, so releasing the request must restore this write instead.
+            if (pendingIssues.estimatedSize() > 0) {
+                synchronized (pendingIssues) {
+                    pendingIssues.asMap().values().forEach(p ->
+                            p.slots.computeIfPresent(slot, (s, v) -> Math.max(v, address)));
+                }
+            }
+            if (conflictTable.get(slot) < address) {
+                recordKeyWrite(key, address);
+            }
+        }
+    }
+
+    private int conflictSlot(long key) {
+        return (int) (key ^ (key >>> 32)) & (conflictTable.length() - 1);
+    }
+
+    /**
+     * Answer a read-only (zero token) request. Only reads the stream maps,
+     * so queries never block or are blocked by token issuance.
+     *
+     * @param req The token request.
+     * @return The response to send to the client.
+     */
+    private TokenResponse queryTokens(TokenRequest req) {
+        long max = 0L;
+        boolean hit = false;
+        ImmutableMap.Builder<UUID, Long> streamsLastIssued = ImmutableMap.builder();
+        for (UUID id : req.getStreams()) {
+            streamsLastIssued.put(id, getLastLocalOffset(id));
+            long lastIssued = getLastIssued(id);
+            if (lastIssued != -1L) {
+                hit = true;
+                max = Math.max(max, lastIssued);
+            }
+        }
+        if (!hit) {
+            max = -1L;
+        }
+        if (req.getStreams().size() == 0) {
+            max = globalIndex.get() - 1;
+        }
+        return new TokenResponse(max, Collections.emptyMap(), streamsLastIssued.build());
+    }
+
+    /**
+     * Replace the subscription of a connection, and get the current tails of the
+     * subscribed streams. The subscriber is registered before the tails are read,
+     * so no advance between the two is missed.
+     *
+     * @param req The streams to subscribe to, or an empty set to unsubscribe.
+     * @param msg The subscription message, which notifications answer.
+     * @param ctx The connection of the subscriber.
+     * @param r   The router to push notifications through.
+     * @return The current tails of the streams.
+     */
+    private StreamTails subscribe(StreamSubscription req, CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+        if (ctx == null) {
+            log.warn("Subscription to {} without a connection, answering with the current tails only",
+                    req.getStreams());
+        } else {
+            TailSubscriber previous = subscribers.remove(ctx);
+            if (previous != null) {
+                unsubscribe(previous);
+            } else if (ctx.channel() != null) {
+                // Drop the subscription of the connection once it closes, even if its streams never advance.
+                ctx.channel().closeFuture().addListener(f -> {
+                    TailSubscriber subscriber = subscribers.get(ctx);
+                    if (subscriber != null) {
+                        unsubscribe(subscriber);
+                    }
+                });
+            }
+            if (!req.getStreams().isEmpty()) {
+                TailSubscriber subscriber = new TailSubscriber(ctx, msg, r, req.getStreams());
+                subscribers.put(ctx, subscriber);
+                for (UUID id : req.getStreams()) {
+                    streamSubscribers.compute(id, (k, v) -> {
+                        Set<TailSubscriber> set = v == null ? ConcurrentHashMap.newKeySet() : v;
+                        set.add(subscriber);
+                        return set;
+                    });
+                }
+            }
+        }
+        Map<UUID, Long> tails = new HashMap<>();
+        for (UUID id : req.getStreams()) {
+            tails.put(id, getLastIssued(id));
+        }
+        return new StreamTails(tails);
+    }
+
+    private void unsubscribe(TailSubscriber subscriber) {
+        subscribers.remove(subscriber.ctx, subscriber);
+        for (UUID id : subscriber.streams) {
+            streamSubscribers.computeIfPresent(id, (k, v) -> {
+                v.remove(subscriber);
+                return v.isEmpty() ? null : v;
+            });
+        }
+    }
+
+    private void notifySubscribers(UUID id, long tail) {
+        Set<TailSubscriber> set = streamSubscribers.get(id);
+        if (set != null) {
+            for (TailSubscriber subscriber : set) {
+                subscriber.advance(id, tail);
+            }
+        }
+    }
+
+    /**
+     * A connection which subscribed to the tails of a set of streams.
+     */
+    class TailSubscriber {
+
+        final ChannelHandlerContext ctx;
+
+        /** The subscription message, which notifications are sent in response to. */
+        final CorfuMsg subscription;
+
+        final IServerRouter router;
+
+        final Set<UUID> streams;
+
+        /** Tail advances which were not pushed yet. A push is scheduled while it is not empty. */
+        Map<UUID, Long> pending = new HashMap<>();
+
+        TailSubscriber(ChannelHandlerContext ctx, CorfuMsg subscription, IServerRouter router, Set<UUID> streams) {
+            this.ctx = ctx;
+            this.subscription = subscription;
+            this.router = router;
+            this.streams = streams;
+        }
+
+        synchronized void advance(UUID id, long tail) {
+            if (pending.isEmpty()) {
+                notifier.schedule(this::push, tailNotifyDelay, TimeUnit.MILLISECONDS);
+            }
+            pending.merge(id, tail, Math::max);
+        }
+
+        void push() {
+            Map<UUID, Long> tails;
+            synchronized (this) {
+                tails = pending;
+                pending = new HashMap<>();
+            }
+            if (ctx.channel() != null && !ctx.channel().isActive()) {
+                log.debug("Subscriber connection closed, dropping subscription to {}", streams);
+                unsubscribe(this);
+                return;
+            }
+            router.sendResponse(ctx, subscription, CorfuMsgType.STREAM_TAILS_NOTIFY.payloadMsg(new StreamTails(tails)));
+        }
+    }
+
     @Override
     public void reset() {
         globalIndex.set(0L);
@@ -217,12 +1117,10 @@ public class SequencerServer extends AbstractServer {
      */
     @Override
     public void shutdown() {
-        try {
-            scheduler.shutdownNow();
+        scheduler.shutdownNow();
+        notifier.shutdownNow();
+        if (checkpointPath != null) {
             checkpointState();
-            fc.close();
-        } catch (IOException ie) {
-            log.warn("Error checkpointing server during shutdown!", ie);
         }
     }
 }
@@ -12,4 +12,10 @@ import java.lang.annotation.*;
 @Inherited
 public @interface ServerHandler {
     CorfuMsgType type();
+
+    /**
+     * Whether the handler may block, for example on disk I/O. Blocking handlers are run
+     * on a separate thread pool instead of the event loop which read the message.
+     */
+    boolean blocking() default false;
 }
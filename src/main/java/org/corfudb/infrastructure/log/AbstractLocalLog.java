@@ -4,15 +4,18 @@ package org.corfudb.infrastructure.log;
 import com.google.common.collect.RangeSet;
 import org.corfudb.protocols.wireprotocol.LogData;
 
+import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
 
 /**
  * A LocalLog is the basic building unit of the distributed log. It provides an address space to write to.
  * Log units consume and operate on LocalLogs to construct the distributed log. The LocalLog can be
  * backed by different implementations.
  *
- * Todo(Maithem): Should add LocalLog sync methods
+ * Logs which buffer writes before they reach stable storage should override
+ * sync() so that callers can force outstanding writes to disk.
  *
  * Created by maithem on 7/15/16.
  */
@@ -56,6 +59,20 @@ public abstract class AbstractLocalLog {
     }
 
 
+    /**
+     * Get scans of the entries written at or after an address. Each scan reads its part
+     * of the log once, without opening or creating anything the log does not hold, and
+     * the scans may run concurrently, so the visitor must be thread-safe. Writes made
+     * while the scans run may not be visited.
+     *
+     * @param from    The first address to visit.
+     * @param visitor The visitor, which is passed each entry and its address.
+     * @return The scans, which visit the entries when run.
+     */
+    public List<Runnable> getScans(long from, ObjLongConsumer<LogData> visitor) {
+        return backendScans(Math.max(from, range.start), visitor);
+    }
+
     AtomicLong counter = new AtomicLong();
 
     // In this default implementation, the counter is in-memory only.
@@ -71,10 +88,37 @@ public abstract class AbstractLocalLog {
         return backendStreamRead(streamID);
     }
 
+    /**
+     * Whether a read issued after a write returns is guaranteed to observe that write.
+     * In this default implementation, writes are applied before write() returns.
+     *
+     * @return True, if reads always observe completed writes.
+     */
+    public boolean isReadYourWrites() {
+        return true;
+    }
+
+    /**
+     * Force any buffered writes to stable storage.
+     * In this default implementation, writes are never buffered.
+     */
+    public void sync() {
+        // no-op
+    }
+
+    /**
+     * Sync and release any resources held by this log.
+     */
+    public void close() {
+        sync();
+    }
+
     protected abstract void backendWrite(long address, LogData entry);
 
     protected abstract LogData backendRead(long address);
 
+    protected abstract List<Runnable> backendScans(long from, ObjLongConsumer<LogData> visitor);
+
     protected abstract void backendStreamWrite(UUID streamID, RangeSet<Long> entry);
 
     protected abstract RangeSet<Long> backendStreamRead(UUID streamID);
@@ -4,9 +4,12 @@ import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
 import org.corfudb.protocols.wireprotocol.LogData;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Created by maithem on 7/21/16.
@@ -28,6 +31,14 @@ public class InMemoryLog extends AbstractLocalLog {
         return cache.get(address);
     }
 
+    protected List<Runnable> backendScans(long from, ObjLongConsumer<LogData> visitor) {
+        return Collections.singletonList(() -> cache.forEach((address, entry) -> {
+            if (address >= from) {
+                visitor.accept(entry, address);
+            }
+        }));
+    }
+
     protected void initializeLog() {
         // no-op
     }
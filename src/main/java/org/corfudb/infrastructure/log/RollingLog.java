@@ -23,18 +23,35 @@ import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ObjLongConsumer;
 
 /**
  * Created by maithem on 7/15/16.
+ * <p>
+ * A log which is stored in a set of memory-mapped files, each holding 10,000 addresses.
+ * <p>
+ * Writes are handled in one of three modes:
+ * <ul>
+ * <li>sync - the entry is copied into the file before the write returns.</li>
+ * <li>write-back - the entry is copied into the file before the write returns, but is only
+ * forced to disk later. The unflushed data of all the logs sharing a {@link WriteBackFlusher}
+ * is bounded by its maxDirtyBytes (writers are throttled and flush once the bound is reached)
+ * and by its maxDirtyAge (its flusher forces any data older than this many milliseconds).</li>
+ * <li>async - the entry is copied into the file asynchronously, and is never explicitly forced.</li>
+ * </ul>
+ * Write-back mode is enabled by passing a write-back flusher to a log which is not sync.
  */
 
 @Slf4j
@@ -42,9 +59,77 @@ public class RollingLog extends AbstractLocalLog {
 
     private final Map<Long, FileHandle> channelMap;
 
+    /**
+     * The flusher whose budget the unflushed writes of this log count against,
+     * or null if write-back mode is disabled.
+     */
+    @Getter
+    private final WriteBackFlusher writeBack;
+
+    /**
+     * The number of bytes which have been written to this log but not yet forced to disk.
+     */
+    private final AtomicLong dirtyBytes = new AtomicLong();
+
+    /**
+     * The time (in milliseconds) the oldest unflushed write was made, or 0 if there are no unflushed writes.
+     */
+    private final AtomicLong oldestDirtyTime = new AtomicLong();
+
+    /**
+     * The file handles which contain writes that have not yet been forced to disk, keyed by file number.
+     */
+    private final Map<Long, FileHandle> dirtyHandles = new ConcurrentHashMap<>();
+
     public RollingLog(long start, long end, String path, boolean sync) {
+        this(start, end, path, sync, null);
+    }
+
+    public RollingLog(long start, long end, String path, boolean sync, WriteBackFlusher writeBack) {
         super(start, end, path, sync);
         channelMap = new HashMap<>();
+        this.writeBack = sync ? null : writeBack;
+        if (isWriteBack()) {
+            this.writeBack.register(this);
+        }
+    }
+
+    /**
+     * Whether or not this log is in write-back mode.
+     *
+     * @return True, if writes are acknowledged before being forced, with bounded dirty data.
+     */
+    public boolean isWriteBack() {
+        return writeBack != null;
+    }
+
+    /**
+     * Writes in async mode are applied to the file after write() returns, so they
+     * may not be visible to an immediate read.
+     *
+     * @return True, if this log is in sync or write-back mode.
+     */
+    @Override
+    public boolean isReadYourWrites() {
+        return sync || isWriteBack();
+    }
+
+    /**
+     * Get the number of bytes which have been written to this log but not yet forced to disk.
+     *
+     * @return The number of dirty bytes.
+     */
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * Get the time (in milliseconds) the oldest unflushed write was made.
+     *
+     * @return The time of the oldest dirty write, or 0 if there are no unflushed writes.
+     */
+    long getOldestDirtyTime() {
+        return oldestDirtyTime.get();
     }
 
     /**
@@ -96,18 +181,64 @@ public class RollingLog extends AbstractLocalLog {
                     log.error("Read a log entry but the write was torn, aborting!");
                     throw new IOException("Torn write detected!");
                 }
-                int metadataMapSize = o.getInt();
-                ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
-                o.position(o.position() + metadataMapSize);
-                ByteBuffer dBuf = o.slice();
-                dBuf.limit(size - metadataMapSize - 24);
-                return new LogData(Unpooled.wrappedBuffer(dBuf),
-                        ICorfuPayload.enumMapFromBuffer(mBuf, IMetadata.LogUnitMetadataType.class, Object.class));
+                return parseEntry(o, size);
             }
         }
         return null;
     }
 
+    /**
+     * Parse the body of a log entry, which follows the magic, flags, address and size of its header.
+     *
+     * @param o    A buffer positioned at the body of the entry.
+     * @param size The size of the entry, from its header.
+     * @return The log unit entry.
+     */
+    private static LogData parseEntry(ByteBuffer o, int size) {
+        int metadataMapSize = o.getInt();
+        ByteBuf mBuf = Unpooled.wrappedBuffer(o.slice());
+        o.position(o.position() + metadataMapSize);
+        ByteBuffer dBuf = o.slice();
+        dBuf.limit(size - metadataMapSize - 24);
+        return new LogData(Unpooled.wrappedBuffer(dBuf),
+                ICorfuPayload.enumMapFromBuffer(mBuf, IMetadata.LogUnitMetadataType.class, Object.class));
+    }
+
+    /**
+     * Visit the entries of a log file at or after an address, reading the file once.
+     * Entries whose write did not complete are skipped.
+     *
+     * @param path    The path of the file.
+     * @param from    The first address to visit.
+     * @param visitor The visitor of the entries.
+     */
+    private static void scanFile(Path path, long from, ObjLongConsumer<LogData> visitor) {
+        try (FileChannel fc = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (fc.size() <= 64) {
+                return;
+            }
+            ByteBuffer o = fc.map(FileChannel.MapMode.READ_ONLY, 0L, Math.min(fc.size(), Integer.MAX_VALUE));
+            o.position(64);
+            while (o.remaining() >= 16) {
+                int start = o.position();
+                short magic = o.getShort();
+                short flags = o.getShort();
+                long addr = o.getLong();
+                int size = o.getInt();
+                if (magic != 0x4C45 || size < 24 || size > o.limit() - start) {
+                    return;
+                }
+                if (addr >= from && flags % 2 != 0) {
+                    visitor.accept(parseEntry(o, size), addr);
+                }
+                o.position(start + size);
+            }
+        } catch (IOException e) {
+            log.error("Error scanning file {}", path, e);
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Gets the file channel for a particular address, creating it
      * if is not present in the map.
@@ -156,8 +287,9 @@ public class RollingLog extends AbstractLocalLog {
      * @param fh      The file handle to use.
      * @param address The address of the entry.
      * @param entry   The LogUnitEntry to write.
+     * @return The number of bytes written to the file.
      */
-    private void writeEntry(FileHandle fh, long address, LogData entry)
+    private int writeEntry(FileHandle fh, long address, LogData entry)
             throws IOException {
         ByteBuf metadataBuffer = Unpooled.buffer();
         ICorfuPayload.serialize(metadataBuffer, entry.getMetadataMap());
@@ -173,6 +305,53 @@ public class RollingLog extends AbstractLocalLog {
         metadataBuffer.release();
         o.putShort(2, (short) 1); // written flag
         o.flip();
+        return entrySize;
+    }
+
+    /**
+     * Record that a file handle contains data which has not been forced to disk.
+     * The handle is registered before the bytes are counted, so that any bytes
+     * seen by a flush belong to a handle that flush will force.
+     *
+     * @param address The address which was written.
+     * @param fh      The file handle which was written to.
+     * @param bytes   The number of bytes written.
+     */
+    private void markDirty(long address, FileHandle fh, int bytes) {
+        dirtyHandles.put(address / 10000, fh);
+        oldestDirtyTime.compareAndSet(0L, System.currentTimeMillis());
+        dirtyBytes.addAndGet(bytes);
+        writeBack.addDirtyBytes(bytes);
+    }
+
+    /**
+     * Force all dirty file handles to disk.
+     */
+    @Override
+    public synchronized void sync() {
+        long flushed = dirtyBytes.get();
+        if (flushed == 0L && dirtyHandles.isEmpty()) {
+            return;
+        }
+        oldestDirtyTime.set(0L);
+        for (Iterator<FileHandle> it = dirtyHandles.values().iterator(); it.hasNext(); ) {
+            FileHandle fh = it.next();
+            it.remove();
+            fh.getByteBuffer().force();
+        }
+        dirtyBytes.addAndGet(-flushed);
+        if (writeBack != null) {
+            writeBack.addDirtyBytes(-flushed);
+        }
+        log.trace("Flushed {} dirty bytes to disk.", flushed);
+    }
+
+    @Override
+    public void close() {
+        if (writeBack != null) {
+            writeBack.unregister(this);
+        }
+        sync();
     }
 
     protected void backendWrite(long address, LogData entry) {
@@ -185,6 +364,9 @@ public class RollingLog extends AbstractLocalLog {
                 fh.getKnownAddresses().add(address);
                 if (sync) {
                     writeEntry(fh, address, entry);
+                } else if (isWriteBack()) {
+                    writeBack.throttle();
+                    markDirty(address, fh, writeEntry(fh, address, entry));
                 } else {
                     CompletableFuture.runAsync(() -> {
                         try {
@@ -212,6 +394,32 @@ public class RollingLog extends AbstractLocalLog {
         }
     }
 
+    /**
+     * Get one scan for each file of the log which may hold addresses at or after an address.
+     * Files are opened read-only by the scans, and are not added to the open file handles.
+     */
+    protected List<Runnable> backendScans(long from, ObjLongConsumer<LogData> visitor) {
+        File prefix = new File(logPathDir).getAbsoluteFile();
+        File[] files = prefix.getParentFile().listFiles();
+        List<Runnable> scans = new ArrayList<>();
+        if (files == null) {
+            return scans;
+        }
+        for (File file : files) {
+            if (!file.isFile() || !file.getName().startsWith(prefix.getName())) {
+                continue;
+            }
+            String fileNumber = file.getName().substring(prefix.getName().length());
+            if (fileNumber.isEmpty() || !fileNumber.chars().allMatch(Character::isDigit)) {
+                continue;
+            }
+            if ((Long.parseLong(fileNumber) + 1) * 10000 > from) {
+                scans.add(() -> scanFile(file.toPath(), from, visitor));
+            }
+        }
+        return scans;
+    }
+
     protected void initializeLog() {
 
     }
@@ -0,0 +1,136 @@
+package org.corfudb.infrastructure.log;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The dirty data budget and background flusher shared by the rolling logs of a log unit
+ * in write-back mode.
+ * <p>
+ * The logs of a server (its global log and the log of every Replex stream) count their
+ * unflushed writes against one budget of maxDirtyBytes, so the unflushed data of the server
+ * is bounded no matter how many logs it has. Once the budget is used up, writers are
+ * throttled: they force every log to disk before continuing. A single flusher thread forces
+ * the logs whose oldest unflushed write is older than maxDirtyAge milliseconds.
+ */
+@Slf4j
+public class WriteBackFlusher {
+
+    /**
+     * The maximum number of bytes which may be written but not yet forced to disk.
+     */
+    @Getter
+    private final long maxDirtyBytes;
+
+    /**
+     * The maximum time, in milliseconds, that written data may wait before being forced to disk.
+     */
+    @Getter
+    private final long maxDirtyAge;
+
+    /**
+     * The number of bytes which have been written to any of the logs but not yet forced to disk.
+     */
+    private final AtomicLong dirtyBytes = new AtomicLong();
+
+    /**
+     * The number of writes which found the budget used up and had to flush.
+     */
+    private final LongAdder throttledWrites = new LongAdder();
+
+    private final Set<RollingLog> logs = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService flusher;
+
+    public WriteBackFlusher(long maxDirtyBytes, long maxDirtyAge) {
+        this.maxDirtyBytes = maxDirtyBytes;
+        this.maxDirtyAge = maxDirtyAge;
+        long period = Math.max(1L, maxDirtyAge / 4);
+        flusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("LogUnit-Flusher-%d")
+                .build());
+        flusher.scheduleAtFixedRate(this::flushExpired, period, period, TimeUnit.MILLISECONDS);
+        log.info("Write-back mode enabled (max dirty bytes={}, max dirty age={} ms)", maxDirtyBytes, maxDirtyAge);
+    }
+
+    /**
+     * Get the number of bytes which have been written to any of the logs but not yet forced to disk.
+     *
+     * @return The number of dirty bytes.
+     */
+    public long getDirtyBytes() {
+        return dirtyBytes.get();
+    }
+
+    /**
+     * Get the number of writes which were throttled because the budget was used up.
+     *
+     * @return The number of throttled writes.
+     */
+    public long getThrottledWrites() {
+        return throttledWrites.sum();
+    }
+
+    void register(RollingLog rollingLog) {
+        logs.add(rollingLog);
+    }
+
+    void unregister(RollingLog rollingLog) {
+        logs.remove(rollingLog);
+    }
+
+    /**
+     * Count bytes written to a log, or forced to disk if negative, against the budget.
+     *
+     * @param bytes The number of bytes.
+     */
+    void addDirtyBytes(long bytes) {
+        dirtyBytes.addAndGet(bytes);
+    }
+
+    /**
+     * Throttle a writer. If the budget has been used up, the writer forces the dirty
+     * data of every log to disk itself before continuing.
+     */
+    void throttle() {
+        if (dirtyBytes.get() >= maxDirtyBytes) {
+            log.trace("Dirty limit reached ({} >= {}), throttling writer.", dirtyBytes.get(), maxDirtyBytes);
+            throttledWrites.increment();
+            logs.forEach(RollingLog::sync);
+        }
+    }
+
+    /**
+     * Run by the flusher thread: force the logs whose oldest dirty write has exceeded the maximum dirty age.
+     */
+    private void flushExpired() {
+        long now = System.currentTimeMillis();
+        for (RollingLog rollingLog : logs) {
+            try {
+                long oldest = rollingLog.getOldestDirtyTime();
+                if (oldest != 0L && now - oldest >= maxDirtyAge) {
+                    rollingLog.sync();
+                }
+            } catch (Exception e) {
+                log.error("Background flush failed", e);
+            }
+        }
+    }
+
+    /**
+     * Stop the flusher thread. Logs which are still open are not forced; closing them does.
+     */
+    public void shutdown() {
+        flusher.shutdownNow();
+    }
+}
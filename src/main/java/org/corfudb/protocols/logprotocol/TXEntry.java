@@ -13,6 +13,7 @@ import org.corfudb.util.serializer.ICorfuSerializable;
 import org.corfudb.util.serializer.Serializers;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -23,7 +24,7 @@ import java.util.stream.Collectors;
 /**
  * Created by mwei on 1/11/16.
  */
-@ToString(exclude = "aborted")
+@ToString(exclude = {"aborted", "conflictKeys", "writeKeys"})
 @NoArgsConstructor
 @Slf4j
 public class TXEntry extends LogEntry implements ISMRConsumable {
@@ -35,6 +36,20 @@ public class TXEntry extends LogEntry implements ISMRConsumable {
     @Getter
     @Setter
     private transient boolean aborted;
+    /**
+     * The hashed conflict keys the transaction accessed, by stream. Sent to the
+     * sequencer when the entry is written, but not written to the log.
+     */
+    @Getter
+    @Setter
+    private transient Map<UUID, Set<Long>> conflictKeys = Collections.emptyMap();
+    /**
+     * The hashed conflict keys the transaction wrote, by stream, which are a subset of
+     * its conflict keys. Sent to the sequencer with them.
+     */
+    @Getter
+    @Setter
+    private transient Map<UUID, Set<Long>> writeKeys = Collections.emptyMap();
 
     public TXEntry(@NonNull Map<UUID, TXObjectEntry> txMap, long readTimestamp) {
         this.type = LogEntryType.TX;
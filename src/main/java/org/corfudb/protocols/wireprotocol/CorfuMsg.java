@@ -24,6 +24,18 @@ public class CorfuMsg {
      * Marker field value, should equal 0xC0FC0FC0
      */
     final static int markerField = 0xC0FC0FC0;
+    /**
+     * Marker of the compact header, version 1. The first byte of the legacy marker is 0xC0.
+     */
+    final static byte compactMarkerV1 = (byte) 0xC1;
+    /**
+     * Flag of the compact header, set when it carries the client ID.
+     */
+    final static byte FLAG_CLIENT_ID = 0x1;
+    /**
+     * The client ID of messages which have none.
+     */
+    final static UUID emptyClientID = new UUID(0L, 0L);
     static Map<Byte, CorfuMsgType> typeMap =
             Arrays.<CorfuMsgType>stream(CorfuMsgType.values())
                     .collect(Collectors.toMap(CorfuMsgType::asByte, Function.identity()));
@@ -40,7 +52,9 @@ public class CorfuMsg {
      */
     long epoch;
     /**
-     * The underlying ByteBuf, if present.
+     * The underlying ByteBuf, if present. For a received message, the buffer it was
+     * read from. For a message being sent, a buffer the message holds a reference to
+     * until it is written, which the sender releases.
      */
     ByteBuf buf;
 
@@ -60,10 +74,18 @@ public class CorfuMsg {
         this.msgType = type;
     }
 
-        /* The wire format of the NettyCorfuMessage message is below:
-        markerField(1) | client ID(8) | request ID(8) |  epoch(8)   |  type(1)  |
-*/
+    /* The wire formats of the header are described in HeaderFormat. */
 
+    /**
+     * Get the header format of the message in the given buffer, without reading it.
+     *
+     * @param buffer The buffer which holds the message.
+     * @return The format of the header of the message.
+     */
+    public static HeaderFormat getHeaderFormat(ByteBuf buffer) {
+        return buffer.getByte(buffer.readerIndex()) == compactMarkerV1
+                ? HeaderFormat.COMPACT : HeaderFormat.LEGACY;
+    }
 
     /**
      * Take the given bytebuffer and deserialize it into a message.
@@ -72,15 +94,44 @@ public class CorfuMsg {
      * @return The corresponding message.
      */
     public static CorfuMsg deserialize(ByteBuf buffer) {
-        int marker = buffer.readInt();
-        if (marker != markerField) {
-            throw new RuntimeException("Attempt to deserialize a message which is not a CorfuMsg, "
-                    + "Marker = " + marker + " but expected 0xC0FC0FC0");
+        return deserialize(buffer, null);
+    }
+
+    /**
+     * Take the given bytebuffer and deserialize it into a message, with either header format.
+     *
+     * @param buffer   The buffer to deserialize.
+     * @param clientID The client ID of the connection, for compact headers which do not carry
+     *                 one, or null if none has been received.
+     * @return The corresponding message.
+     */
+    public static CorfuMsg deserialize(ByteBuf buffer, UUID clientID) {
+        long requestID;
+        long epoch;
+        CorfuMsgType message;
+        if (getHeaderFormat(buffer) == HeaderFormat.COMPACT) {
+            buffer.skipBytes(1);
+            byte flags = buffer.readByte();
+            message = typeMap.get(buffer.readByte());
+            if ((flags & FLAG_CLIENT_ID) != 0) {
+                clientID = new UUID(buffer.readLong(), buffer.readLong());
+            } else if (clientID == null) {
+                throw new RuntimeException("Attempt to deserialize a compact CorfuMsg "
+                        + "before the client ID of the connection was received");
+            }
+            requestID = readVarLong(buffer);
+            epoch = zigZagDecode(readVarLong(buffer));
+        } else {
+            int marker = buffer.readInt();
+            if (marker != markerField) {
+                throw new RuntimeException("Attempt to deserialize a message which is not a CorfuMsg, "
+                        + "Marker = " + marker + " but expected 0xC0FC0FC0");
+            }
+            clientID = new UUID(buffer.readLong(), buffer.readLong());
+            requestID = buffer.readLong();
+            epoch = buffer.readLong();
+            message = typeMap.get(buffer.readByte());
         }
-        UUID clientID = new UUID(buffer.readLong(), buffer.readLong());
-        long requestID = buffer.readLong();
-        long epoch = buffer.readLong();
-        CorfuMsgType message = typeMap.get(buffer.readByte());
         CorfuMsg msg = message.getConstructor().construct();
         msg.clientID = clientID;
         msg.requestID = requestID;
@@ -92,7 +143,7 @@ public class CorfuMsg {
     }
 
     /**
-     * Serialize the message into the given bytebuffer.
+     * Serialize the message into the given bytebuffer, with the legacy header.
      *
      * @param buffer The buffer to serialize to.
      */
@@ -108,6 +159,74 @@ public class CorfuMsg {
         buffer.writeLong(requestID);
         buffer.writeLong(epoch);
         buffer.writeByte(msgType.asByte());
+        serializePayload(buffer);
+    }
+
+    /**
+     * Serialize the message into the given bytebuffer, with the compact header.
+     *
+     * @param buffer       The buffer to serialize to.
+     * @param withClientID Whether to send the client ID, which the receiver otherwise
+     *                     takes from an earlier message of the connection.
+     */
+    public void serializeCompact(ByteBuf buffer, boolean withClientID) {
+        buffer.writeByte(compactMarkerV1);
+        buffer.writeByte(withClientID ? FLAG_CLIENT_ID : 0);
+        buffer.writeByte(msgType.asByte());
+        if (withClientID) {
+            UUID id = getClientIDOrEmpty();
+            buffer.writeLong(id.getMostSignificantBits());
+            buffer.writeLong(id.getLeastSignificantBits());
+        }
+        writeVarLong(buffer, requestID);
+        writeVarLong(buffer, zigZagEncode(epoch));
+        serializePayload(buffer);
+    }
+
+    /**
+     * Serialize the rest of the message into the buffer. Classes that extend CorfuMsg
+     * should serialize their fields in this method.
+     *
+     * @param buffer The buffer to serialize to.
+     */
+    public void serializePayload(ByteBuf buffer) {
+        // we don't do anything here since in the base message, no fields remain.
+    }
+
+    /**
+     * @return The client ID of this message, as it is received: messages without one
+     * are received with an ID of all zeroes.
+     */
+    public UUID getClientIDOrEmpty() {
+        return clientID == null ? emptyClientID : clientID;
+    }
+
+    static void writeVarLong(ByteBuf buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer.writeByte((int) value);
+    }
+
+    static long readVarLong(ByteBuf buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.readByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new RuntimeException("Malformed varint in CorfuMsg header");
+    }
+
+    static long zigZagEncode(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static long zigZagDecode(long value) {
+        return (value >>> 1) ^ -(value & 1);
     }
 
     /**
@@ -46,6 +46,11 @@ public enum CorfuMsgType {
     // Sequencer Messages
     TOKEN_REQ(20, new TypeToken<CorfuPayloadMsg<TokenRequest>>(){}, SequencerServer.class),
     TOKEN_RES(21, new TypeToken<CorfuPayloadMsg<TokenResponse>>(){}, SequencerServer.class),
+    TOKEN_MULTI_REQ(22, new TypeToken<CorfuPayloadMsg<MultiTokenRequest>>(){}, SequencerServer.class),
+    TOKEN_MULTI_RES(23, new TypeToken<CorfuPayloadMsg<MultiTokenResponse>>(){}, SequencerServer.class),
+    STREAM_SUBSCRIBE(24, new TypeToken<CorfuPayloadMsg<StreamSubscription>>(){}, SequencerServer.class),
+    STREAM_TAILS(25, new TypeToken<CorfuPayloadMsg<StreamTails>>(){}, SequencerServer.class),
+    STREAM_TAILS_NOTIFY(26, new TypeToken<CorfuPayloadMsg<StreamTails>>(){}, SequencerServer.class),
 
     // Logging Unit Messages
     WRITE(30, new TypeToken<CorfuPayloadMsg<WriteRequest>>() {}, LogUnitServer.class),
@@ -68,6 +73,7 @@ public enum CorfuMsgType {
     ERROR_RANK(54, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
     ERROR_NOENTRY(55, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
     ERROR_REPLEX_OVERWRITE(56, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
+    ERROR_SERVER_EXCEPTION(57, TypeToken.of(CorfuMsg.class), LogUnitServer.class),
 
     // EXTRA CODES
     LAYOUT_ALREADY_BOOTSTRAP(60, TypeToken.of(CorfuMsg.class), LayoutServer.class),
@@ -96,6 +102,10 @@ public enum CorfuMsgType {
     @Getter(lazy=true)
     private final MessageConstructor<? extends CorfuMsg> constructor = resolveConstructor();
 
+    /** The constructor of the payload of this message type, if it is a CorfuPayloadMsg. */
+    @Getter(lazy=true)
+    private final ICorfuPayload.PayloadConstructor<?> payloadConstructor = resolvePayloadConstructor();
+
     public byte asByte() {
         return (byte) type;
     }
@@ -126,4 +136,12 @@ public enum CorfuMsgType {
         }
     }
 
-}
\ No newline at end of file
+    /** Resolve the constructor of the payload from the type argument of CorfuPayloadMsg. */
+    private ICorfuPayload.PayloadConstructor<?> resolvePayloadConstructor() {
+        if (!CorfuPayloadMsg.class.isAssignableFrom(messageType.getRawType())) {
+            throw new UnsupportedOperationException(this + " does not have a payload");
+        }
+        return ICorfuPayload.getConstructor(messageType
+                .resolveType(CorfuPayloadMsg.class.getTypeParameters()[0]).getRawType());
+    }
+}
@@ -4,8 +4,6 @@ import io.netty.buffer.ByteBuf;
 import lombok.Getter;
 import lombok.NoArgsConstructor;
 
-import java.lang.reflect.ParameterizedType;
-
 /**
  * A message type which represents an encapsulated Corfu
  * payload.
@@ -34,27 +32,26 @@ public class CorfuPayloadMsg<T> extends CorfuMsg {
     }
 
     /**
-     * Serialize the message into the given bytebuffer.
+     * Serialize the rest of the message into the given bytebuffer.
      *
      * @param buffer The buffer to serialize to.
      */
     @Override
-    public void serialize(ByteBuf buffer) {
-        super.serialize(buffer);
+    public void serializePayload(ByteBuf buffer) {
+        super.serializePayload(buffer);
         ICorfuPayload.serialize(buffer, payload);
     }
 
     /**
      * Parse the rest of the message from the buffer. Classes that extend CorfuMsg
-     * should parse their fields in this method.
+     * should parse their fields in this method. The payload constructor is resolved
+     * once per message type.
      *
      * @param buffer
      */
     @Override
     @SuppressWarnings("unchecked")
     public void fromBuffer(ByteBuf buffer) {
-        payload = (T) ICorfuPayload.fromBuffer(buffer,
-                (Class)((ParameterizedType)msgType.messageType.getType())
-                        .getActualTypeArguments()[0]);
+        payload = (T) msgType.getPayloadConstructor().construct(buffer);
     }
 }
@@ -0,0 +1,21 @@
+package org.corfudb.protocols.wireprotocol;
+
+/**
+ * The formats of the header of a CorfuMsg on the wire. A decoder accepts both, so a
+ * connection may switch formats at any message.
+ */
+public enum HeaderFormat {
+    /**
+     * The original fixed header of 37 bytes:
+     * marker(4) | client ID(16) | request ID(8) | epoch(8) | type(1)
+     */
+    LEGACY,
+    /**
+     * The compact header, version 1, of 5 bytes or more:
+     * marker(1) | flags(1) | type(1) | [client ID(16)] | request ID(varint) | epoch(zigzag varint)
+     * <p>
+     * The client ID is only sent in the first message of a connection, or when it
+     * changes. The receiver applies it to the messages which follow.
+     */
+    COMPACT
+}
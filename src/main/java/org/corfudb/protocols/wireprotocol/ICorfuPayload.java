@@ -11,6 +11,7 @@ import java.lang.invoke.*;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -35,9 +36,9 @@ public interface ICorfuPayload<T> {
                 .put(Float.class, ByteBuf::readFloat)
                 .put(String.class, x -> {
                     int numBytes = x.readInt();
-                    byte[] bytes = new byte[numBytes];
-                    x.readBytes(bytes);
-                    return new String(bytes);
+                    String s = x.toString(x.readerIndex(), numBytes, StandardCharsets.UTF_8);
+                    x.skipBytes(numBytes);
+                    return s;
                 })
                 .put(UUID.class, x -> new UUID(x.readLong(), x.readLong()))
                 .put(ByteBuf.class, x -> {
@@ -58,42 +59,55 @@ public interface ICorfuPayload<T> {
 
     @SuppressWarnings("unchecked")
     static <T> T fromBuffer(ByteBuf buf, Class<T> cls) {
-        if (constructorMap.containsKey(cls)) {
-            return (T) constructorMap.get(cls).construct(buf);
+        return getConstructor(cls).construct(buf);
+    }
+
+    /**
+     * Get the constructor which decodes values of a class. Constructors are built once per
+     * class, so callers which decode many values of the same class, or the same class in
+     * every message, should get the constructor once and reuse it.
+     *
+     * @param cls   The class to decode.
+     * @param <T>   The type to decode.
+     * @return      A constructor which decodes a value of the class from a buffer.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> PayloadConstructor<T> getConstructor(Class<T> cls) {
+        PayloadConstructor<T> constructor = (PayloadConstructor<T>) constructorMap.get(cls);
+        if (constructor != null) {
+            return constructor;
         }
-        else {
-            if (cls.isEnum()) {
-                // we only know how to deal with enums with a typemap...
-                try {
-                    Map<Byte, T> enumMap = (Map<Byte, T>) cls.getDeclaredField("typeMap").get(null);
-                    constructorMap.put(cls, x -> enumMap.get(x.readByte()));
-                    return (T) constructorMap.get(cls).construct(buf);
-                } catch (NoSuchFieldException e) {
-                    throw new RuntimeException("only enums with a typeMap are supported!");
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
-                }
+        if (cls.isEnum()) {
+            // we only know how to deal with enums with a typemap...
+            try {
+                Map<Byte, T> enumMap = (Map<Byte, T>) cls.getDeclaredField("typeMap").get(null);
+                constructorMap.putIfAbsent(cls, x -> enumMap.get(x.readByte()));
+                return (PayloadConstructor<T>) constructorMap.get(cls);
+            } catch (NoSuchFieldException e) {
+                throw new RuntimeException("only enums with a typeMap are supported!");
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
             }
-            if (ICorfuPayload.class.isAssignableFrom(cls)) {
-                // Grab the constructor and get convert it to a lambda.
+        }
+        if (ICorfuPayload.class.isAssignableFrom(cls)) {
+            // Grab the constructor and get convert it to a lambda.
+            try {
+                Constructor t = cls.getConstructor(ByteBuf.class);
+                MethodHandle mh = lookup.unreflectConstructor(t);
+                MethodType mt = MethodType.methodType(Object.class, ByteBuf.class);
                 try {
-                    Constructor t = cls.getConstructor(ByteBuf.class);
-                    MethodHandle mh = lookup.unreflectConstructor(t);
-                    MethodType mt = MethodType.methodType(Object.class, ByteBuf.class);
-                    try {
-                        constructorMap.put(cls, (PayloadConstructor<T>) LambdaMetafactory.metafactory(lookup,
-                                "construct", MethodType.methodType(PayloadConstructor.class),
-                                mt, mh, mh.type())
-                                .getTarget().invokeExact());
-                        return (T) constructorMap.get(cls).construct(buf);
-                    } catch (Throwable th) {
-                        throw new RuntimeException(th);
-                    }
-                } catch (NoSuchMethodException nsme) {
-                    throw new RuntimeException("CorfuPayloads must include a ByteBuf constructor!");
-                } catch (IllegalAccessException e) {
-                    throw new RuntimeException(e);
+                    constructorMap.putIfAbsent(cls, (PayloadConstructor<T>) LambdaMetafactory.metafactory(lookup,
+                            "construct", MethodType.methodType(PayloadConstructor.class),
+                            mt, mh, mh.type())
+                            .getTarget().invokeExact());
+                    return (PayloadConstructor<T>) constructorMap.get(cls);
+                } catch (Throwable th) {
+                    throw new RuntimeException(th);
                 }
+            } catch (NoSuchMethodException nsme) {
+                throw new RuntimeException("CorfuPayloads must include a ByteBuf constructor!");
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException(e);
             }
         }
 
@@ -102,6 +116,7 @@ public interface ICorfuPayload<T> {
 
     /** A really simple flat map implementation. The first entry is the size of the map as an int,
      * and the next entries are each key followed by its value. Maps of maps are currently not supported...
+     * The map is sized for its entries up front, and is unmodifiable.
      * @param buf        The buffer to deserialize.
      * @param keyClass      The class of the keys.
      * @param valueClass    The class of the values.
@@ -111,11 +126,16 @@ public interface ICorfuPayload<T> {
      */
     static <K,V> Map<K,V> mapFromBuffer(ByteBuf buf, Class<K> keyClass, Class<V> valueClass) {
         int numEntries = buf.readInt();
-        ImmutableMap.Builder<K,V> builder = ImmutableMap.builder();
+        if (numEntries == 0) {
+            return Collections.emptyMap();
+        }
+        PayloadConstructor<K> keyConstructor = getConstructor(keyClass);
+        PayloadConstructor<V> valueConstructor = getConstructor(valueClass);
+        Map<K,V> map = Maps.newHashMapWithExpectedSize(numEntries);
         for (int i = 0; i < numEntries; i++) {
-            builder.put(fromBuffer(buf, keyClass), fromBuffer(buf, valueClass));
+            map.put(keyConstructor.construct(buf), valueConstructor.construct(buf));
         }
-        return builder.build();
+        return Collections.unmodifiableMap(map);
     }
 
     /** A really simple flat set implementation. The first entry is the size of the set as an int,
@@ -127,11 +147,15 @@ public interface ICorfuPayload<T> {
      */
     static <V> Set<V> setFromBuffer(ByteBuf buf, Class<V> valueClass) {
         int numEntries = buf.readInt();
-        ImmutableSet.Builder<V> builder = ImmutableSet.builder();
+        if (numEntries == 0) {
+            return Collections.emptySet();
+        }
+        PayloadConstructor<V> valueConstructor = getConstructor(valueClass);
+        Set<V> set = Sets.newHashSetWithExpectedSize(numEntries);
         for (int i = 0; i < numEntries; i++) {
-            builder.add(fromBuffer(buf, valueClass));
+            set.add(valueConstructor.construct(buf));
         }
-        return builder.build();
+        return Collections.unmodifiableSet(set);
     }
 
     /** A really simple flat list implementation. The first entry is the size of the set as an int,
@@ -190,9 +214,10 @@ public interface ICorfuPayload<T> {
         EnumMap<K, V> metadataMap =
                 new EnumMap<>(keyClass);
         byte numEntries = buf.readByte();
+        PayloadConstructor<K> keyConstructor = getConstructor(keyClass);
         while (numEntries > 0 && buf.isReadable()) {
-            K type = fromBuffer(buf, keyClass);
-            V value = (V)fromBuffer(buf, type.getComponentType());
+            K type = keyConstructor.construct(buf);
+            V value = (V) type.getComponentConstructor().construct(buf);
             metadataMap.put(type, value);
             numEntries--;
         }
@@ -201,14 +226,29 @@ public interface ICorfuPayload<T> {
 
     @SuppressWarnings("unchecked")
     static <T> T fromBuffer(ByteBuf buf, TypeToken<T> token) {
+        return getConstructor(token).construct(buf);
+    }
+
+    /**
+     * Get a constructor for a type which may be a map or a set. The type arguments are
+     * resolved when the constructor is built, not each time it decodes a value.
+     *
+     * @param token The type to decode.
+     * @param <T>   The type to decode.
+     * @return      A constructor which decodes a value of the type from a buffer.
+     */
+    @SuppressWarnings("unchecked")
+    static <T> PayloadConstructor<T> getConstructor(TypeToken<T> token) {
         Class<?> rawType = token.getRawType();
         if (rawType.isAssignableFrom(Map.class)) {
-            return (T) mapFromBuffer(buf, token.resolveType(Map.class.getTypeParameters()[0]).getRawType(),
-                    token.resolveType(Map.class.getTypeParameters()[1]).getRawType());
+            Class<?> keyClass = token.resolveType(Map.class.getTypeParameters()[0]).getRawType();
+            Class<?> valueClass = token.resolveType(Map.class.getTypeParameters()[1]).getRawType();
+            return buf -> (T) mapFromBuffer(buf, keyClass, valueClass);
         } else if (rawType.isAssignableFrom(Set.class)) {
-            return (T) setFromBuffer(buf, token.resolveType(Set.class.getTypeParameters()[0]).getRawType());
+            Class<?> valueClass = token.resolveType(Set.class.getTypeParameters()[0]).getRawType();
+            return buf -> (T) setFromBuffer(buf, valueClass);
         }
-        return (T) fromBuffer(buf, rawType);
+        return (PayloadConstructor<T>) getConstructor(rawType);
     }
 
     @SuppressWarnings("unchecked")
@@ -235,7 +275,7 @@ public interface ICorfuPayload<T> {
         }
         // and some standard non prims as well
         else if (payload instanceof String) {
-            byte[] s = ((String) payload).getBytes();
+            byte[] s = ((String) payload).getBytes(StandardCharsets.UTF_8);
             buffer.writeInt(s.length);
             buffer.writeBytes(s);
         } else if (payload instanceof UUID) {
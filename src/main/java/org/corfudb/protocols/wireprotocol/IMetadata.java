@@ -127,6 +127,9 @@ public interface IMetadata {
         final int type;
         @Getter
         final TypeToken<?> componentType;
+        @Getter(lazy = true)
+        private final ICorfuPayload.PayloadConstructor<?> componentConstructor =
+                ICorfuPayload.getConstructor(componentType);
 
         public byte asByte() {
             return (byte) type;
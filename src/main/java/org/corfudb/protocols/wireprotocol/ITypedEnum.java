@@ -9,6 +9,15 @@ import io.netty.buffer.ByteBuf;
 public interface ITypedEnum<T extends Enum<T>> extends ICorfuPayload<T>  {
 
     TypeToken<?> getComponentType();
+
+    /**
+     * @return A constructor which decodes values of the component type. Enums should
+     *         build it once, rather than on every call.
+     */
+    default ICorfuPayload.PayloadConstructor<?> getComponentConstructor() {
+        return ICorfuPayload.getConstructor(getComponentType());
+    }
+
     byte asByte();
 
     @Override
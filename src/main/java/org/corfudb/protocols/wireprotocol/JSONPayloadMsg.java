@@ -32,13 +32,13 @@ public class JSONPayloadMsg<T> extends CorfuMsg {
     }
 
     /**
-     * Serialize the message into the given bytebuffer.
+     * Serialize the rest of the message into the given bytebuffer.
      *
      * @param buffer The buffer to serialize to.
      */
     @Override
-    public void serialize(ByteBuf buffer) {
-        super.serialize(buffer);
+    public void serializePayload(ByteBuf buffer) {
+        super.serializePayload(buffer);
         byte[] b = parser.toJson(payload).getBytes();
         buffer.writeInt(b.length);
         buffer.writeBytes(b);
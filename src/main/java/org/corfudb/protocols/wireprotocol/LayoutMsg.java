@@ -32,13 +32,13 @@ public class LayoutMsg extends CorfuMsg {
     }
 
     /**
-     * Serialize the message into the given bytebuffer.
+     * Serialize the rest of the message into the given bytebuffer.
      *
      * @param buffer The buffer to serialize to.
      */
     @Override
-    public void serialize(ByteBuf buffer) {
-        super.serialize(buffer);
+    public void serializePayload(ByteBuf buffer) {
+        super.serializePayload(buffer);
         byte[] b = parser.toJson(layout).getBytes();
         buffer.writeInt(b.length);
         buffer.writeBytes(b);
@@ -22,13 +22,13 @@ public class LayoutRankMsg extends LayoutMsg {
     }
 
     /**
-     * Serialize the message into the given bytebuffer.
+     * Serialize the rest of the message into the given bytebuffer.
      *
      * @param buffer The buffer to serialize to.
      */
     @Override
-    public void serialize(ByteBuf buffer) {
-        super.serialize(buffer);
+    public void serializePayload(ByteBuf buffer) {
+        super.serializePayload(buffer);
         buffer.writeLong(rank);
     }
 
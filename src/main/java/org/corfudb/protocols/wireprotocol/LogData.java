@@ -23,11 +23,20 @@ public class LogData implements ICorfuPayload<LogData>, IMetadata, ILogData {
     @Getter
     final DataType type;
 
+    /**
+     * The serialized payload. A LogData owns one reference to it, which it releases once
+     * it deserializes the payload, or when it is released without reading the payload.
+     */
     @Getter
     final ByteBuf data;
 
     private transient final AtomicReference<Object> payload = new AtomicReference<>();
 
+    /**
+     * Whether the data was released without reading the payload. Guarded by payload.
+     */
+    private transient boolean released;
+
     public Object getPayload(CorfuRuntime runtime) {
         Object value = payload.get();
         if (value == null) {
@@ -36,6 +45,8 @@ public class LogData implements ICorfuPayload<LogData>, IMetadata, ILogData {
                 if (value == null) {
                     if (data == null) {
                         this.payload.set(null);
+                    } else if (released) {
+                        throw new IllegalStateException("The data of this entry was released");
                     }
                     else {
                         data.resetReaderIndex();
@@ -56,13 +67,28 @@ public class LogData implements ICorfuPayload<LogData>, IMetadata, ILogData {
         return value;
     }
 
+    /**
+     * Release the data of this LogData without reading its payload, unless the payload
+     * was read already. The payload can not be read afterwards.
+     */
+    public void release() {
+        synchronized (this.payload) {
+            if (payload.get() == null && data != null && !released) {
+                released = true;
+                data.release();
+            }
+        }
+    }
+
     @Getter
     final EnumMap<LogUnitMetadataType, Object> metadataMap;
 
     public LogData(ByteBuf buf) {
-        type = ICorfuPayload.fromBuffer(buf, DataType.class);
+        type = DataType.typeMap.get(buf.readByte());
         if (type == DataType.DATA) {
-            data = ICorfuPayload.fromBuffer(buf, ByteBuf.class);
+            int bytes = buf.readInt();
+            data = buf.retainedSlice(buf.readerIndex(), bytes);
+            buf.skipBytes(bytes);
             metadataMap =
                     ICorfuPayload.enumMapFromBuffer(buf,
                             IMetadata.LogUnitMetadataType.class, Object.class);
@@ -0,0 +1,27 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A batch of token requests, which the sequencer resolves in order.
+ */
+@Data
+@AllArgsConstructor
+public class MultiTokenRequest implements ICorfuPayload<MultiTokenRequest> {
+
+    /** The token requests, in the order they should be resolved. */
+    final List<TokenRequest> requests;
+
+    public MultiTokenRequest(ByteBuf buf) {
+        requests = ICorfuPayload.listFromBuffer(buf, TokenRequest.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, requests);
+    }
+}
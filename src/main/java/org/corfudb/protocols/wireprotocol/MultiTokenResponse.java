@@ -0,0 +1,27 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * The responses to a batch of token requests, in the order of the requests.
+ */
+@Data
+@AllArgsConstructor
+public class MultiTokenResponse implements ICorfuPayload<MultiTokenResponse> {
+
+    /** The token responses, one for each request of the batch. */
+    final List<TokenResponse> responses;
+
+    public MultiTokenResponse(ByteBuf buf) {
+        responses = ICorfuPayload.listFromBuffer(buf, TokenResponse.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, responses);
+    }
+}
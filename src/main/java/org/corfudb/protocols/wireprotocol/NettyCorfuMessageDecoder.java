@@ -4,9 +4,12 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.List;
+import java.util.UUID;
 
 /**
  * Created by mwei on 10/1/15.
@@ -14,9 +17,29 @@ import java.util.List;
 @Slf4j
 public class NettyCorfuMessageDecoder extends ByteToMessageDecoder {
 
+    /**
+     * The header format of the last message received on a channel.
+     */
+    public static final AttributeKey<HeaderFormat> PEER_HEADER_FORMAT =
+            AttributeKey.valueOf("peerHeaderFormat");
+
+    /**
+     * The client ID last received in a compact header on this channel.
+     */
+    UUID clientID;
+
     @Override
     protected void decode(ChannelHandlerContext channelHandlerContext, ByteBuf byteBuf, List<Object> list) throws Exception {
-        list.add(CorfuMsg.deserialize(byteBuf));
+        HeaderFormat format = CorfuMsg.getHeaderFormat(byteBuf);
+        Attribute<HeaderFormat> peerFormat = channelHandlerContext.channel().attr(PEER_HEADER_FORMAT);
+        if (peerFormat.get() != format) {
+            peerFormat.set(format);
+        }
+        CorfuMsg msg = CorfuMsg.deserialize(byteBuf, clientID);
+        if (format == HeaderFormat.COMPACT) {
+            clientID = msg.getClientID();
+        }
+        list.add(msg);
     }
 
     @Override
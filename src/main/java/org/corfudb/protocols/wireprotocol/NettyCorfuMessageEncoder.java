@@ -3,20 +3,62 @@ package org.corfudb.protocols.wireprotocol;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.MessageToByteEncoder;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+import java.util.UUID;
+
 /**
  * Created by mwei on 10/1/15.
  */
 @Slf4j
 public class NettyCorfuMessageEncoder extends MessageToByteEncoder<CorfuMsg> {
 
+    /**
+     * The header format to send, or null to send the format the peer last sent.
+     */
+    @Getter
+    @Setter
+    volatile HeaderFormat headerFormat;
+
+    /**
+     * The client ID last sent in a compact header on this channel.
+     */
+    UUID sentClientID;
+
+    /**
+     * Create an encoder which replies in the header format of the peer, and in the
+     * legacy format until the peer has sent a message.
+     */
+    public NettyCorfuMessageEncoder() {
+        this(null);
+    }
+
+    /**
+     * Create an encoder which sends the given header format.
+     *
+     * @param headerFormat The header format to send.
+     */
+    public NettyCorfuMessageEncoder(HeaderFormat headerFormat) {
+        this.headerFormat = headerFormat;
+    }
+
     @Override
     protected void encode(ChannelHandlerContext channelHandlerContext,
                           CorfuMsg corfuMsg,
                           ByteBuf byteBuf) throws Exception {
         try {
-            corfuMsg.serialize(byteBuf);
+            HeaderFormat format = headerFormat != null ? headerFormat
+                    : channelHandlerContext.channel().attr(NettyCorfuMessageDecoder.PEER_HEADER_FORMAT).get();
+            if (format == HeaderFormat.COMPACT) {
+                // The client ID is sent once, unless it changes.
+                UUID clientID = corfuMsg.getClientIDOrEmpty();
+                corfuMsg.serializeCompact(byteBuf, !clientID.equals(sentClientID));
+                sentClientID = clientID;
+            } else {
+                corfuMsg.serialize(byteBuf);
+            }
         } catch (Exception e) {
             log.error("Error during serialization!", e);
         }
@@ -0,0 +1,148 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import lombok.Getter;
+
+/**
+ * Consolidates the flushes of a channel, so many small messages written
+ * concurrently leave in one syscall and as few TCP segments as possible.
+ * <p>
+ * A flush requested while the channel is reading is deferred until the read
+ * completes, so the responses to all requests read at once are flushed
+ * together. Any other flush is deferred to a task on the event loop, which
+ * runs after the writes already queued on it by other threads, so each
+ * iteration of the event loop flushes at most once. Pending writes are
+ * flushed right away once there are maxPendingMessages of them, or
+ * maxPendingBytes of encoded data.
+ * <p>
+ * This handler should be the first outbound handler of the pipeline (added
+ * first), so it sees the encoded size of messages.
+ */
+public class NettyFlushConsolidator extends ChannelDuplexHandler {
+
+    public static final int DEFAULT_MAX_PENDING_MESSAGES = 256;
+
+    public static final int DEFAULT_MAX_PENDING_BYTES = 64 * 1024;
+
+    private final int maxPendingMessages;
+
+    private final int maxPendingBytes;
+
+    private int pendingMessages;
+
+    private long pendingBytes;
+
+    /** Whether a flush was requested and has not happened yet. */
+    private boolean flushPending;
+
+    /** Whether a flush task is queued on the event loop. */
+    private boolean flushScheduled;
+
+    private boolean reading;
+
+    /** The number of flushes which reached the channel. */
+    @Getter
+    private volatile long flushes;
+
+    /** The number of writes which reached the channel. */
+    @Getter
+    private volatile long writes;
+
+    public NettyFlushConsolidator() {
+        this(DEFAULT_MAX_PENDING_MESSAGES, DEFAULT_MAX_PENDING_BYTES);
+    }
+
+    /**
+     * Create a new flush consolidator.
+     *
+     * @param maxPendingMessages The number of pending writes which triggers a flush.
+     * @param maxPendingBytes    The number of pending bytes which triggers a flush.
+     */
+    public NettyFlushConsolidator(int maxPendingMessages, int maxPendingBytes) {
+        this.maxPendingMessages = maxPendingMessages;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf) {
+            pendingBytes += ((ByteBuf) msg).readableBytes();
+        } else if (msg instanceof ByteBufHolder) {
+            pendingBytes += ((ByteBufHolder) msg).content().readableBytes();
+        }
+        pendingMessages++;
+        writes++;
+        ctx.write(msg, promise);
+        if (pendingMessages >= maxPendingMessages || pendingBytes >= maxPendingBytes) {
+            flushNow(ctx);
+        }
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        if (pendingMessages == 0) {
+            // Everything was flushed by a threshold already.
+            return;
+        }
+        flushPending = true;
+        if (!reading && !flushScheduled) {
+            flushScheduled = true;
+            ctx.executor().execute(() -> {
+                flushScheduled = false;
+                if (flushPending) {
+                    flushNow(ctx);
+                }
+            });
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        reading = true;
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelReadComplete(ChannelHandlerContext ctx) throws Exception {
+        reading = false;
+        if (flushPending) {
+            flushNow(ctx);
+        }
+        ctx.fireChannelReadComplete();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.close(promise);
+    }
+
+    @Override
+    public void disconnect(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        flushIfPending(ctx);
+        ctx.disconnect(promise);
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        flushIfPending(ctx);
+    }
+
+    private void flushIfPending(ChannelHandlerContext ctx) {
+        if (flushPending) {
+            flushNow(ctx);
+        }
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        flushPending = false;
+        pendingMessages = 0;
+        pendingBytes = 0;
+        flushes++;
+        ctx.flush();
+    }
+}
@@ -0,0 +1,30 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A request to be notified when the tails of a set of streams advance. The set
+ * replaces any streams the client subscribed to before, and an empty set ends the
+ * subscription.
+ */
+@Data
+@AllArgsConstructor
+public class StreamSubscription implements ICorfuPayload<StreamSubscription> {
+
+    /** The streams to be notified about. */
+    final Set<UUID> streams;
+
+    public StreamSubscription(ByteBuf buf) {
+        streams = ICorfuPayload.setFromBuffer(buf, UUID.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, streams);
+    }
+}
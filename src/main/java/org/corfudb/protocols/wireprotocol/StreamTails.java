@@ -0,0 +1,28 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The last tokens issued for a set of streams.
+ */
+@Data
+@AllArgsConstructor
+public class StreamTails implements ICorfuPayload<StreamTails> {
+
+    /** The last token issued for each stream, or -1 if none was issued. */
+    final Map<UUID, Long> tails;
+
+    public StreamTails(ByteBuf buf) {
+        tails = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, tails);
+    }
+}
@@ -1,9 +1,12 @@
 package org.corfudb.protocols.wireprotocol;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 import io.netty.buffer.ByteBuf;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -29,26 +32,79 @@ public class TokenRequest implements ICorfuPayload<TokenRequest> {
 
     final Long readTimestamp;
 
+    /**
+     * Hashed keys which a transaction accessed, by stream. Streams which are
+     * present are only checked for conflicts on these keys, other streams are
+     * checked as a whole. Only sent with transaction resolution requests.
+     */
+    final Map<UUID, Set<Long>> conflictKeys;
+
+    /**
+     * Hashed keys which a transaction wrote, by stream. The sequencer records these keys as
+     * written at the issued address. Keys of the conflictKeys of a stream which are absent here
+     * were only read, and are not recorded. Only sent with transaction resolution requests.
+     */
+    final Map<UUID, Set<Long>> writeKeys;
+
+    /**
+     * Issued tokens must be greater than this address, or -1 for no bound. A request
+     * for zero tokens with a bound moves the sequencer past the bound.
+     */
+    final Long minToken;
+
+    /**
+     * The address another sequencer partition issued for this request, or -1. If set,
+     * the streams of the request are registered at this address instead of issuing one.
+     * A request for zero tokens with an assigned address releases the streams which were
+     * issued or registered at it, because another partition rejected the request.
+     */
+    final Long assignedToken;
+
     public TokenRequest(Long numTokens, Set<UUID> streams, Boolean overwrite, Boolean replexOverwrite) {
-        this.numTokens = numTokens;
-        this.streams = streams;
-        this.overwrite = overwrite;
-        this.replexOverwrite = replexOverwrite;
-        txnResolution = false;
-        readTimestamp = -1L;
+        this(numTokens, streams, overwrite, replexOverwrite, false, -1L);
+    }
+
+    public TokenRequest(Long numTokens, Set<UUID> streams, Boolean overwrite, Boolean replexOverwrite,
+                        Boolean txnResolution, Long readTimestamp) {
+        this(numTokens, streams, overwrite, replexOverwrite, txnResolution, readTimestamp,
+                ImmutableMap.of(), ImmutableMap.of());
+    }
+
+    public TokenRequest(Long numTokens, Set<UUID> streams, Boolean overwrite, Boolean replexOverwrite,
+                        Boolean txnResolution, Long readTimestamp, Map<UUID, Set<Long>> conflictKeys,
+                        Map<UUID, Set<Long>> writeKeys) {
+        this(numTokens, streams, overwrite, replexOverwrite, txnResolution, readTimestamp, conflictKeys,
+                writeKeys, -1L, -1L);
     }
 
     public TokenRequest(ByteBuf buf) {
-        numTokens = ICorfuPayload.fromBuffer(buf, Long.class);
-        if (ICorfuPayload.fromBuffer(buf, Boolean.class))
+        numTokens = buf.readLong();
+        if (buf.readBoolean())
             streams = ICorfuPayload.setFromBuffer(buf, UUID.class);
         else streams = null;
-        overwrite = ICorfuPayload.fromBuffer(buf, Boolean.class);
-        replexOverwrite = ICorfuPayload.fromBuffer(buf, Boolean.class);
-        txnResolution = ICorfuPayload.fromBuffer(buf, Boolean.class);
-        if (txnResolution)
-            readTimestamp = ICorfuPayload.fromBuffer(buf, Long.class);
-        else readTimestamp = -1L;
+        overwrite = buf.readBoolean();
+        replexOverwrite = buf.readBoolean();
+        txnResolution = buf.readBoolean();
+        if (txnResolution) {
+            readTimestamp = buf.readLong();
+            conflictKeys = keysFromBuffer(buf);
+            writeKeys = keysFromBuffer(buf);
+        } else {
+            readTimestamp = -1L;
+            conflictKeys = ImmutableMap.of();
+            writeKeys = ImmutableMap.of();
+        }
+        minToken = buf.readLong();
+        assignedToken = buf.readLong();
+    }
+
+    private static Map<UUID, Set<Long>> keysFromBuffer(ByteBuf buf) {
+        int numStreams = buf.readInt();
+        Map<UUID, Set<Long>> keys = Maps.newHashMapWithExpectedSize(numStreams);
+        for (int i = 0; i < numStreams; i++) {
+            keys.put(new UUID(buf.readLong(), buf.readLong()), ICorfuPayload.setFromBuffer(buf, Long.class));
+        }
+        return Collections.unmodifiableMap(keys);
     }
 
     @Override
@@ -62,6 +118,10 @@ public class TokenRequest implements ICorfuPayload<TokenRequest> {
         ICorfuPayload.serialize(buf, txnResolution);
         if (txnResolution) {
             ICorfuPayload.serialize(buf, readTimestamp);
+            ICorfuPayload.serialize(buf, conflictKeys);
+            ICorfuPayload.serialize(buf, writeKeys);
         }
+        ICorfuPayload.serialize(buf, minToken);
+        ICorfuPayload.serialize(buf, assignedToken);
     }
 }
@@ -24,7 +24,7 @@ public class TokenResponse implements ICorfuPayload<TokenResponse> {
     final Map<UUID, Long> streamAddresses;
 
     public TokenResponse(ByteBuf buf) {
-        token = ICorfuPayload.fromBuffer(buf, Long.class);
+        token = buf.readLong();
         backpointerMap = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
         streamAddresses = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
     }
@@ -4,7 +4,9 @@ import lombok.Getter;
 import lombok.NoArgsConstructor;
 
 import java.lang.management.ManagementFactory;
+import java.util.EnumSet;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Created by mwei on 7/27/16.
@@ -22,6 +24,13 @@ public class VersionInfo {
     @Getter
     String jvmUsed = System.getProperty("java.home") + "/bin/java";
 
+    /**
+     * The header formats the server accepts. Servers which predate the compact format
+     * do not send this, so it is null in their version info.
+     */
+    @Getter
+    Set<HeaderFormat> headerFormats = EnumSet.allOf(HeaderFormat.class);
+
     public VersionInfo(Map<String,Object> optionsMap) {
         this.optionsMap = optionsMap;
     }
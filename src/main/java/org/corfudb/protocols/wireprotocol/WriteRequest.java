@@ -21,11 +21,11 @@ public class WriteRequest implements ICorfuPayload<WriteRequest>, IMetadata {
 
     @SuppressWarnings("unchecked")
     public WriteRequest(ByteBuf buf) {
-        writeMode = ICorfuPayload.fromBuffer(buf, WriteMode.class);
+        writeMode = WriteMode.typeMap.get(buf.readByte());
         if (writeMode == WriteMode.REPLEX_STREAM) {
             streamAddresses = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
         } else { streamAddresses = null; }
-        data = ICorfuPayload.fromBuffer(buf, LogData.class);
+        data = new LogData(buf);
     }
 
     public WriteRequest(WriteMode writeMode, Map<UUID, Long> streamAddresses, ByteBuf buf) {
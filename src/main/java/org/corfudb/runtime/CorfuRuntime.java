@@ -1,8 +1,12 @@
 package org.corfudb.runtime;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.local.LocalAddress;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.HeaderFormat;
 import org.corfudb.runtime.clients.IClientRouter;
 import org.corfudb.runtime.clients.LayoutClient;
 import org.corfudb.runtime.clients.LogUnitClient;
@@ -15,8 +19,10 @@ import org.corfudb.runtime.view.ObjectsView;
 import org.corfudb.runtime.view.SequencerView;
 import org.corfudb.runtime.view.StreamsView;
 import org.corfudb.util.GitRepositoryState;
+import org.corfudb.util.NettyTransport;
 import org.corfudb.util.Version;
 
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -94,6 +100,60 @@ public class CorfuRuntime {
      */
     @Getter
     public boolean backpointersDisabled = false;
+    /**
+     * How long to wait for concurrent token requests to combine into one sequencer
+     * message, or null to send each token request on its own.
+     */
+    @Getter
+    public Duration tokenCombineWindow = null;
+    /**
+     * How long stream tails pushed by the sequencer are trusted before the subscription
+     * is renewed, or null to ask the sequencer for the tail of a stream on every read.
+     */
+    @Getter
+    public Duration streamTailRefresh = null;
+    /**
+     * The socket transport new routers connect over.
+     */
+    @Getter
+    public NettyTransport transport = NettyTransport.getDefault();
+    /**
+     * The number of channels new routers open for latency-sensitive messages.
+     */
+    @Getter
+    public int latencyChannels = 1;
+    /**
+     * The number of channels new routers open for bulk messages, such as reads and writes.
+     */
+    @Getter
+    public int bulkChannels = 1;
+    /**
+     * The allocator of the buffers of this runtime and its routers.
+     */
+    @Getter
+    public ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    /**
+     * The header format of the messages new routers send, once their server has
+     * advertised support for it.
+     */
+    @Getter
+    public HeaderFormat headerFormat = HeaderFormat.LEGACY;
+    /**
+     * The maximum number of requests new routers have outstanding to their endpoint.
+     */
+    @Getter
+    public int maxOutstanding = NettyClientRouter.DEFAULT_MAX_OUTSTANDING;
+    /**
+     * What requests do when their router has no capacity for them.
+     */
+    @Getter
+    public NettyClientRouter.Backpressure backpressure = NettyClientRouter.Backpressure.WAIT;
+    /**
+     * The number of requests new routers queue while disconnected, to send once they
+     * reconnect, or 0 to fail such requests right away.
+     */
+    @Getter
+    public int replayQueueSize = 0;
 
     /**
      * When set, overrides the default getRouterFunction. Used by the testing
@@ -105,6 +165,9 @@ public class CorfuRuntime {
      * A function to handle getting routers. Used by test framework to inject
      * a test router. Can also be used to provide alternative logic for obtaining
      * a router.
+     * <p>
+     * Addresses are in host:port format, or local:&lt;name&gt; for a server in this
+     * JVM bound with CorfuServer.bindLocal.
      */
     @Getter
     @Setter
@@ -115,12 +178,26 @@ public class CorfuRuntime {
         if (nodeRouters.containsKey(address)) {
             return nodeRouters.get(address);
         }
-        // Parse the string in host:port format.
-        String host = address.split(":")[0];
-        Integer port = Integer.parseInt(address.split(":")[1]);
-        // Generate a new router, start it and add it to the table.
-        NettyClientRouter router = new NettyClientRouter(host, port);
-        log.debug("Connecting to new router {}:{}", host, port);
+        NettyClientRouter router;
+        if (address.startsWith(NettyClientRouter.LOCAL_SCHEME)) {
+            // A server in this JVM, reached without a socket.
+            router = new NettyClientRouter(new LocalAddress(
+                    address.substring(NettyClientRouter.LOCAL_SCHEME.length())));
+            log.debug("Connecting to new local router {}", address);
+        } else {
+            // Parse the string in host:port format.
+            String host = address.split(":")[0];
+            Integer port = Integer.parseInt(address.split(":")[1]);
+            router = new NettyClientRouter(host, port, transport);
+            log.debug("Connecting to new router {}:{} over {}", host, port, transport);
+        }
+        // Configure the new router, start it and add it to the table.
+        router.setChannels(latencyChannels, bulkChannels)
+                .setMaxOutstanding(maxOutstanding)
+                .setBackpressure(backpressure)
+                .setReplayQueueSize(replayQueueSize)
+                .setHeaderFormat(headerFormat)
+                .setAllocator(allocator);
         try {
             router.addClient(new LayoutClient())
                     .addClient(new SequencerClient())
@@ -189,6 +266,127 @@ public class CorfuRuntime {
         return this;
     }
 
+    /**
+     * Combine token requests made concurrently by different threads into one message
+     * to the sequencer.
+     *
+     * @param window How long to wait for concurrent requests, or null to disable combining.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setTokenCombineWindow(Duration window) {
+        this.tokenCombineWindow = window;
+        return this;
+    }
+
+    /**
+     * Subscribe to the tails of streams which are read, instead of asking the sequencer
+     * for the tail of a stream whenever it is read. Tails written by other clients become
+     * visible once the sequencer pushes them, which takes about --tail-notify-delay.
+     *
+     * @param refresh How often the subscription is renewed, which also bounds how long a
+     *                lost subscription goes unnoticed, or null to disable subscriptions.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setStreamTailRefresh(Duration refresh) {
+        this.streamTailRefresh = refresh;
+        return this;
+    }
+
+    /**
+     * Set the socket transport routers connect over. Only routers created after
+     * this call use the new transport.
+     *
+     * @param transport The transport. Routers fall back to NIO if it is not available.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setTransport(NettyTransport transport) {
+        this.transport = transport;
+        return this;
+    }
+
+    /**
+     * Set the number of channels routers open to each endpoint. Requests are sent on the
+     * channel of their lane with the fewest outstanding requests, and bulk messages use
+     * their own channels so that they do not delay small requests. Only routers created
+     * after this call use the new numbers.
+     *
+     * @param latencyChannels The number of channels for latency-sensitive messages, at least one.
+     * @param bulkChannels    The number of channels for bulk messages, or 0 to send bulk
+     *                        messages on the latency channels.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setChannelsPerEndpoint(int latencyChannels, int bulkChannels) {
+        if (latencyChannels < 1 || bulkChannels < 0) {
+            throw new IllegalArgumentException("Need at least one latency channel, got "
+                    + latencyChannels + " latency and " + bulkChannels + " bulk channels");
+        }
+        this.latencyChannels = latencyChannels;
+        this.bulkChannels = bulkChannels;
+        return this;
+    }
+
+    /**
+     * Limit the requests routers have in flight to each endpoint. Requests sent when the
+     * limit is reached, or when too many bytes are queued on the channel they would be
+     * sent on, wait for capacity or fail according to the backpressure policy, so
+     * producers slow down instead of overwhelming the server. Only routers created after
+     * this call use the new limit.
+     *
+     * @param maxOutstanding The maximum number of outstanding requests per endpoint.
+     * @param backpressure   What requests do when the router has no capacity for them.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setMaxOutstanding(int maxOutstanding, NettyClientRouter.Backpressure backpressure) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("Need at least one outstanding request, got "
+                    + maxOutstanding);
+        }
+        this.maxOutstanding = maxOutstanding;
+        this.backpressure = backpressure;
+        return this;
+    }
+
+    /**
+     * Queue requests made while a router is disconnected, and send them once it reconnects,
+     * instead of failing them right away. Queued requests still time out. Only routers
+     * created after this call queue requests.
+     *
+     * @param replayQueueSize The number of requests each router queues, or 0 to disable queueing.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setReplayQueueSize(int replayQueueSize) {
+        if (replayQueueSize < 0) {
+            throw new IllegalArgumentException("Invalid replay queue size " + replayQueueSize);
+        }
+        this.replayQueueSize = replayQueueSize;
+        return this;
+    }
+
+    /**
+     * Set the allocator of the buffers of this runtime. Only routers created after
+     * this call use the new allocator.
+     *
+     * @param allocator The allocator to use.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setAllocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * Set the header format of the messages routers send. Only routers created after
+     * this call use the new format.
+     *
+     * @param headerFormat The header format. Servers which predate the compact format
+     *                     keep receiving the legacy one.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setHeaderFormat(HeaderFormat headerFormat) {
+        this.headerFormat = headerFormat;
+        return this;
+    }
+
     public CorfuRuntime setTransactionLogging(boolean enable) {
         this.getObjectsView().setTransactionLogging(enable);
         return this;
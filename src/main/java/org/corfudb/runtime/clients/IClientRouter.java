@@ -1,5 +1,7 @@
 package org.corfudb.runtime.clients;
 
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 
@@ -120,4 +122,11 @@ public interface IClientRouter {
      * Set the current epoch.
      */
     void setEpoch(long newEpoch);
+
+    /**
+     * Get the allocator of the buffers which clients of this router send.
+     */
+    default ByteBufAllocator getAllocator() {
+        return PooledByteBufAllocator.DEFAULT;
+    }
 }
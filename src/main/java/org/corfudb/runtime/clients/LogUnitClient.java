@@ -3,7 +3,6 @@ package org.corfudb.runtime.clients;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Getter;
 import lombok.Setter;
@@ -11,6 +10,7 @@ import org.corfudb.protocols.wireprotocol.*;
 import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.runtime.exceptions.ReplexOverwriteException;
+import org.corfudb.runtime.exceptions.ServerErrorException;
 import org.corfudb.util.serializer.Serializers;
 
 import java.lang.invoke.MethodHandles;
@@ -91,6 +91,20 @@ public class LogUnitClient implements IClient {
         throw new ReplexOverwriteException();
     }
 
+    /** Handle an ERROR_SERVER_EXCEPTION message.
+     *
+     * @param msg   Incoming Message
+     * @param ctx   Context
+     * @param r     Router
+     * @throws      ServerErrorException
+     */
+    @ClientHandler(type=CorfuMsgType.ERROR_SERVER_EXCEPTION)
+    private static Object handleServerException(CorfuMsg msg, ChannelHandlerContext ctx, IClientRouter r)
+            throws Exception
+    {
+        throw new ServerErrorException();
+    }
+
     /** Handle an ERROR_OOS message.
      *
      * @param msg   Incoming Message
@@ -171,14 +185,17 @@ public class LogUnitClient implements IClient {
      */
     public CompletableFuture<Boolean> write(long address, Set<UUID> streams, long rank,
                                             Object writeObject, Map<UUID, Long> backpointerMap) {
-        ByteBuf payload = ByteBufAllocator.DEFAULT.buffer();
+        ByteBuf payload = router.getAllocator().buffer();
         Serializers.getSerializer(Serializers.SerializerType.CORFU).serialize(writeObject, payload);
         WriteRequest wr = new WriteRequest(WriteMode.NORMAL, null, payload);
         wr.setStreams(streams);
         wr.setRank(rank);
         wr.setBackpointerMap(backpointerMap);
         wr.setGlobalAddress(address);
-        return router.sendMessageAndGetCompletable(CorfuMsgType.WRITE.payloadMsg(wr));
+        // The message owns the payload, and releases it once it is sent.
+        CorfuMsg msg = CorfuMsgType.WRITE.payloadMsg(wr);
+        msg.setBuf(payload);
+        return router.sendMessageAndGetCompletable(msg);
     }
 
     /**
@@ -187,7 +204,8 @@ public class LogUnitClient implements IClient {
      * @param address        The address to write to.
      * @param streams        The streams, if any, that this write belongs to.
      * @param rank           The rank of this write (used for quorum replication).
-     * @param buffer         The object, post-serialization, to write.
+     * @param buffer         The object, post-serialization, to write. The caller keeps
+     *                       its reference to the buffer.
      * @param backpointerMap The map of backpointers to write.
      * @return A CompletableFuture which will complete with the WriteResult once the
      * write completes.
@@ -199,14 +217,21 @@ public class LogUnitClient implements IClient {
         wr.setRank(rank);
         wr.setBackpointerMap(backpointerMap);
         wr.setGlobalAddress(address);
-        return router.sendMessageAndGetCompletable(CorfuMsgType.WRITE.payloadMsg(wr));
+        // The message holds its own reference to the buffer until it is sent.
+        CorfuMsg msg = CorfuMsgType.WRITE.payloadMsg(wr);
+        msg.setBuf(buffer.retain());
+        return router.sendMessageAndGetCompletable(msg);
     }
 
     public CompletableFuture<Boolean> writeStream(long address, Map<UUID, Long> streamAddresses,
                                                   Object object) {
-        ByteBuf payload = ByteBufAllocator.DEFAULT.buffer();
+        ByteBuf payload = router.getAllocator().buffer();
         Serializers.getSerializer(Serializers.SerializerType.CORFU).serialize(object, payload);
-        return writeStream(address, streamAddresses, payload);
+        try {
+            return writeStream(address, streamAddresses, payload);
+        } finally {
+            payload.release();
+        }
     }
 
     public CompletableFuture<Boolean> writeStream(long address, Map<UUID, Long> streamAddresses,
@@ -214,7 +239,10 @@ public class LogUnitClient implements IClient {
         WriteRequest wr = new WriteRequest(WriteMode.REPLEX_STREAM, streamAddresses, buffer);
         wr.setLogicalAddresses(streamAddresses);
         wr.setGlobalAddress(address);
-        return router.sendMessageAndGetCompletable(CorfuMsgType.WRITE.payloadMsg(wr));
+        // The message holds its own reference to the buffer until it is sent.
+        CorfuMsg msg = CorfuMsgType.WRITE.payloadMsg(wr);
+        msg.setBuf(buffer.retain());
+        return router.sendMessageAndGetCompletable(msg);
     }
 
     public CompletableFuture<Boolean> writeCommit(Map<UUID, Long> streams, long address, boolean commit) {
@@ -1,6 +1,9 @@
 package org.corfudb.runtime.clients;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocator;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelHandler;
@@ -9,11 +12,14 @@ import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
 import io.netty.channel.SimpleChannelInboundHandler;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.channel.WriteBufferWaterMark;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
+import io.netty.util.HashedWheelTimer;
+import io.netty.util.Timeout;
+import io.netty.util.TimerTask;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.Getter;
@@ -21,22 +27,30 @@ import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.CorfuMsg;
 import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.HeaderFormat;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidator;
 import org.corfudb.runtime.exceptions.NetworkException;
 import org.corfudb.runtime.exceptions.WrongEpochException;
-import org.corfudb.util.CFUtils;
+import org.corfudb.util.NettyTransport;
 
-import java.time.Duration;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -50,6 +64,33 @@ import java.util.concurrent.atomic.AtomicLong;
 public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
         implements IClientRouter {
 
+    /**
+     * The tick of the request timeout timer (milliseconds)
+     */
+    static final long TIMER_TICK_MILLIS = 10;
+    /**
+     * The default maximum number of outstanding requests
+     */
+    public static final int DEFAULT_MAX_OUTSTANDING = 65536;
+    /**
+     * The scheme of the addresses of servers in this JVM, which are reached over
+     * in-process channels: local:&lt;name&gt;.
+     */
+    public static final String LOCAL_SCHEME = "local:";
+    /**
+     * The default number of bytes queued on a channel above which it stops being writable.
+     */
+    public static final int DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK = 1024 * 1024;
+    /**
+     * The default number of bytes queued on a channel below which it is writable again.
+     */
+    public static final int DEFAULT_WRITE_BUFFER_LOW_WATER_MARK = 512 * 1024;
+    /**
+     * The delay before the second attempt to reconnect a channel (milliseconds). The first
+     * attempt is made right away, and the delay doubles with each further attempt up to
+     * timeoutRetry.
+     */
+    public static final long RECONNECT_MIN_DELAY_MILLIS = 10;
     /**
      * A random instance
      */
@@ -79,7 +120,7 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
     @Setter
     public long timeoutResponse;
     /**
-     * Retry interval after timeout (milliseconds)
+     * The longest interval between attempts to reconnect a channel (milliseconds)
      */
     @Getter
     @Setter
@@ -100,23 +141,66 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
     /**
      * The outstanding requests on this router.
      */
-    public Map<Long, CompletableFuture> outstandingRequests;
+    public OutstandingRequestTable outstandingRequests;
+    /**
+     * The maximum number of outstanding requests on this router.
+     */
+    @Getter
+    int maxOutstanding;
+    /**
+     * The requests made while no channel is connected, which are sent once one connects,
+     * or null if such requests fail right away.
+     */
+    BlockingQueue<QueuedRequest> replayQueue;
+    /**
+     * The maximum number of requests queued while no channel is connected.
+     */
+    @Getter
+    int replayQueueSize;
+    /**
+     * The timer which times out outstanding requests.
+     */
+    HashedWheelTimer timer;
     /**
      * The currently registered channel context.
      */
     public ChannelHandlerContext context;
     /**
-     * The currently registered channel.
+     * The channels to the endpoint, the latency lane first.
+     */
+    @Getter
+    public List<PooledChannel> channels;
+    /**
+     * The number of channels which carry latency-sensitive messages.
+     */
+    @Getter
+    int latencyChannels;
+    /**
+     * The number of channels which carry bulk messages, or 0 to send bulk messages
+     * on the latency channels.
      */
-    public Channel channel;
+    @Getter
+    int bulkChannels;
+    /**
+     * The message types which are sent on the bulk lane.
+     */
+    @Getter
+    Set<CorfuMsgType> bulkTypes = EnumSet.of(CorfuMsgType.READ_REQUEST, CorfuMsgType.WRITE);
     /**
      * The worker group for this router.
      */
     public EventLoopGroup workerGroup;
     /**
-     * The event executor group for this router.
+     * The event executor group for this router, which runs the handlers of blocking message types.
      */
     public EventExecutorGroup ee;
+    /**
+     * The message types whose handlers may block, and so are run on the event executor
+     * group instead of the event loop. Responses complete their requests on the thread
+     * which handles them, so callbacks attached to requests also run on that thread.
+     */
+    @Getter
+    Set<CorfuMsgType> blockingTypes = EnumSet.noneOf(CorfuMsgType.class);
     /**
      * Whether or not this router is shutdown.
      */
@@ -131,26 +215,225 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
      */
     @Getter
     Integer port;
+    /**
+     * The socket transport this router connects over.
+     */
+    @Getter
+    NettyTransport transport;
+    /**
+     * The address of the server in this JVM this router connects to over in-process
+     * channels, or null if it connects to host and port over sockets.
+     */
+    @Getter
+    LocalAddress localAddress;
+    /**
+     * The endpoint this router is routing requests for, as it appears in errors.
+     */
+    final String endpoint;
+    /**
+     * The allocator of the buffers of this router's channels, and of the buffers
+     * its clients send.
+     */
+    @Getter
+    ByteBufAllocator allocator = PooledByteBufAllocator.DEFAULT;
+    /**
+     * The header format of the messages this router sends, once the server has advertised
+     * support for it. Until then, and to servers which predate the compact format, messages
+     * are sent in the legacy format.
+     */
+    @Getter
+    HeaderFormat headerFormat = HeaderFormat.LEGACY;
+    /**
+     * What requests do when the router has no capacity for them.
+     */
+    @Getter
+    Backpressure backpressure = Backpressure.WAIT;
+    /**
+     * The number of bytes queued on a channel above which it stops being writable, and
+     * below which it is writable again.
+     */
+    WriteBufferWaterMark writeBufferWaterMark = new WriteBufferWaterMark(DEFAULT_WRITE_BUFFER_LOW_WATER_MARK,
+            DEFAULT_WRITE_BUFFER_HIGH_WATER_MARK);
+    /**
+     * The monitor senders wait on for capacity, which is notified when a request completes
+     * or a channel becomes writable.
+     */
+    private final Object capacity = new Object();
+    /**
+     * The number of senders waiting for capacity. Only changed while holding the monitor.
+     */
+    private volatile int capacityWaiters;
     /**
      * Are we connected?
      */
     @Getter
     Boolean connected_p;
 
+    /**
+     * The lanes a message can be sent on. Bulk messages, such as reads and writes of
+     * large entries, use separate channels so they do not hold up small requests
+     * queued behind them.
+     */
+    public enum Lane {
+        LATENCY,
+        BULK
+    }
+
+    /**
+     * What a request does when the router has no capacity for it: when the maximum number
+     * of requests are outstanding, or when the channel it would be sent on is not writable
+     * because too many bytes are queued on it.
+     */
+    public enum Backpressure {
+        /**
+         * Fail the request with a NetworkException right away.
+         */
+        FAIL,
+        /**
+         * Block the sending thread until there is capacity, or fail the request if there is
+         * none within the response timeout. Requests sent from the event loops of any router
+         * never block: they fail if too many requests are outstanding, and are queued if the
+         * channel is not writable.
+         */
+        WAIT
+    }
+
+    /**
+     * An outstanding request. It is both the future the response completes and the task
+     * which times the request out, so sending a request only allocates the future and its
+     * timeout, which is cancelled when the response arrives.
+     */
+    final class OutstandingRequest<T> extends OutstandingRequestTable.Request<T> implements TimerTask {
+
+        /**
+         * The channel the request was sent on, or null if it was sent on a given context.
+         */
+        final PooledChannel channel;
+
+        volatile Timeout timeout;
+
+        OutstandingRequest(PooledChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            if (removeRequest(this)) {
+                completeExceptionally(new TimeoutException());
+                log.debug("Remove request {} due to timeout!", requestID);
+            }
+        }
+    }
+
+    /**
+     * A thread of the event loops of a router.
+     */
+    static final class EventLoopThread extends Thread {
+        EventLoopThread(Runnable r) {
+            super(r);
+        }
+    }
+
+    /**
+     * A request made while no channel was connected, which waits in the replay queue for
+     * a channel to connect or for the request to time out.
+     */
+    final class QueuedRequest<T> implements TimerTask {
+        final CorfuMsg message;
+
+        final CompletableFuture<T> future = new CompletableFuture<>();
+
+        volatile Timeout timeout;
+
+        QueuedRequest(CorfuMsg message) {
+            this.message = message;
+        }
+
+        @Override
+        public void run(Timeout timeout) {
+            fail(new TimeoutException());
+        }
+
+        /**
+         * Fail the request, unless it already left the queue.
+         */
+        void fail(Throwable cause) {
+            BlockingQueue<QueuedRequest> queue = replayQueue;
+            if (queue != null && queue.remove(this)) {
+                message.release();
+                future.completeExceptionally(cause);
+            }
+        }
+    }
+
+    /**
+     * A channel of the pool, with the requests outstanding on it.
+     */
+    public static class PooledChannel {
+        @Getter
+        final Lane lane;
+
+        @Getter
+        volatile Channel channel;
+
+        /**
+         * The number of requests which were sent on this channel and not completed.
+         */
+        final AtomicInteger outstanding = new AtomicInteger();
+
+        PooledChannel(Lane lane) {
+            this.lane = lane;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public boolean isActive() {
+            Channel c = channel;
+            return c != null && c.isActive();
+        }
+    }
+
     public NettyClientRouter(String host, Integer port) {
+        this(host, port, NettyTransport.getDefault());
+    }
+
+    public NettyClientRouter(String host, Integer port, NettyTransport transport) {
+        this(host, port, transport, null);
+    }
+
+    /**
+     * Create a router to a server in this JVM, which connects over in-process channels.
+     * Messages are handed over as buffers, without a socket or length framing.
+     *
+     * @param localAddress The local address the server is bound to.
+     */
+    public NettyClientRouter(LocalAddress localAddress) {
+        this(null, null, NettyTransport.getDefault(), localAddress);
+    }
+
+    private NettyClientRouter(String host, Integer port, NettyTransport transport, LocalAddress localAddress) {
         this.host = host;
         this.port = port;
+        this.transport = transport.isAvailable() ? transport : NettyTransport.NIO;
+        this.localAddress = localAddress;
+        endpoint = localAddress == null ? host + ":" + port : LOCAL_SCHEME + localAddress.id();
 
         clientID = UUID.randomUUID();
         connected_p = false;
         timeoutConnect = 500;
         timeoutResponse = 5000;
         timeoutRetry = 1000;
+        channels = new CopyOnWriteArrayList<>();
+        latencyChannels = 1;
+        bulkChannels = 1;
 
         handlerMap = new ConcurrentHashMap<>();
         clientList = new ArrayList<>();
         requestID = new AtomicLong();
-        outstandingRequests = new ConcurrentHashMap<>();
+        maxOutstanding = DEFAULT_MAX_OUTSTANDING;
+        outstandingRequests = new OutstandingRequestTable(maxOutstanding);
         shutdown = true;
 
         addClient(new BaseClient());
@@ -178,6 +461,133 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
         return this;
     }
 
+    /**
+     * Set the message types whose handlers may block.
+     *
+     * @param types The message types to handle off the event loop.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setBlockingTypes(Set<CorfuMsgType> types) {
+        blockingTypes = types.isEmpty() ? EnumSet.noneOf(CorfuMsgType.class) : EnumSet.copyOf(types);
+        return this;
+    }
+
+    /**
+     * Set the number of channels of each lane. Only takes effect when the router is started.
+     *
+     * @param latencyChannels The number of channels for latency-sensitive messages, at least one.
+     * @param bulkChannels    The number of channels for bulk messages, or 0 to send them on
+     *                        the latency channels.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setChannels(int latencyChannels, int bulkChannels) {
+        if (latencyChannels < 1 || bulkChannels < 0) {
+            throw new IllegalArgumentException("Need at least one latency channel, got "
+                    + latencyChannels + " latency and " + bulkChannels + " bulk channels");
+        }
+        this.latencyChannels = latencyChannels;
+        this.bulkChannels = bulkChannels;
+        return this;
+    }
+
+    /**
+     * Set the maximum number of outstanding requests. Once they are outstanding, new
+     * requests wait or fail according to the backpressure policy. Only takes effect when
+     * the router is started.
+     *
+     * @param maxOutstanding The maximum number of requests in flight, which is rounded
+     *                       up to a power of two.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setMaxOutstanding(int maxOutstanding) {
+        if (maxOutstanding < 1) {
+            throw new IllegalArgumentException("Need at least one outstanding request, got "
+                    + maxOutstanding);
+        }
+        this.maxOutstanding = maxOutstanding;
+        return this;
+    }
+
+    /**
+     * Set what requests do when the router has no capacity for them.
+     *
+     * @param backpressure The backpressure policy.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setBackpressure(Backpressure backpressure) {
+        this.backpressure = backpressure;
+        return this;
+    }
+
+    /**
+     * Set the number of bytes queued on a channel at which it stops being writable, so
+     * requests wait or fail instead of queueing more. Only takes effect when the router
+     * is started.
+     *
+     * @param low  The number of bytes below which the channel is writable again.
+     * @param high The number of bytes above which the channel is not writable.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setWriteBufferWaterMark(int low, int high) {
+        this.writeBufferWaterMark = new WriteBufferWaterMark(low, high);
+        return this;
+    }
+
+    /**
+     * Queue requests made while no channel is connected, and send them once a channel
+     * connects, instead of failing them right away. Queued requests still time out after
+     * timeoutResponse. Requests which were sent before their channel closed are never
+     * replayed, since the endpoint may have processed them. Only takes effect when the
+     * router is started.
+     *
+     * @param replayQueueSize The maximum number of requests queued, or 0 to fail requests
+     *                        while disconnected.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setReplayQueueSize(int replayQueueSize) {
+        if (replayQueueSize < 0) {
+            throw new IllegalArgumentException("Invalid replay queue size " + replayQueueSize);
+        }
+        this.replayQueueSize = replayQueueSize;
+        return this;
+    }
+
+    /**
+     * Set the header format of the messages this router sends. Only takes effect when
+     * the router is started. Each channel sends the legacy format until the server
+     * advertises support for this format in its version info.
+     *
+     * @param headerFormat The header format to send.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setHeaderFormat(HeaderFormat headerFormat) {
+        this.headerFormat = headerFormat;
+        return this;
+    }
+
+    /**
+     * Set the allocator of the buffers of this router. Channels only use it once
+     * the router is started.
+     *
+     * @param allocator The allocator to use.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setAllocator(ByteBufAllocator allocator) {
+        this.allocator = allocator;
+        return this;
+    }
+
+    /**
+     * Set the message types which are sent on the bulk lane.
+     *
+     * @param types The message types to send on the bulk channels.
+     * @return This NettyClientRouter, to support chaining.
+     */
+    public NettyClientRouter setBulkTypes(Set<CorfuMsgType> types) {
+        bulkTypes = types.isEmpty() ? EnumSet.noneOf(CorfuMsgType.class) : EnumSet.copyOf(types);
+        return this;
+    }
+
     /**
      * Gets a client that matches a particular type.
      *
@@ -199,19 +609,26 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
 
     public void start(long c) {
         shutdown = false;
-        workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        outstandingRequests = new OutstandingRequestTable(maxOutstanding);
+        replayQueue = replayQueueSize > 0 ? new ArrayBlockingQueue<>(replayQueueSize) : null;
+        timer = new HashedWheelTimer(new ThreadFactoryBuilder()
+                .setDaemon(true)
+                .setNameFormat("timeout-%d")
+                .build(), TIMER_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        workerGroup = transport.newEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
             final AtomicInteger threadNum = new AtomicInteger(0);
 
             @Override
             public Thread newThread(Runnable r) {
-                Thread t = new Thread(r);
+                Thread t = new EventLoopThread(r);
                 t.setName("worker-" + threadNum.getAndIncrement());
                 t.setDaemon(true);
                 return t;
             }
         });
 
-        ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+        // One thread keeps the blocking handlers of the router in order.
+        ee = new DefaultEventExecutorGroup(1, new ThreadFactory() {
 
             final AtomicInteger threadNum = new AtomicInteger(0);
 
@@ -227,57 +644,202 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
 
         Bootstrap b = new Bootstrap();
         b.group(workerGroup);
-        b.channel(NioSocketChannel.class);
-        b.option(ChannelOption.SO_KEEPALIVE, true);
-        b.option(ChannelOption.SO_REUSEADDR, true);
-        b.option(ChannelOption.TCP_NODELAY, true);
+        if (localAddress != null) {
+            // Local channels run on the event loops of any transport.
+            b.channel(LocalChannel.class);
+        } else {
+            b.channel(transport.getChannelClass());
+            b.option(ChannelOption.SO_KEEPALIVE, true);
+            b.option(ChannelOption.SO_REUSEADDR, true);
+            b.option(ChannelOption.TCP_NODELAY, true);
+        }
+        b.option(ChannelOption.ALLOCATOR, allocator);
+        b.option(ChannelOption.WRITE_BUFFER_WATER_MARK, writeBufferWaterMark);
         NettyClientRouter router = this;
-        b.handler(new ChannelInitializer<SocketChannel>() {
+        b.handler(new ChannelInitializer<Channel>() {
             @Override
-            public void initChannel(SocketChannel ch) throws Exception {
-                ch.pipeline().addLast(new LengthFieldPrepender(4));
-                ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
-                ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
-                ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
-                ch.pipeline().addLast(ee, router);
+            public void initChannel(Channel ch) throws Exception {
+                ch.pipeline().addLast(new NettyFlushConsolidator());
+                if (localAddress == null) {
+                    // Each message written to a local channel is read as one buffer.
+                    ch.pipeline().addLast(new LengthFieldPrepender(4));
+                    ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
+                }
+                ch.pipeline().addLast(new NettyCorfuMessageDecoder());
+                ch.pipeline().addLast(new NettyCorfuMessageEncoder(HeaderFormat.LEGACY));
+                ch.pipeline().addLast(router);
             }
         });
 
+        channels.clear();
+        for (int i = 0; i < latencyChannels; i++) {
+            channels.add(new PooledChannel(Lane.LATENCY));
+        }
+        for (int i = 0; i < bulkChannels; i++) {
+            channels.add(new PooledChannel(Lane.BULK));
+        }
+
         try {
-            connectChannel(b, c);
+            for (PooledChannel pc : channels) {
+                connectChannel(b, pc, c);
+            }
         } catch (Exception e) {
             throw new NetworkException(e.getClass().getSimpleName() +
-                    " connecting to endpoint", host + ":" + port, e);
+                    " connecting to endpoint", endpoint, e);
         }
     }
 
-    void connectChannel(Bootstrap b, long c) {
-        ChannelFuture cf = b.connect(host, port);
+    private ChannelFuture connect(Bootstrap b) {
+        return localAddress != null ? b.connect(localAddress) : b.connect(host, port);
+    }
+
+    void connectChannel(Bootstrap b, PooledChannel pc, long c) {
+        ChannelFuture cf = connect(b);
         cf.syncUninterruptibly();
         if (!cf.awaitUninterruptibly(timeoutConnect)) {
-            throw new NetworkException(c + " Timeout connecting to endpoint", host + ":" + port);
+            throw new NetworkException(c + " Timeout connecting to endpoint", endpoint);
         }
-        channel = cf.channel();
+        attachChannel(b, pc, cf.channel(), c);
+    }
+
+    /**
+     * Reconnect a pooled channel without blocking the event loop, which other channels
+     * of the pool may need to connect. Failed attempts are retried with exponential
+     * backoff, so a server which is down is not flooded with connection attempts while
+     * one which restarts quickly is reconnected to quickly.
+     *
+     * @param attempt The number of attempts which failed already.
+     */
+    void reconnectChannel(Bootstrap b, PooledChannel pc, long c, int attempt) {
+        connect(b).addListener((ChannelFuture cf) -> {
+            if (cf.isSuccess()) {
+                attachChannel(b, pc, cf.channel(), c);
+            } else if (!shutdown) {
+                long delay = reconnectDelay(attempt);
+                log.trace("Exception while reconnecting, retry in {} ms", delay);
+                workerGroup.schedule(() -> reconnectChannel(b, pc, c, attempt + 1), delay, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /**
+     * Get the delay before the next attempt to reconnect: RECONNECT_MIN_DELAY_MILLIS doubled
+     * for each failed attempt, up to timeoutRetry, of which a random half is taken so the
+     * channels of many clients do not reconnect in lockstep.
+     *
+     * @param attempt The number of attempts which failed already, before this one.
+     * @return The delay in milliseconds.
+     */
+    long reconnectDelay(int attempt) {
+        long max = Math.max(timeoutRetry, RECONNECT_MIN_DELAY_MILLIS);
+        long delay = Math.min(max, RECONNECT_MIN_DELAY_MILLIS << Math.min(attempt, 20));
+        return delay / 2 + (long) (random.nextDouble() * (delay / 2 + 1));
+    }
+
+    private void attachChannel(Bootstrap b, PooledChannel pc, Channel channel, long c) {
+        pc.channel = channel;
         channel.closeFuture().addListener((r) -> {
-            connected_p = false;
-            outstandingRequests.forEach((ReqID, reqCF) -> {
-                reqCF.completeExceptionally(new NetworkException("Disconnected", host + ":" + port));
-                outstandingRequests.remove(ReqID);
+            connected_p = channels.stream().anyMatch(PooledChannel::isActive);
+            // Only the requests sent on this channel are lost.
+            outstandingRequests.forEach(req -> {
+                if (((OutstandingRequest) req).channel == pc) {
+                    completeExceptionally(req.getRequestID(),
+                            new NetworkException("Disconnected", endpoint));
+                }
             });
             if (!shutdown) {
                 log.trace("Disconnected, reconnecting...");
-                while (true) {
-                    try {
-                        connectChannel(b, c);
-                        return;
-                    } catch (Exception ex) {
-                        log.trace("Exception while reconnecting, retry in {} ms", timeoutRetry);
-                        Thread.sleep(timeoutRetry);
-                    }
-                }
+                reconnectChannel(b, pc, c, 0);
             }
         });
         connected_p = true; // QQQ SLF verify!
+        replayQueuedRequests();
+        negotiateHeaderFormat(channel);
+    }
+
+    /**
+     * Switch a channel to the header format of this router, if the server advertises
+     * support for it. Servers which predate the compact format don't, so the channel
+     * keeps sending them the legacy format.
+     *
+     * @param channel The channel, which sends the legacy format.
+     */
+    private void negotiateHeaderFormat(Channel channel) {
+        HeaderFormat format = headerFormat;
+        if (format == HeaderFormat.LEGACY) {
+            return;
+        }
+        getClient(BaseClient.class).getVersionInfo().whenComplete((versionInfo, e) -> {
+            if (e != null) {
+                log.debug("Failed to get the header formats of {}, sending {}", endpoint, HeaderFormat.LEGACY, e);
+            } else if (versionInfo.getHeaderFormats() == null || !versionInfo.getHeaderFormats().contains(format)) {
+                log.info("Server {} does not support {} headers, sending {}", endpoint, format, HeaderFormat.LEGACY);
+            } else {
+                NettyCorfuMessageEncoder encoder = channel.pipeline().get(NettyCorfuMessageEncoder.class);
+                if (encoder != null) {
+                    encoder.setHeaderFormat(format);
+                }
+            }
+        });
+    }
+
+    /**
+     * Queue a request made while no channel is connected, if the replay queue has room.
+     *
+     * @param message The message of the request.
+     * @param <T>     The type of the response.
+     * @return A future completed by the response, or null if the request was not queued.
+     */
+    @SuppressWarnings("unchecked")
+    private <T> CompletableFuture<T> queueRequest(CorfuMsg message) {
+        BlockingQueue<QueuedRequest> queue = replayQueue;
+        if (queue == null) {
+            return null;
+        }
+        QueuedRequest<T> request = new QueuedRequest<>(message);
+        if (!queue.offer(request)) {
+            return null;
+        }
+        request.timeout = timer.newTimeout(request, timeoutResponse, TimeUnit.MILLISECONDS);
+        log.trace("Queued message while disconnected: {}", message);
+        // A channel may have connected, and replayed the queue, since we checked.
+        if (channels.stream().anyMatch(PooledChannel::isActive)) {
+            workerGroup.execute(this::replayQueuedRequests);
+        }
+        return request.future;
+    }
+
+    /**
+     * Send the requests which were queued while no channel was connected. Requests which
+     * find no channel again are queued again, and wait for the next channel to connect.
+     */
+    @SuppressWarnings("unchecked")
+    private void replayQueuedRequests() {
+        BlockingQueue<QueuedRequest> queue = replayQueue;
+        if (queue == null) {
+            return;
+        }
+        QueuedRequest request;
+        for (int i = queue.size(); i > 0 && (request = queue.poll()) != null; i--) {
+            Timeout timeout = request.timeout;
+            if (timeout != null) {
+                timeout.cancel();
+            }
+            final QueuedRequest queued = request;
+            try {
+                this.sendMessageAndGetCompletable(null, queued.message)
+                        .whenComplete((r, e) -> {
+                            if (e != null) {
+                                queued.future.completeExceptionally((Throwable) e);
+                            } else {
+                                queued.future.complete(r);
+                            }
+                        });
+            } catch (Exception e) {
+                // The message was released when it failed.
+                queued.future.completeExceptionally(e);
+            }
+        }
     }
 
     /**
@@ -286,11 +848,51 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
     @Override
     public void stop() {
         shutdown = true;
-        channel.disconnect();
+        BlockingQueue<QueuedRequest> queue = replayQueue;
+        if (queue != null) {
+            queue.forEach(r -> r.fail(new NetworkException("Router stopped", endpoint)));
+        }
+        channels.forEach(pc -> {
+            if (pc.channel != null) {
+                pc.channel.disconnect();
+            }
+        });
+        if (timer != null) {
+            timer.stop();
+        }
+    }
+
+    /**
+     * Pick the channel to send a message on: the channel of the message's lane with
+     * the fewest outstanding requests. If no channel of the lane is connected, any
+     * connected channel is used.
+     *
+     * @param type The type of the message.
+     * @return The channel to send the message on, or null if no channel is connected.
+     */
+    PooledChannel selectChannel(CorfuMsgType type) {
+        Lane lane = bulkChannels > 0 && bulkTypes.contains(type) ? Lane.BULK : Lane.LATENCY;
+        PooledChannel best = null;
+        PooledChannel fallback = null;
+        for (PooledChannel pc : channels) {
+            if (!pc.isActive()) {
+                continue;
+            }
+            if (pc.lane == lane) {
+                if (best == null || pc.getOutstanding() < best.getOutstanding()) {
+                    best = pc;
+                }
+            } else if (fallback == null || pc.getOutstanding() < fallback.getOutstanding()) {
+                fallback = pc;
+            }
+        }
+        return best != null ? best : fallback;
     }
 
     /**
      * Send a message and get a completable future to be fulfilled by the reply.
+     * If the maximum number of requests are outstanding, or the channel is not
+     * writable, the request waits or fails according to the backpressure policy.
      *
      * @param ctx     The channel handler context to send the message under.
      * @param message The message to send.
@@ -299,35 +901,120 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
      * or a timeout in the case there is no response.
      */
     public <T> CompletableFuture<T> sendMessageAndGetCompletable(ChannelHandlerContext ctx, CorfuMsg message) {
-        if (!connected_p) {
-            log.trace("Disconnected endpoint " + host + ":" + port);
-            throw new NetworkException("Disconnected endpoint", host + ":" + port);
-        } else {
-            // Get the next request ID.
-            final long thisRequest = requestID.getAndIncrement();
+        if (!connected_p || shutdown) {
+            return queueOrFailDisconnected(message);
+        }
+        long deadline = 0L;
+        while (true) {
+            // Pick the channel before the request becomes outstanding.
+            final PooledChannel pc = ctx == null ? selectChannel(message.getMsgType()) : null;
+            if (ctx == null && pc == null) {
+                return queueOrFailDisconnected(message);
+            }
+            final Channel channel = ctx == null ? pc.channel : ctx.channel();
+            // Event loops can not wait for the channel to drain, so they queue more.
+            final boolean writable = channel.isWritable() || onEventLoop();
+            // Generate a future and put it in the completion table, which assigns
+            // the request ID.
+            final OutstandingRequest<T> cf = new OutstandingRequest<>(pc);
+            if (!writable || !outstandingRequests.add(cf, requestID)) {
+                deadline = awaitCapacity(channel, writable, message, deadline);
+                continue;
+            }
+            if (pc != null) {
+                pc.outstanding.incrementAndGet();
+            }
             // Set the message fields.
             message.setClientID(clientID);
-            message.setRequestID(thisRequest);
+            message.setRequestID(cf.getRequestID());
             message.setEpoch(epoch);
-            // Generate a future and put it in the completion table.
-            final CompletableFuture<T> cf = new CompletableFuture<>();
-            outstandingRequests.put(thisRequest, cf);
+            // Time the request out if it is not completed within timeoutResponse.
+            cf.timeout = timer.newTimeout(cf, timeoutResponse, TimeUnit.MILLISECONDS);
             // Write the message out to the channel.
-            if (ctx == null) {
-                channel.writeAndFlush(message);
-            } else {
-                ctx.writeAndFlush(message);
-            }
+            write(ctx == null ? pc.channel.writeAndFlush(message) : ctx.writeAndFlush(message), message);
             log.trace("Sent message: {}", message);
-            // Generate a timeout future, which will complete exceptionally if the main future is not completed.
-            final CompletableFuture<T> cfTimeout = CFUtils.within(cf, Duration.ofSeconds(timeoutResponse));
-            cfTimeout.exceptionally(e -> {
-                outstandingRequests.remove(thisRequest);
-                log.debug("Remove request {} due to timeout!", thisRequest);
-                return null;
-            });
-            return cfTimeout;
+            return cf;
+        }
+    }
+
+    /**
+     * Queue a request made while no channel is connected to be replayed, or fail it if
+     * the router is shut down or the replay queue is disabled or full.
+     */
+    private <T> CompletableFuture<T> queueOrFailDisconnected(CorfuMsg message) {
+        CompletableFuture<T> queued = shutdown ? null : queueRequest(message);
+        if (queued == null) {
+            log.trace("Disconnected endpoint " + endpoint);
+            message.release();
+            throw new NetworkException("Disconnected endpoint", endpoint);
         }
+        return queued;
+    }
+
+    /**
+     * Wait for capacity to send a request, as the backpressure policy allows. Fails the
+     * request, releasing its message, if it may not wait or the wait times out.
+     *
+     * @param channel  The channel the request would be sent on.
+     * @param writable Whether the channel was writable, so the request is waiting for an
+     *                 outstanding request to complete rather than for the channel.
+     * @param message  The message of the request.
+     * @param deadline The time in nanoseconds to wait until, or 0 if the request has not
+     *                 waited yet.
+     * @return The deadline of the request.
+     */
+    private long awaitCapacity(Channel channel, boolean writable, CorfuMsg message, long deadline) {
+        final String reason = writable
+                ? "Too many outstanding requests (" + outstandingRequests.capacity() + ") to endpoint"
+                : "Outbound buffer full to endpoint";
+        if (backpressure == Backpressure.FAIL || onEventLoop()) {
+            message.release();
+            throw new NetworkException(reason, endpoint);
+        }
+        long now = System.nanoTime();
+        if (deadline == 0L) {
+            deadline = now + TimeUnit.MILLISECONDS.toNanos(timeoutResponse);
+        } else if (now - deadline >= 0) {
+            message.release();
+            throw new NetworkException(reason, endpoint);
+        }
+        synchronized (capacity) {
+            capacityWaiters++;
+            try {
+                // Check again now that completions will notify us.
+                if (writable ? outstandingRequests.size() >= outstandingRequests.capacity()
+                        : !channel.isWritable()) {
+                    capacity.wait(Math.max(1L, TimeUnit.NANOSECONDS.toMillis(deadline - now)));
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                message.release();
+                throw new NetworkException("Interrupted waiting for endpoint", endpoint, ie);
+            } finally {
+                capacityWaiters--;
+            }
+        }
+        return deadline;
+    }
+
+    /**
+     * Wake the senders waiting for capacity, if there are any.
+     */
+    private void signalCapacity() {
+        if (capacityWaiters > 0) {
+            synchronized (capacity) {
+                capacity.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return True, if the current thread is an event loop of any router, which must
+     *         not block. Responses completed on one router's event loop may send
+     *         requests on another, such as writes down a replication chain.
+     */
+    private static boolean onEventLoop() {
+        return Thread.currentThread() instanceof EventLoopThread;
     }
 
     /**
@@ -337,14 +1024,15 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
      * @param message The message to send.
      */
     public void sendMessage(ChannelHandlerContext ctx, CorfuMsg message) {
-        ChannelHandlerContext outContext = context;
+        PooledChannel pc = null;
         if (ctx == null) {
-            if (context == null) {
-                // if the router's context is not set, return a failure
+            pc = selectChannel(message.getMsgType());
+            if (pc == null) {
+                // if no channel is connected, return a failure
                 log.warn("Attempting to send on a channel that is not ready.");
+                message.release();
                 return;
             }
-            outContext = context;
         }
         // Get the next request ID.
         final long thisRequest = requestID.getAndIncrement();
@@ -353,10 +1041,22 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
         message.setRequestID(thisRequest);
         message.setEpoch(epoch);
         // Write this message out on the channel.
-        outContext.writeAndFlush(message);
+        write(pc != null ? pc.channel.writeAndFlush(message) : ctx.writeAndFlush(message), message);
         log.trace("Sent one-way message: {}", message);
     }
 
+    /**
+     * Release the buffer a message holds, if any, once it is written.
+     *
+     * @param future  The future of the write of the message.
+     * @param message The message.
+     */
+    private static void write(ChannelFuture future, CorfuMsg message) {
+        if (message.getBuf() != null) {
+            future.addListener(f -> message.release());
+        }
+    }
+
 
     /**
      * Send a netty message through this router, setting the fields in the outgoing message.
@@ -381,10 +1081,10 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
      */
     @SuppressWarnings("unchecked")
     public <T> void completeRequest(long requestID, T completion) {
-        CompletableFuture<T> cf;
-        if ((cf = (CompletableFuture<T>) outstandingRequests.get(requestID)) != null) {
+        OutstandingRequest<T> cf;
+        if ((cf = (OutstandingRequest<T>) outstandingRequests.get(requestID)) != null && removeRequest(cf)) {
+            cancelTimeout(cf);
             cf.complete(completion);
-            outstandingRequests.remove(requestID);
         } else {
             log.warn("Attempted to complete request {}, but request not outstanding!", requestID);
         }
@@ -397,15 +1097,40 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
      * @param cause     The cause to give for the exceptional completion.
      */
     public void completeExceptionally(long requestID, Throwable cause) {
-        CompletableFuture cf;
-        if ((cf = outstandingRequests.get(requestID)) != null) {
+        OutstandingRequest cf;
+        if ((cf = (OutstandingRequest) outstandingRequests.get(requestID)) != null && removeRequest(cf)) {
+            cancelTimeout(cf);
             cf.completeExceptionally(cause);
-            outstandingRequests.remove(requestID);
         } else {
             log.warn("Attempted to exceptionally complete request {}, but request not outstanding!", requestID);
         }
     }
 
+    private static void cancelTimeout(OutstandingRequest request) {
+        // The channel may close before the timeout of a request is set.
+        Timeout timeout = request.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Remove a request from the outstanding requests.
+     *
+     * @param request The request to remove.
+     * @return True, if this call removed the request, false if it was already removed.
+     */
+    private boolean removeRequest(OutstandingRequest request) {
+        if (outstandingRequests.remove(request)) {
+            if (request.channel != null) {
+                request.channel.outstanding.decrementAndGet();
+            }
+            signalCapacity();
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Validate the epoch of a CorfuMsg, and send a WRONG_EPOCH response if
      * the server is in the wrong epoch. Ignored if the message type is reset (which
@@ -446,7 +1171,11 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
                 if (validateEpochAndClientID(m, ctx)) {
                     // Route the message to the handler.
                     log.trace("Message routed to {}: {}", handler.getClass().getSimpleName(), m);
-                    handler.handleMessage(m, ctx);
+                    if (blockingTypes.contains(m.getMsgType())) {
+                        ee.execute(() -> handler.handleMessage(m, ctx));
+                    } else {
+                        handler.handleMessage(m, ctx);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -454,6 +1183,14 @@ public class NettyClientRouter extends SimpleChannelInboundHandler<CorfuMsg>
         }
     }
 
+    @Override
+    public void channelWritabilityChanged(ChannelHandlerContext ctx) throws Exception {
+        if (ctx.channel().isWritable()) {
+            signalCapacity();
+        }
+        super.channelWritabilityChanged(ctx);
+    }
+
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
         log.error("Exception during channel handling.", cause);
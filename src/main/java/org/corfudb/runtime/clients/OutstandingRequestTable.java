@@ -0,0 +1,142 @@
+package org.corfudb.runtime.clients;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The requests outstanding on a router, kept in a fixed table of slots indexed by
+ * request ID modulo the capacity of the table.
+ * <p>
+ * Adding a request takes the next request ID whose slot is free, so looking up or
+ * removing a request is a single array access and request IDs are never boxed. The
+ * capacity of the table is also the maximum number of requests in flight: once it
+ * is full, new requests are refused until others complete.
+ */
+class OutstandingRequestTable {
+
+    /**
+     * A request which can be kept in the table. Its request ID is assigned when it
+     * is added.
+     */
+    static class Request<T> extends CompletableFuture<T> {
+        long requestID = -1L;
+
+        public long getRequestID() {
+            return requestID;
+        }
+    }
+
+    private final AtomicReferenceArray<Request> slots;
+
+    private final int mask;
+
+    /**
+     * The number of requests in the table, including those which are being added.
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * Create a new table.
+     *
+     * @param capacity The maximum number of outstanding requests, rounded up to a power of two.
+     */
+    OutstandingRequestTable(int capacity) {
+        if (capacity < 1 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Invalid capacity " + capacity);
+        }
+        int slotCount = Integer.highestOneBit(capacity);
+        if (slotCount < capacity) {
+            slotCount <<= 1;
+        }
+        slots = new AtomicReferenceArray<>(slotCount);
+        mask = slotCount - 1;
+    }
+
+    /**
+     * Add a request to the table, assigning it the next request ID of the generator
+     * whose slot is free. IDs whose slot is taken by a request which has not
+     * completed yet are skipped.
+     *
+     * @param request   The request to add.
+     * @param requestID The generator of request IDs.
+     * @return True, if the request was added, false if the table is full.
+     */
+    boolean add(Request request, AtomicLong requestID) {
+        if (size.incrementAndGet() > slots.length()) {
+            size.decrementAndGet();
+            return false;
+        }
+        // A slot is reserved for this request, so this terminates.
+        while (true) {
+            long id = requestID.getAndIncrement();
+            request.requestID = id;
+            if (slots.compareAndSet(slot(id), null, request)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Get an outstanding request.
+     *
+     * @param requestID The ID of the request.
+     * @return The request, or null if no request with that ID is outstanding.
+     */
+    Request get(long requestID) {
+        Request request = slots.get(slot(requestID));
+        return request != null && request.requestID == requestID ? request : null;
+    }
+
+    /**
+     * Remove a request from the table.
+     *
+     * @param request The request to remove.
+     * @return True, if this call removed the request, false if it was already removed.
+     */
+    boolean remove(Request request) {
+        if (slots.compareAndSet(slot(request.requestID), request, null)) {
+            size.decrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Apply an action to every outstanding request. The action may remove requests.
+     *
+     * @param action The action to apply.
+     */
+    void forEach(Consumer<Request> action) {
+        for (int i = 0; i < slots.length(); i++) {
+            Request request = slots.get(i);
+            if (request != null) {
+                action.accept(request);
+            }
+        }
+    }
+
+    /**
+     * @return The number of outstanding requests.
+     */
+    int size() {
+        return size.get();
+    }
+
+    boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * @return The maximum number of outstanding requests.
+     */
+    int capacity() {
+        return slots.length();
+    }
+
+    private int slot(long requestID) {
+        return (int) requestID & mask;
+    }
+}
@@ -8,11 +8,16 @@ import lombok.Setter;
 import org.corfudb.protocols.wireprotocol.*;
 
 import java.lang.invoke.MethodHandles;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
 
 /**
  * A sequencer client.
@@ -23,6 +28,10 @@ import java.util.concurrent.CompletableFuture;
  */
 public class SequencerClient implements IClient {
 
+    /**
+     * The maximum number of token requests combined into one message.
+     */
+    static final int MAX_COMBINED_REQUESTS = 256;
 
     @Setter
     @Getter
@@ -39,6 +48,49 @@ public class SequencerClient implements IClient {
         return msg.getPayload();
     }
 
+    @ClientHandler(type=CorfuMsgType.TOKEN_MULTI_RES)
+    private static Object handleMultiTokenResponse(CorfuPayloadMsg<MultiTokenResponse> msg,
+                                                   ChannelHandlerContext ctx, IClientRouter r) {
+        return msg.getPayload().getResponses();
+    }
+
+    /**
+     * Called with the stream tails the sequencer pushes to the subscription of this client.
+     */
+    @Setter
+    volatile Consumer<Map<UUID, Long>> tailListener;
+
+    @ClientHandler(type=CorfuMsgType.STREAM_TAILS)
+    private static Object handleStreamTails(CorfuPayloadMsg<StreamTails> msg,
+                                            ChannelHandlerContext ctx, IClientRouter r) {
+        return msg.getPayload().getTails();
+    }
+
+    @ClientHandler(type=CorfuMsgType.STREAM_TAILS_NOTIFY)
+    private Object handleStreamTailsNotify(CorfuPayloadMsg<StreamTails> msg,
+                                           ChannelHandlerContext ctx, IClientRouter r) {
+        Consumer<Map<UUID, Long>> listener = tailListener;
+        if (listener != null) {
+            listener.accept(msg.getPayload().getTails());
+        }
+        // Notifications do not complete a request.
+        return null;
+    }
+
+    /**
+     * A token request waiting to be combined with other requests.
+     */
+    @Data
+    private static class PendingTokenRequest {
+        final TokenRequest request;
+        final CompletableFuture<TokenResponse> future;
+    }
+
+    /**
+     * Token requests waiting to be sent in the next combined message.
+     */
+    private List<PendingTokenRequest> pendingRequests = new ArrayList<>();
+
     public CompletableFuture<TokenResponse> nextToken(Set<UUID> streamIDs, long numTokens) {
         return router.sendMessageAndGetCompletable(
                 CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(numTokens, streamIDs, false, false)));
@@ -60,4 +112,95 @@ public class SequencerClient implements IClient {
                 CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(numTokens, streamIDs, overwrite, replexOverwrite,
                         txnResolution, readTimestamp)));
     }
+
+    public CompletableFuture<TokenResponse> nextToken(TokenRequest request) {
+        return router.sendMessageAndGetCompletable(CorfuMsgType.TOKEN_REQ.payloadMsg(request));
+    }
+
+    /**
+     * Send a batch of token requests in a single message. The sequencer resolves
+     * the requests in order.
+     *
+     * @param requests The token requests.
+     * @return A completable future with the responses, in the order of the requests.
+     */
+    public CompletableFuture<List<TokenResponse>> nextTokens(List<TokenRequest> requests) {
+        return router.sendMessageAndGetCompletable(
+                CorfuMsgType.TOKEN_MULTI_REQ.payloadMsg(new MultiTokenRequest(requests)));
+    }
+
+    /**
+     * Subscribe to the tails of a set of streams, replacing the streams this client
+     * subscribed to before. Tail advances are passed to the tail listener.
+     *
+     * @param streamIDs The streams to subscribe to, or an empty set to unsubscribe.
+     * @return A completable future with the current tail of each stream.
+     */
+    public CompletableFuture<Map<UUID, Long>> subscribe(Set<UUID> streamIDs) {
+        return router.sendMessageAndGetCompletable(
+                CorfuMsgType.STREAM_SUBSCRIBE.payloadMsg(new StreamSubscription(streamIDs)));
+    }
+
+    /**
+     * Request a token, combining the request with token requests made concurrently
+     * by other threads into one message.
+     * <p>
+     * The first thread to find no pending requests waits for the combining window
+     * and then sends every request which arrived in the meantime. Other threads
+     * just add their request to the pending batch. A batch which reaches
+     * MAX_COMBINED_REQUESTS is sent right away.
+     *
+     * @param request The token request.
+     * @param window  How long to wait for other requests.
+     * @return A completable future with the response to this request.
+     */
+    public CompletableFuture<TokenResponse> nextTokenCombined(TokenRequest request, Duration window) {
+        CompletableFuture<TokenResponse> future = new CompletableFuture<>();
+        List<PendingTokenRequest> batch = null;
+        boolean leader;
+        synchronized (this) {
+            leader = pendingRequests.isEmpty();
+            pendingRequests.add(new PendingTokenRequest(request, future));
+            if (pendingRequests.size() >= MAX_COMBINED_REQUESTS) {
+                batch = pendingRequests;
+                pendingRequests = new ArrayList<>();
+            }
+        }
+        if (batch == null && leader) {
+            LockSupport.parkNanos(window.toNanos());
+            synchronized (this) {
+                if (!pendingRequests.isEmpty()) {
+                    batch = pendingRequests;
+                    pendingRequests = new ArrayList<>();
+                }
+            }
+        }
+        if (batch != null) {
+            sendCombined(batch);
+        }
+        return future;
+    }
+
+    private void sendCombined(List<PendingTokenRequest> batch) {
+        if (batch.size() == 1) {
+            PendingTokenRequest p = batch.get(0);
+            nextToken(p.getRequest()).whenComplete((resp, ex) -> complete(p.getFuture(), resp, ex));
+            return;
+        }
+        List<TokenRequest> requests = new ArrayList<>(batch.size());
+        batch.forEach(p -> requests.add(p.getRequest()));
+        nextTokens(requests).whenComplete((resps, ex) -> {
+            for (int i = 0; i < batch.size(); i++) {
+                complete(batch.get(i).getFuture(), resps == null ? null : resps.get(i), ex);
+            }
+        });
+    }
+
+    private static void complete(CompletableFuture<TokenResponse> future, TokenResponse resp, Throwable ex) {
+        if (ex != null) {
+            future.completeExceptionally(ex);
+        } else {
+            future.complete(resp);
+        }
+    }
 }
@@ -2,6 +2,7 @@ package org.corfudb.runtime.collections;
 
 
 import org.corfudb.runtime.object.Accessor;
+import org.corfudb.runtime.object.ConflictParameter;
 import org.corfudb.runtime.object.ICorfuSMRObject;
 import org.corfudb.runtime.object.Mutator;
 import org.corfudb.runtime.object.MutatorAccessor;
@@ -59,7 +60,7 @@ public class SMRMap<K, V> implements Map<K, V>, ICorfuSMRObject<HashMap<K, V>> {
      */
     @Override
     @Accessor
-    public boolean containsKey(Object key) {
+    public boolean containsKey(@ConflictParameter Object key) {
         return getSMRObject().containsKey(key);
     }
 
@@ -114,7 +115,7 @@ public class SMRMap<K, V> implements Map<K, V>, ICorfuSMRObject<HashMap<K, V>> {
      */
     @Override
     @Accessor
-    public V get(Object key) {
+    public V get(@ConflictParameter Object key) {
         return getSMRObject().get(key);
     }
 
@@ -144,7 +145,7 @@ public class SMRMap<K, V> implements Map<K, V>, ICorfuSMRObject<HashMap<K, V>> {
      */
     @Override
     @MutatorAccessor(name = "put")
-    public V put(K key, V value) {
+    public V put(@ConflictParameter K key, V value) {
         return getSMRObject().put(key, value);
     }
 
@@ -180,7 +181,7 @@ public class SMRMap<K, V> implements Map<K, V>, ICorfuSMRObject<HashMap<K, V>> {
      */
     @Override
     @MutatorAccessor(name = "remove")
-    public V remove(Object key) {
+    public V remove(@ConflictParameter Object key) {
         return getSMRObject().remove(key);
     }
 
@@ -0,0 +1,9 @@
+package org.corfudb.runtime.exceptions;
+
+/**
+ * Thrown when a log unit fails to handle a request because of an error on the server,
+ * such as a storage failure.
+ */
+public class ServerErrorException extends LogUnitException {
+
+}
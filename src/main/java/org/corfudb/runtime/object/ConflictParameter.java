@@ -0,0 +1,18 @@
+package org.corfudb.runtime.object;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks the parameter of an accessor or mutator which identifies the part of
+ * the object it touches, such as the key of a map. Optimistic transactions
+ * send a hash of this parameter to the sequencer, so that transactions which
+ * access different keys of an object do not conflict. Methods without a
+ * conflict parameter conflict with every other access to the object.
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ConflictParameter {
+}
@@ -1,5 +1,9 @@
 package org.corfudb.runtime.object;
 
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -57,6 +61,10 @@ public class CorfuSMRObjectProxy<P> extends CorfuObjectProxy<P> {
     @Setter
     boolean selfState = false;
     ICorfuSMRObject.SMRHandlerMethod postHandler;
+    /**
+     * The index of the conflict parameter of each method, or -1 if the method has none.
+     */
+    final Map<Method, Integer> conflictParameterTable = new ConcurrentHashMap<>();
 
     public CorfuSMRObjectProxy(CorfuRuntime runtime, StreamView sv,
                                Class<P> originalClass, Serializers.SerializerType serializer) {
@@ -222,6 +230,8 @@ public class CorfuSMRObjectProxy<P> extends CorfuObjectProxy<P> {
                             .resetObject(this);
                 }
             }
+            TransactionalContext.getCurrentContext().addConflictKey(this,
+                    getConflictKey(Mmethod, allArguments), true);
             TransactionalContext.getCurrentContext().bufferObjectUpdate(this,
                     method, allArguments, serializer, true);
             doUnderlyingCall(superMethod, Mmethod, allArguments);
@@ -256,6 +266,8 @@ public class CorfuSMRObjectProxy<P> extends CorfuObjectProxy<P> {
             doTransactionalSync(obj);
             // in a transaction, we add the update to the TX buffer and apply the update
             // immediately.
+            TransactionalContext.getCurrentContext().addConflictKey(this,
+                    getConflictKey(Mmethod, allArguments), true);
             TransactionalContext.getCurrentContext().bufferObjectUpdate(CorfuSMRObjectProxy.this,
                     method, allArguments, serializer, false);
             return doUnderlyingCall(superMethod, Mmethod, allArguments);
@@ -275,6 +287,8 @@ public class CorfuSMRObjectProxy<P> extends CorfuObjectProxy<P> {
             return doUnderlyingCall(superMethod, method, arguments);
         } else {
             doTransactionalSync(obj);
+            TransactionalContext.getCurrentContext().addConflictKey(this,
+                    getConflictKey(method, arguments), false);
             Object ret = doUnderlyingCall(superMethod, method, arguments);
             // If the object was written to (due to transactional clone), the read set is not resolvable.
             if (!TransactionalContext.getCurrentContext().isObjectCloned(this)) {
@@ -304,6 +318,46 @@ public class CorfuSMRObjectProxy<P> extends CorfuObjectProxy<P> {
         }
     }
 
+    /**
+     * Get the conflict key of a method call, which is a hash of the stream of this object
+     * and the serialized conflict parameter of the call.
+     *
+     * @param method    The method called.
+     * @param arguments The arguments of the call.
+     * @return The conflict key, or null if the method conflicts with any access to this object.
+     */
+    public Long getConflictKey(Method method, Object[] arguments) {
+        int index = conflictParameterTable.computeIfAbsent(method, CorfuSMRObjectProxy::findConflictParameter);
+        if (index == -1) {
+            return null;
+        }
+        Hasher hasher = Hashing.murmur3_128().newHasher()
+                .putLong(getStreamID().getMostSignificantBits())
+                .putLong(getStreamID().getLeastSignificantBits());
+        if (arguments[index] != null) {
+            ByteBuf b = Unpooled.buffer();
+            try {
+                Serializers.getSerializer(serializer).serialize(arguments[index], b);
+                hasher.putBytes(b.array(), b.arrayOffset() + b.readerIndex(), b.readableBytes());
+            } finally {
+                b.release();
+            }
+        }
+        return hasher.hash().asLong();
+    }
+
+    private static int findConflictParameter(Method method) {
+        Annotation[][] annotations = method.getParameterAnnotations();
+        for (int i = 0; i < annotations.length; i++) {
+            for (Annotation a : annotations[i]) {
+                if (a instanceof ConflictParameter) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
     public String getSMRMethodName(Method method) {
         for (Annotation a : method.getDeclaredAnnotations()) {
             if (a instanceof Mutator) {
@@ -66,6 +66,18 @@ public abstract class AbstractTransactionalContext implements AutoCloseable {
                                        Object[] SMRArguments, Serializers.SerializerType serializer, boolean writeOnly) {
     }
 
+    /**
+     * Record which part of an object the transaction accessed, for conflict detection.
+     *
+     * @param proxy       The SMR Object proxy which was accessed.
+     * @param conflictKey The conflict key of the access, or null if it conflicts with
+     *                    any access to the object.
+     * @param write       Whether the access wrote the key.
+     * @param <T>         The type of the proxy.
+     */
+    public <T> void addConflictKey(CorfuSMRObjectProxy<T> proxy, Long conflictKey, boolean write) {
+    }
+
     abstract public <T> void resetObject(CorfuSMRObjectProxy<T> proxy);
 
     abstract public void addTransaction(AbstractTransactionalContext tc);
@@ -75,7 +75,42 @@ public class OptimisticTransactionalContext extends AbstractTransactionalContext
         objectMap.entrySet().stream()
                 .forEach(x -> entryMap.put(x.getKey().getSv().getStreamID(),
                         new TXEntry.TXObjectEntry(x.getValue().bufferedWrites, x.getValue().objectIsRead)));
-        return new TXEntry(entryMap, isFirstReadTimestampSet() ? getFirstReadTimestamp() : -1L);
+        TXEntry entry = new TXEntry(entryMap, isFirstReadTimestampSet() ? getFirstReadTimestamp() : -1L);
+        entry.setConflictKeys(getConflictKeys());
+        entry.setWriteKeys(getWriteKeys());
+        return entry;
+    }
+
+    /**
+     * Get the conflict keys of every object which was only accessed through methods
+     * with a conflict parameter.
+     *
+     * @return The conflict keys, by stream.
+     */
+    public Map<UUID, Set<Long>> getConflictKeys() {
+        Map<UUID, Set<Long>> conflictKeys = new HashMap<>();
+        objectMap.forEach((proxy, data) -> {
+            if (!data.conflictsWithObject && !data.conflictKeys.isEmpty()) {
+                conflictKeys.put(proxy.getSv().getStreamID(), data.conflictKeys);
+            }
+        });
+        return conflictKeys;
+    }
+
+    /**
+     * Get the conflict keys which were written, of every object which was only accessed
+     * through methods with a conflict parameter.
+     *
+     * @return The written conflict keys, by stream.
+     */
+    public Map<UUID, Set<Long>> getWriteKeys() {
+        Map<UUID, Set<Long>> writeKeys = new HashMap<>();
+        objectMap.forEach((proxy, data) -> {
+            if (!data.conflictsWithObject && !data.writeKeys.isEmpty()) {
+                writeKeys.put(proxy.getSv().getStreamID(), data.writeKeys);
+            }
+        });
+        return writeKeys;
     }
 
     /**
@@ -108,6 +143,28 @@ public class OptimisticTransactionalContext extends AbstractTransactionalContext
                 });
     }
 
+    @Override
+    public <T> void addConflictKey(CorfuSMRObjectProxy<T> proxy, Long conflictKey, boolean write) {
+        objectMap
+                .compute(proxy, (k, v) ->
+                {
+                    TransactionalObjectData<T> data = v;
+                    if (v == null) {
+                        data = new TransactionalObjectData<>(proxy);
+                    }
+
+                    if (conflictKey == null) {
+                        data.conflictsWithObject = true;
+                    } else {
+                        data.conflictKeys.add(conflictKey);
+                        if (write) {
+                            data.writeKeys.add(conflictKey);
+                        }
+                    }
+                    return data;
+                });
+    }
+
     @Override
     public <T> void resetObject(CorfuSMRObjectProxy<T> proxy) {
         objectMap
@@ -137,8 +194,11 @@ public class OptimisticTransactionalContext extends AbstractTransactionalContext
             ((OptimisticTransactionalContext) tc).getObjectMap().entrySet().stream()
                     .forEach(e -> {
                         if (objectMap.containsKey(e.getKey())) {
-                            objectMap.get(e.getKey())
-                                    .bufferedWrites.addAll(e.getValue().bufferedWrites);
+                            TransactionalObjectData data = objectMap.get(e.getKey());
+                            data.bufferedWrites.addAll(e.getValue().bufferedWrites);
+                            data.conflictKeys.addAll(e.getValue().conflictKeys);
+                            data.writeKeys.addAll(e.getValue().writeKeys);
+                            data.conflictsWithObject |= e.getValue().conflictsWithObject;
                         } else {
                             objectMap.put(e.getKey(), e.getValue());
                         }
@@ -235,6 +295,12 @@ public class OptimisticTransactionalContext extends AbstractTransactionalContext
         List<SMREntry> bufferedWrites;
         boolean objectIsRead;
         boolean nextCloneIsReset;
+        /** The conflict keys of the accesses to the object. */
+        Set<Long> conflictKeys;
+        /** The conflict keys which the transaction wrote. */
+        Set<Long> writeKeys;
+        /** Whether the object was accessed through a method without a conflict parameter. */
+        boolean conflictsWithObject;
 
         public TransactionalObjectData(CorfuSMRObjectProxy<T> proxy) {
             this.proxy = proxy;
@@ -242,6 +308,9 @@ public class OptimisticTransactionalContext extends AbstractTransactionalContext
             this.readTimestamp = Long.MIN_VALUE;
             this.objectIsRead = false;
             this.nextCloneIsReset = false;
+            this.conflictKeys = new HashSet<>();
+            this.writeKeys = new HashSet<>();
+            this.conflictsWithObject = false;
         }
 
         public boolean objectIsCloned() {
@@ -87,6 +87,25 @@ public abstract class AbstractReplicationView {
                               Map<UUID, Long> streamAddresses, Function<UUID, Object> partialEntryFunction)
         throws OverwriteException;
 
+    /**
+     * Write an entry whose data is already serialized, using the replication method given.
+     * Replication methods which can write the serialized data share it with the caller,
+     * who keeps its reference to it. Others serialize the object again.
+     *
+     * @param address              An address to write to.
+     * @param data                 The object the entry was serialized from.
+     * @param entry                The serialized entry, with its streams and backpointers.
+     * @param streamAddresses      The addresses of the entry in its streams.
+     * @param partialEntryFunction The function which gets the entry to write to each stream, if any.
+     * @return The number of bytes that was remotely written.
+     */
+    public int write(long address, Object data, LogData entry, Map<UUID, Long> streamAddresses,
+                     Function<UUID, Object> partialEntryFunction)
+            throws OverwriteException {
+        return write(address, entry.getStreams(), data, entry.getBackpointerMap(), streamAddresses,
+                partialEntryFunction);
+    }
+
     /**
      * Read the given object from an address, using the replication method given.
      *
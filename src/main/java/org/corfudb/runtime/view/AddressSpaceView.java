@@ -3,11 +3,13 @@ package org.corfudb.runtime.view;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
@@ -23,6 +25,7 @@ import org.corfudb.util.Utils;
 import org.corfudb.util.serializer.Serializers;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
@@ -65,9 +68,27 @@ public class AddressSpaceView extends AbstractView {
      * Reset all in-memory caches.
      */
     public void resetCaches() {
+        if (readCache != null) {
+            // Free the data the entries of the previous cache hold.
+            readCache.invalidateAll();
+        }
         readCache = Caffeine.<Long, LogData>newBuilder()
                 .<Long, LogData>weigher((k, v) -> v.getType() != DataType.DATA ? 1 : v.getData().readableBytes())
                 .maximumWeight(runtime.getMaxCacheSize())
+                // Evicted entries still hold their data if their payload was never read.
+                // Deserializing the payload releases the data, and readers which still
+                // hold the entry can get the payload. Entries which can't be deserialized
+                // are released, as their readers can't get the payload either.
+                .removalListener((Long k, LogData v, RemovalCause cause) -> {
+                    if (v != null) {
+                        try {
+                            v.getPayload(runtime);
+                        } catch (Exception e) {
+                            log.warn("Error deserializing evicted entry {}", k, e);
+                            v.release();
+                        }
+                    }
+                })
                 .build(new CacheLoader<Long, LogData>() {
                     @Override
                     public LogData load(Long aLong) throws Exception {
@@ -122,29 +143,38 @@ public class AddressSpaceView extends AbstractView {
     public void write(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap,
                       Map<UUID, Long> streamAddresses, Function<UUID, Object> partialEntryFunction)
             throws OverwriteException {
-        int numBytes = layoutHelper(l -> AbstractReplicationView.getReplicationView(l, l.getReplicationMode(address),
-                l.getSegment(address))
-                .write(address, stream, data, backpointerMap, streamAddresses, partialEntryFunction));
+        // Serialize once: the replicas are sent this buffer, and the cache keeps it.
+        ByteBuf b = runtime.getAllocator().directBuffer();
+        Serializers.getSerializer(Serializers.SerializerType.CORFU)
+                .serialize(data, b);
 
-        // Insert this write to our local cache.
-        if (!runtime.isCacheDisabled()) {
-            //TODO: fix me
-            ByteBuf b = PooledByteBufAllocator.DEFAULT.buffer();
-            Serializers.getSerializer(Serializers.SerializerType.CORFU)
-                    .serialize(data, b);
+        LogData ld = new LogData(DataType.DATA, b);
+        ld.setGlobalAddress(address);
+        ld.setBackpointerMap(backpointerMap);
+        ld.setStreams(stream);
+        ld.setLogicalAddresses(streamAddresses);
+
+        // FIXME
+        if (data instanceof LogEntry) {
+            ((LogEntry) data).setRuntime(runtime);
+            ((LogEntry) data).setEntry(ld);
+        }
 
-            LogData ld = new LogData(DataType.DATA, b);
-            ld.setGlobalAddress(address);
-            ld.setBackpointerMap(backpointerMap);
-            ld.setStreams(stream);
-            ld.setLogicalAddresses(streamAddresses);
+        boolean cached = false;
+        try {
+            layoutHelper(l -> AbstractReplicationView.getReplicationView(l, l.getReplicationMode(address),
+                    l.getSegment(address))
+                    .write(address, data, ld, streamAddresses, partialEntryFunction));
 
-            // FIXME
-            if (data instanceof LogEntry) {
-                ((LogEntry) data).setRuntime(runtime);
-                ((LogEntry) data).setEntry(ld);
+            // Insert this write to our local cache, which takes over the reference to the data.
+            if (!runtime.isCacheDisabled()) {
+                readCache.put(address, ld);
+                cached = true;
+            }
+        } finally {
+            if (!cached) {
+                ld.release();
             }
-            readCache.put(address, ld);
         }
     }
 
@@ -158,16 +188,16 @@ public class AddressSpaceView extends AbstractView {
         if (!runtime.isCacheDisabled()) {
             return readCache.get(address);
         }
-        return fetch(address);
+        return detach(fetch(address));
     }
 
     public Map<Long, LogData> read(UUID stream, long offset, long size) {
         // TODO: We are assuming that we are reading from the most recent segment....
-        return layoutHelper(l -> AbstractReplicationView
+        return detachAll(layoutHelper(l -> AbstractReplicationView
                         .getReplicationView(l, l.getSegments().get(l.getSegments().size() - 1).getReplicationMode(),
                                 l.getSegments().get(l.getSegments().size() - 1))
                         .read(stream, offset, size)
-        );
+        ));
     }
 
     /**
@@ -181,7 +211,7 @@ public class AddressSpaceView extends AbstractView {
         if (!runtime.isCacheDisabled()) {
             return readCache.getAll(Utils.discretizeRangeSet(addresses));
         }
-        return this.cacheFetch(Utils.discretizeRangeSet(addresses));
+        return detachAll(this.cacheFetch(Utils.discretizeRangeSet(addresses)));
     }
 
     /**
@@ -191,11 +221,35 @@ public class AddressSpaceView extends AbstractView {
      * @return A result.
      */
     public Map<Long, LogData> readPrefix(UUID stream) {
-        return layoutHelper(l -> AbstractReplicationView
+        return detachAll(layoutHelper(l -> AbstractReplicationView
                         .getReplicationView(l, l.getSegments().get(l.getSegments().size() - 1).getReplicationMode(),
                                 l.getSegments().get(l.getSegments().size() - 1))
                         .readPrefix(stream)
-        );
+        ));
+    }
+
+    /**
+     * Detach an entry which is not cached from the buffer it was read into. Readers do not
+     * release the entries they read, which the cache owns, so an entry nothing owns is
+     * copied to the heap, where its data does not need to be released.
+     *
+     * @param entry The entry read.
+     * @return The entry, with its data on the heap.
+     */
+    private static LogData detach(LogData entry) {
+        if (entry == null || entry.getData() == null) {
+            return entry;
+        }
+        LogData copy = new LogData(Unpooled.wrappedBuffer(ByteBufUtil.getBytes(entry.getData())),
+                entry.getMetadataMap());
+        entry.release();
+        return copy;
+    }
+
+    private static Map<Long, LogData> detachAll(Map<Long, LogData> entries) {
+        Map<Long, LogData> detached = new HashMap<>();
+        entries.forEach((address, entry) -> detached.put(address, detach(entry)));
+        return detached;
     }
 
 
@@ -1,10 +1,7 @@
 package org.corfudb.runtime.view;
 
-import io.netty.buffer.ByteBufAllocator;
 import lombok.extern.slf4j.Slf4j;
-import org.corfudb.protocols.logprotocol.LogEntry;
 import org.corfudb.protocols.wireprotocol.DataType;
-import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.util.AutoCloseableByteBuf;
@@ -50,36 +47,39 @@ public class ChainReplicationView extends AbstractReplicationView {
     public int write(long address, Set<UUID> stream, Object data, Map<UUID, Long> backpointerMap,
                      Map<UUID, Long> streamAddresses, Function<UUID, Object> partialEntryFunction)
             throws OverwriteException {
-        int numUnits = getLayout().getSegmentLength(address);
-        int payloadBytes = 0;
-        // To reduce the overhead of serialization, we serialize only the first time we write, saving
-        // when we go down the chain.
+        // Serialize once, and write the same buffer to every unit in the chain.
         try (AutoCloseableByteBuf b =
-                     new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
+                     new AutoCloseableByteBuf(getLayout().getRuntime().getAllocator().directBuffer())) {
             Serializers.getSerializer(Serializers.SerializerType.CORFU)
                     .serialize(data, b);
 
-            LogData ld = new LogData(DataType.DATA, b);
+            LogData ld = new LogData(DataType.DATA, b.getBuf());
             ld.setBackpointerMap(backpointerMap);
             ld.setStreams(stream);
             ld.setGlobalAddress(address);
+            return write(address, data, ld, streamAddresses, partialEntryFunction);
+        }
+    }
 
-            // FIXME
-            if (data instanceof LogEntry) {
-                ((LogEntry) data).setRuntime(getLayout().getRuntime());
-                ((LogEntry) data).setEntry(ld);
-            }
-
-            payloadBytes = b.readableBytes();
-            for (int i = 0; i < numUnits; i++) {
-                log.trace("Write[{}]: chain {}/{}", address, i + 1, numUnits);
-                // In chain replication, we write synchronously to every unit in the chain.
-                CFUtils.getUninterruptibly(
-                        getLayout().getLogUnitClient(address, i)
-                                .write(address, stream, 0L, data, backpointerMap), OverwriteException.class);
-            }
+    /**
+     * Write a serialized entry to an address. Every unit in the chain is sent the same buffer.
+     */
+    @Override
+    public int write(long address, Object data, LogData entry, Map<UUID, Long> streamAddresses,
+                     Function<UUID, Object> partialEntryFunction)
+            throws OverwriteException {
+        int numUnits = getLayout().getSegmentLength(address);
+        for (int i = 0; i < numUnits; i++) {
+            log.trace("Write[{}]: chain {}/{}", address, i + 1, numUnits);
+            // In chain replication, we write synchronously to every unit in the chain.
+            // The writer drives the chain, so it is the writer which waits if a unit's
+            // router applies backpressure, never an event loop.
+            CFUtils.getUninterruptibly(
+                    getLayout().getLogUnitClient(address, i)
+                            .write(address, entry.getStreams(), 0L, entry.getData(), entry.getBackpointerMap()),
+                    OverwriteException.class);
         }
-        return payloadBytes;
+        return entry.getData().readableBytes();
     }
 
     /**
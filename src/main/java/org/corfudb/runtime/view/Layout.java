@@ -39,6 +39,13 @@ public class Layout implements Cloneable {
      */
     @Getter
     List<String> sequencers;
+    /**
+     * Whether streams are partitioned across the sequencers, instead of all
+     * tokens being issued by the first sequencer.
+     */
+    @Getter
+    @Setter
+    boolean partitionedSequencer;
     /**
      * A list of the segments in the layout.
      */
@@ -153,6 +160,25 @@ public class Layout implements Cloneable {
         }
     }
 
+    /**
+     * Get the number of sequencer partitions streams are spread across.
+     *
+     * @return The number of partitions, 1 if the sequencer is not partitioned.
+     */
+    public int getSequencerPartitionCount() {
+        return partitionedSequencer ? sequencers.size() : 1;
+    }
+
+    /**
+     * Get the index of the sequencer which issues the tokens of a stream.
+     *
+     * @param streamID The stream.
+     * @return The index of the sequencer in the list of sequencers.
+     */
+    public int getSequencerPartition(UUID streamID) {
+        return Math.floorMod(streamID.hashCode(), getSequencerPartitionCount());
+    }
+
     public long getLocalAddress(long globalAddress) {
         for (LayoutSegment ls : segments) {
             if (ls.start <= globalAddress && (ls.end > globalAddress || ls.end == -1)) {
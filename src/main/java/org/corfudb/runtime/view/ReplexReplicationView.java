@@ -3,7 +3,6 @@ package org.corfudb.runtime.view;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Range;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.ByteBufAllocator;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.logprotocol.LogEntry;
 import org.corfudb.protocols.logprotocol.MultiSMREntry;
@@ -47,7 +46,7 @@ public class ReplexReplicationView extends AbstractReplicationView {
         // To reduce the overhead of serialization, we serialize only the first time we write, saving
         // when we go down the chain.
         try (AutoCloseableByteBuf b =
-                     new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
+                     new AutoCloseableByteBuf(getLayout().getRuntime().getAllocator().directBuffer())) {
             Serializers.getSerializer(Serializers.SerializerType.CORFU)
                     .serialize(data, b);
             payloadBytes = b.readableBytes();
@@ -95,7 +94,7 @@ public class ReplexReplicationView extends AbstractReplicationView {
                         continue;
                     MultiSMREntry partialWriteSet = new MultiSMREntry(((TXEntry) data).getTxMap().get(streamID).getUpdates());
                     try (AutoCloseableByteBuf tempbuf =
-                                 new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
+                                 new AutoCloseableByteBuf(getLayout().getRuntime().getAllocator().directBuffer())) {
                         Serializers.getSerializer(Serializers.SerializerType.CORFU)
                                 .serialize(partialWriteSet, tempbuf);
 
@@ -123,7 +122,7 @@ public class ReplexReplicationView extends AbstractReplicationView {
                     ByteBuf outBuf = b;
                     if (partial.equals(data)) {
                         try (AutoCloseableByteBuf tempbuf =
-                                     new AutoCloseableByteBuf(ByteBufAllocator.DEFAULT.directBuffer())) {
+                                     new AutoCloseableByteBuf(getLayout().getRuntime().getAllocator().directBuffer())) {
                             Serializers.getSerializer(Serializers.SerializerType.CORFU)
                                     .serialize(partial, tempbuf);
 
@@ -211,11 +210,13 @@ public class ReplexReplicationView extends AbstractReplicationView {
                     if (!(Boolean)(potentialResult.get(address).getMetadataMap().get(IMetadata.LogUnitMetadataType.COMMIT))) {
                         // If the commit is FALSE, then it is an aborted write and doesn't need to be hole-filled.
                         //potentialResult.put(address, LogData.HOLE);
+                        potentialResult.get(address).release();
                         builder.put(address, LogData.EMPTY);
                     } else {
                         builder.put(address, potentialResult.get(address));
                     }
                 } else {
+                    potentialResult.get(address).release();
                     builder.put(address, LogData.EMPTY);
                 }
             } else {
@@ -1,19 +1,64 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.TokenRequest;
 import org.corfudb.protocols.wireprotocol.TokenResponse;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.util.CFUtils;
 
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
 
 /**
  * Created by mwei on 12/10/15.
  */
+@Slf4j
 public class SequencerView extends AbstractView {
 
+    /**
+     * Token leases, by stream.
+     */
+    private final Map<UUID, TokenLease> leases = new ConcurrentHashMap<>();
+
+    /**
+     * How often the sequencer is polled when waiting for a stream tail without a subscription.
+     */
+    static final Duration TAIL_POLL_INTERVAL = Duration.ofMillis(1);
+
+    /**
+     * A scheduler, which is used to release the tokens of expired leases.
+     * Created when the first lease is enabled.
+     */
+    private volatile ScheduledExecutorService leaseScheduler;
+
+    /**
+     * The stream tails pushed by the sequencer, created when a tail is first read
+     * with subscriptions enabled.
+     */
+    private volatile TailSubscription tailSubscription;
+
     public SequencerView(CorfuRuntime runtime) {
         super(runtime);
     }
@@ -30,17 +75,583 @@ public class SequencerView extends AbstractView {
      * @return The first token retrieved.
      */
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streamIDs, numTokens)));
+        TokenLease lease = getLease(streamIDs, numTokens);
+        if (lease != null) {
+            TokenResponse token = numTokens == 0 ? lease.check() : lease.take();
+            if (token != null) {
+                return numTokens == 0 ? layoutHelper(l -> settleTail(l, new TokenRequest(0L, streamIDs,
+                        false, false), token)) : token;
+            }
+        }
+        return requestToken(new TokenRequest((long) numTokens, streamIDs, false, false));
     }
 
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens, boolean overwrite, boolean replexOverwrite) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(
-                streamIDs, numTokens, overwrite, replexOverwrite)));
+        return requestToken(new TokenRequest((long) numTokens, streamIDs, overwrite, replexOverwrite));
     }
 
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens, boolean overwrite, boolean replexOverwrite,
                                                         boolean txnResolution, long readTimestamp) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(
-                streamIDs, numTokens, overwrite, replexOverwrite, txnResolution, readTimestamp)));
+        return requestToken(new TokenRequest((long) numTokens, streamIDs, overwrite, replexOverwrite,
+                txnResolution, readTimestamp));
+    }
+
+    public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens, boolean overwrite, boolean replexOverwrite,
+                                   boolean txnResolution, long readTimestamp, Map<UUID, Set<Long>> conflictKeys,
+                                   Map<UUID, Set<Long>> writeKeys) {
+        return requestToken(new TokenRequest((long) numTokens, streamIDs, overwrite, replexOverwrite,
+                txnResolution, readTimestamp, conflictKeys, writeKeys));
+    }
+
+    /**
+     * Send a token request to the sequencer, or to the sequencer partitions of its
+     * streams if the layout partitions the sequencer.
+     *
+     * @param request The token request.
+     * @return The response of the sequencer.
+     */
+    private TokenResponse requestToken(TokenRequest request) {
+        TokenResponse response = layoutHelper(l -> {
+            if (l.getSequencerPartitionCount() == 1) {
+                return sendRequest(l, 0, request);
+            }
+            if (request.getStreams() == null || request.getStreams().isEmpty()) {
+                return request.getNumTokens() == 0 ? queryGlobalTail(l, request)
+                        : sendRequest(l, ThreadLocalRandom.current().nextInt(l.getSequencerPartitionCount()), request);
+            }
+            SortedMap<Integer, Set<UUID>> partitions = new TreeMap<>();
+            for (UUID id : request.getStreams()) {
+                partitions.computeIfAbsent(l.getSequencerPartition(id), p -> new HashSet<>()).add(id);
+            }
+            if (request.getNumTokens() == 0) {
+                return settleTail(l, request, partitions.size() == 1
+                        ? sendRequest(l, partitions.firstKey(), request) : queryPartitions(l, request, partitions));
+            }
+            return partitions.size() == 1 ? sendRequest(l, partitions.firstKey(), request)
+                    : issueAcrossPartitions(l, request, partitions);
+        });
+        TailSubscription subscription = tailSubscription;
+        if (subscription != null && request.getNumTokens() > 0 && response.getToken() != -1L) {
+            // Our own writes are visible to our readers without waiting for the notification.
+            subscription.issued(response.getBackpointerMap().keySet(),
+                    response.getToken() + request.getNumTokens() - 1);
+        }
+        return response;
+    }
+
+    /**
+     * Get the last token issued for a stream.
+     * <p>
+     * If the runtime subscribes to stream tails, this returns the tail the sequencer last
+     * pushed, without a request. Otherwise, or if the stream has a token lease or the
+     * sequencer is partitioned, the sequencer is asked.
+     *
+     * @param streamID The stream.
+     * @return The last token issued for the stream, or -1 if none was issued.
+     */
+    public long getStreamTail(UUID streamID) {
+        if (!isSubscribed(streamID)) {
+            return nextToken(Collections.singleton(streamID), 0).getToken();
+        }
+        return getTailSubscription().getTail(streamID, runtime.getStreamTailRefresh().toNanos());
+    }
+
+    /**
+     * Wait until a token after an address is issued for a stream. If the runtime subscribes
+     * to stream tails, this waits for a notification; otherwise the sequencer is polled.
+     *
+     * @param streamID The stream.
+     * @param address  The address to wait for a later token than.
+     * @param timeout  How long to wait.
+     * @return The last token issued for the stream, which is not after address if the wait timed out.
+     */
+    public long awaitStreamTail(UUID streamID, long address, Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (!isSubscribed(streamID)) {
+            long tail = getStreamTail(streamID);
+            while (tail <= address && deadline - System.nanoTime() > 0) {
+                LockSupport.parkNanos(TAIL_POLL_INTERVAL.toNanos());
+                tail = getStreamTail(streamID);
+            }
+            return tail;
+        }
+        return getTailSubscription().awaitTail(streamID, address, deadline,
+                runtime.getStreamTailRefresh().toNanos());
+    }
+
+    /**
+     * Whether the tail of a stream is read from the tail subscription. Tails pushed by
+     * the partitions of a partitioned sequencer can't be settled (see settleTail), so
+     * those are always read from the sequencers.
+     */
+    private boolean isSubscribed(UUID streamID) {
+        return runtime.getStreamTailRefresh() != null && !leases.containsKey(streamID)
+                && runtime.getLayoutView().getLayout().getSequencerPartitionCount() == 1;
+    }
+
+    /**
+     * Send a token request to a sequencer, combining it with concurrent requests
+     * if the runtime has a token combining window set.
+     */
+    private TokenResponse sendRequest(Layout l, int partition, TokenRequest request) {
+        Duration window = runtime.getTokenCombineWindow();
+        return CFUtils.getUninterruptibly(window == null
+                ? l.getSequencer(partition).nextToken(request)
+                : l.getSequencer(partition).nextTokenCombined(request, window));
+    }
+
+    /**
+     * Get the global tail of a partitioned sequencer, which is the largest tail of
+     * its partitions, settled so that it can be used as a transaction read timestamp.
+     */
+    private TokenResponse queryGlobalTail(Layout l, TokenRequest request) {
+        List<CompletableFuture<TokenResponse>> tails = new ArrayList<>();
+        for (int p = 0; p < l.getSequencerPartitionCount(); p++) {
+            tails.add(l.getSequencer(p).nextToken(request));
+        }
+        long tail = -1L;
+        for (CompletableFuture<TokenResponse> t : tails) {
+            tail = Math.max(tail, CFUtils.getUninterruptibly(t).getToken());
+        }
+        return settleTail(l, request, new TokenResponse(tail, Collections.emptyMap(), Collections.emptyMap()));
+    }
+
+    /**
+     * Move every partition of a partitioned sequencer past a tail before it is returned.
+     * <p>
+     * A partition only issues addresses from its own blocks, so the tail of one partition
+     * may be after addresses another partition has yet to issue. Readers hole fill the
+     * addresses below a tail which were not written, so once the tail is returned no
+     * partition may issue an address at or below it.
+     *
+     * @param l       The layout.
+     * @param request The request which read the tail.
+     * @param tail    The response with the tail.
+     * @return The response with the tail.
+     */
+    private TokenResponse settleTail(Layout l, TokenRequest request, TokenResponse tail) {
+        if (l.getSequencerPartitionCount() == 1 || tail.getToken() == -1L) {
+            return tail;
+        }
+        TokenRequest advance = partialRequest(request, Collections.emptySet(), 0L, tail.getToken(), -1L);
+        List<CompletableFuture<TokenResponse>> advances = new ArrayList<>();
+        for (int p = 0; p < l.getSequencerPartitionCount(); p++) {
+            advances.add(l.getSequencer(p).nextToken(advance));
+        }
+        advances.forEach(CFUtils::getUninterruptibly);
+        return tail;
+    }
+
+    /**
+     * Query the tails of streams which belong to several partitions, and merge the answers.
+     */
+    private TokenResponse queryPartitions(Layout l, TokenRequest request,
+                                          SortedMap<Integer, Set<UUID>> partitions) {
+        long max = -1L;
+        Map<UUID, Long> streamAddresses = new HashMap<>();
+        for (Map.Entry<Integer, Set<UUID>> e : partitions.entrySet()) {
+            TokenResponse r = sendRequest(l, e.getKey(), partialRequest(request, e.getValue(), 0L, -1L, -1L));
+            max = Math.max(max, r.getToken());
+            streamAddresses.putAll(r.getStreamAddresses());
+        }
+        return new TokenResponse(max, Collections.emptyMap(), streamAddresses);
+    }
+
+    /**
+     * Issue tokens for a request whose streams belong to several partitions.
+     * <p>
+     * The coordinator, which is the lowest partition of the request, issues addresses
+     * after the tails of all streams of the request for its own streams. Every other
+     * partition then registers its streams at those addresses, which fails if one of
+     * its streams was issued a later address in the meantime, or if a transaction
+     * conflicts on one of its streams. If any partition fails, the partitions which
+     * accepted the request release its streams, the addresses are hole filled, and
+     * transactions abort while other requests are retried.
+     */
+    private TokenResponse issueAcrossPartitions(Layout l, TokenRequest request,
+                                                SortedMap<Integer, Set<UUID>> partitions) {
+        while (true) {
+            long tail = -1L;
+            for (Map.Entry<Integer, Set<UUID>> e : partitions.entrySet()) {
+                tail = Math.max(tail, sendRequest(l, e.getKey(),
+                        partialRequest(request, e.getValue(), 0L, -1L, -1L)).getToken());
+            }
+            int coordinator = partitions.firstKey();
+            TokenResponse issued = sendRequest(l, coordinator, partialRequest(request, partitions.get(coordinator),
+                    request.getNumTokens(), Math.max(tail, request.getMinToken()), -1L));
+            if (issued.getToken() == -1L) {
+                return issued;
+            }
+
+            long token = issued.getToken();
+            Map<UUID, Long> backpointers = new HashMap<>(issued.getBackpointerMap());
+            Map<UUID, Long> streamAddresses = new HashMap<>(issued.getStreamAddresses());
+            List<Integer> accepted = new ArrayList<>();
+            accepted.add(coordinator);
+            for (Map.Entry<Integer, Set<UUID>> e : partitions.tailMap(coordinator + 1).entrySet()) {
+                TokenResponse r = sendRequest(l, e.getKey(), partialRequest(request, e.getValue(),
+                        request.getNumTokens(), -1L, token));
+                if (r.getToken() == -1L) {
+                    break;
+                }
+                accepted.add(e.getKey());
+                backpointers.putAll(r.getBackpointerMap());
+                streamAddresses.putAll(r.getStreamAddresses());
+            }
+            if (accepted.size() == partitions.size()) {
+                return new TokenResponse(token, backpointers, streamAddresses);
+            }
+
+            log.debug("Partitions of {} did not accept tokens at {}, releasing them", request.getStreams(), token);
+            List<CompletableFuture<TokenResponse>> releases = new ArrayList<>();
+            for (int p : accepted) {
+                releases.add(l.getSequencer(p).nextToken(partialRequest(request, partitions.get(p), 0L, -1L, token)));
+            }
+            releases.forEach(CFUtils::getUninterruptibly);
+            releaseTokens(token, token + request.getNumTokens());
+            if (request.getTxnResolution()) {
+                return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+            }
+        }
+    }
+
+    /**
+     * Get the part of a token request which belongs to a set of its streams.
+     */
+    private static TokenRequest partialRequest(TokenRequest request, Set<UUID> streams, long numTokens,
+                                               long minToken, long assignedToken) {
+        return new TokenRequest(numTokens, streams, request.getOverwrite(), request.getReplexOverwrite(),
+                request.getTxnResolution(), request.getReadTimestamp(), partialKeys(request.getConflictKeys(), streams),
+                partialKeys(request.getWriteKeys(), streams), minToken, assignedToken);
+    }
+
+    private static Map<UUID, Set<Long>> partialKeys(Map<UUID, Set<Long>> keys, Set<UUID> streams) {
+        if (keys == null || keys.isEmpty()) {
+            return keys;
+        }
+        return keys.entrySet().stream()
+                .filter(e -> streams.contains(e.getKey()))
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    /**
+     * Hole fill tokens which were issued but will never be written.
+     */
+    private void releaseTokens(long start, long stop) {
+        for (long address = start; address < stop; address++) {
+            try {
+                runtime.getAddressSpaceView().fillHole(address);
+            } catch (OverwriteException oe) {
+                log.trace("Hole fill of {} completed by remote client.", address);
+            }
+        }
+    }
+
+    /**
+     * Lease tokens for a stream in blocks, handing them out locally instead of
+     * asking the sequencer for every token.
+     * <p>
+     * This is only safe if this runtime is the only writer of the stream: the
+     * sequencer considers the whole block issued, so other clients see the end
+     * of the block as the tail of the stream. Tokens which are not handed out
+     * before the lease expires are hole filled.
+     *
+     * @param streamID  The stream to lease tokens for.
+     * @param blockSize The number of tokens to reserve at a time.
+     * @param leaseTime How long a block may be handed out before the remaining tokens are released.
+     */
+    public void enableTokenLease(UUID streamID, int blockSize, Duration leaseTime) {
+        if (blockSize < 1) {
+            throw new IllegalArgumentException("Lease block size must be positive");
+        }
+        TokenLease lease = new TokenLease(streamID, blockSize, leaseTime.toNanos());
+        lease.expirer = getLeaseScheduler().scheduleAtFixedRate(lease::expire,
+                leaseTime.toMillis(), Math.max(1, leaseTime.toMillis()), TimeUnit.MILLISECONDS);
+        TokenLease previous = leases.put(streamID, lease);
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    /**
+     * Stop leasing tokens for a stream, hole filling any leased tokens which were not handed out.
+     *
+     * @param streamID The stream to stop leasing tokens for.
+     */
+    public void disableTokenLease(UUID streamID) {
+        TokenLease lease = leases.remove(streamID);
+        if (lease != null) {
+            lease.close();
+        }
+    }
+
+    private TokenLease getLease(Set<UUID> streamIDs, int numTokens) {
+        if (leases.isEmpty() || numTokens > 1 || streamIDs.size() != 1) {
+            return null;
+        }
+        return leases.get(streamIDs.iterator().next());
+    }
+
+    private TailSubscription getTailSubscription() {
+        if (tailSubscription == null) {
+            synchronized (this) {
+                if (tailSubscription == null) {
+                    tailSubscription = new TailSubscription();
+                }
+            }
+        }
+        return tailSubscription;
+    }
+
+    private ScheduledExecutorService getLeaseScheduler() {
+        if (leaseScheduler == null) {
+            synchronized (this) {
+                if (leaseScheduler == null) {
+                    leaseScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("SequencerView-Lease-%d").build());
+                }
+            }
+        }
+        return leaseScheduler;
+    }
+
+    /**
+     * The tails of the streams this runtime reads, pushed by the sequencers.
+     * <p>
+     * A stream is added to the subscription the first time its tail is read. The
+     * whole subscription is sent again once it is older than the refresh interval,
+     * which also reads the current tails, in case notifications were lost with a
+     * connection.
+     */
+    private class TailSubscription {
+
+        final Set<UUID> streams = ConcurrentHashMap.newKeySet();
+
+        /** The known tail of each subscribed stream. */
+        final Map<UUID, Long> tails = new ConcurrentHashMap<>();
+
+        /** Waiters for tail advances wait on this, instead of the subscription lock,
+         * which is held while the subscription is sent. */
+        final Object advanced = new Object();
+
+        volatile int waiters;
+
+        /** When the subscription was last sent, in System.nanoTime(). */
+        volatile long refreshed;
+
+        long getTail(UUID streamID, long refreshNanos) {
+            Long tail = tails.get(streamID);
+            if (tail == null || System.nanoTime() - refreshed > refreshNanos) {
+                subscribe(streamID, refreshNanos);
+                tail = tails.get(streamID);
+            }
+            return tail;
+        }
+
+        long awaitTail(UUID streamID, long address, long deadline, long refreshNanos) {
+            long tail = getTail(streamID, refreshNanos);
+            if (tail > address) {
+                return tail;
+            }
+            synchronized (advanced) {
+                waiters++;
+                try {
+                    while ((tail = tails.get(streamID)) <= address) {
+                        long remaining = deadline - System.nanoTime();
+                        if (remaining <= 0) {
+                            break;
+                        }
+                        TimeUnit.NANOSECONDS.timedWait(advanced, remaining);
+                    }
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    waiters--;
+                }
+            }
+            return tail;
+        }
+
+        /**
+         * Send the subscription to the sequencers of its streams, adding a stream.
+         */
+        synchronized void subscribe(UUID streamID, long refreshNanos) {
+            streams.add(streamID);
+            if (tails.containsKey(streamID) && System.nanoTime() - refreshed <= refreshNanos) {
+                return;
+            }
+            layoutHelper(l -> {
+                Map<Integer, Set<UUID>> partitions = new HashMap<>();
+                for (UUID id : streams) {
+                    partitions.computeIfAbsent(l.getSequencerPartition(id), p -> new HashSet<>()).add(id);
+                }
+                for (Map.Entry<Integer, Set<UUID>> e : partitions.entrySet()) {
+                    SequencerClient sequencer = l.getSequencer(e.getKey());
+                    sequencer.setTailListener(this::advance);
+                    advance(CFUtils.getUninterruptibly(sequencer.subscribe(e.getValue())));
+                }
+                return null;
+            });
+            refreshed = System.nanoTime();
+            log.trace("TailSubscription: subscribed to {} streams", streams.size());
+        }
+
+        /**
+         * Record tokens issued to this runtime.
+         */
+        void issued(Set<UUID> streamIDs, long tail) {
+            for (UUID id : streamIDs) {
+                tails.computeIfPresent(id, (k, v) -> Math.max(v, tail));
+            }
+        }
+
+        void advance(Map<UUID, Long> newTails) {
+            newTails.forEach((id, tail) -> tails.merge(id, tail, Math::max));
+            if (waiters > 0) {
+                synchronized (advanced) {
+                    advanced.notifyAll();
+                }
+            }
+        }
+    }
+
+    /**
+     * A block of tokens for a single stream, which were issued by the sequencer
+     * and are handed out one at a time.
+     */
+    private class TokenLease {
+
+        final UUID streamID;
+
+        final int blockSize;
+
+        final long leaseNanos;
+
+        ScheduledFuture<?> expirer;
+
+        /** The next token to hand out. */
+        long next;
+
+        /** One past the last token of the block. */
+        long end;
+
+        /** The backpointer of the next token. */
+        long backpointer = -1L;
+
+        /** The local stream address of the next token. */
+        long nextLocal;
+
+        /** When the current block expires, in System.nanoTime(). */
+        long expiry;
+
+        /** Whether the lease was disabled. */
+        boolean closed;
+
+        TokenLease(UUID streamID, int blockSize, long leaseNanos) {
+            this.streamID = streamID;
+            this.blockSize = blockSize;
+            this.leaseNanos = leaseNanos;
+        }
+
+        /**
+         * Hand out the next token, leasing a new block if the current one is used up or expired.
+         *
+         * @return The next token, or null if the lease was disabled.
+         */
+        TokenResponse take() {
+            long start;
+            long stop;
+            TokenResponse token;
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                start = next;
+                stop = next;
+                if (next == end || System.nanoTime() - expiry >= 0) {
+                    stop = end;
+                    lease();
+                }
+                token = new TokenResponse(next, ImmutableMap.of(streamID, backpointer),
+                        ImmutableMap.of(streamID, nextLocal));
+                backpointer = next;
+                next++;
+                nextLocal++;
+            }
+            release(start, stop);
+            return token;
+        }
+
+        /**
+         * Answer a token query from the state of the lease: the last token handed out
+         * and its local stream address.
+         *
+         * @return The last token, or null if no block was leased yet.
+         */
+        synchronized TokenResponse check() {
+            if (end == 0) {
+                return null;
+            }
+            return new TokenResponse(backpointer, ImmutableMap.of(),
+                    ImmutableMap.of(streamID, nextLocal - 1));
+        }
+
+        /**
+         * Release the rest of the block if it has expired.
+         */
+        void expire() {
+            long start;
+            long stop;
+            synchronized (this) {
+                if (next == end || System.nanoTime() - expiry < 0) {
+                    return;
+                }
+                start = next;
+                stop = end;
+                next = end;
+            }
+            release(start, stop);
+        }
+
+        /**
+         * Stop leasing, releasing the rest of the block.
+         */
+        void close() {
+            expirer.cancel(false);
+            long start;
+            long stop;
+            synchronized (this) {
+                closed = true;
+                start = next;
+                stop = end;
+                next = end;
+            }
+            release(start, stop);
+        }
+
+        /**
+         * Lease a new block from the sequencer. Must hold the lease lock.
+         */
+        private void lease() {
+            TokenResponse block = layoutHelper(l -> CFUtils.getUninterruptibly(
+                    l.getSequencer(l.getSequencerPartition(streamID))
+                            .nextToken(Collections.singleton(streamID), blockSize)));
+            next = block.getToken();
+            end = next + blockSize;
+            backpointer = block.getBackpointerMap().getOrDefault(streamID, -1L);
+            nextLocal = block.getStreamAddresses().getOrDefault(streamID, (long) blockSize - 1) - blockSize + 1;
+            expiry = System.nanoTime() + leaseNanos;
+            log.trace("Lease[{}]: leased tokens [{}, {})", streamID, next, end);
+        }
+
+        /**
+         * Hole fill tokens which were leased but will never be handed out.
+         */
+        private void release(long start, long stop) {
+            if (start < stop) {
+                log.debug("Lease[{}]: releasing unused tokens [{}, {})", streamID, start, stop);
+            }
+            releaseTokens(start, stop);
+        }
     }
 }
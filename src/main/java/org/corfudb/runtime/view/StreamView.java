@@ -9,6 +9,7 @@ import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.runtime.exceptions.ReplexOverwriteException;
 
+import java.time.Duration;
 import java.util.*;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicLong;
@@ -144,7 +145,7 @@ public class StreamView implements AutoCloseable {
      * @return The last issued token for this stream.
      */
     public long check() {
-        return runtime.getSequencerView().nextToken(Collections.singleton(streamID), 0).getToken();
+        return runtime.getSequencerView().getStreamTail(streamID);
     }
 
     /**
@@ -154,7 +155,7 @@ public class StreamView implements AutoCloseable {
      * @return A list of entries that we have resolved for reading.
      */
     public NavigableSet<Long> resolveBackpointersToRead(UUID streamID, long read) {
-        long latestToken = runtime.getSequencerView().nextToken(Collections.singleton(streamID), 0).getToken();
+        long latestToken = runtime.getSequencerView().getStreamTail(streamID);
         log.trace("Read[{}]: latest token at {}, read at: {}", streamID, latestToken, read);
         if (latestToken < read) {
             return new ConcurrentSkipListSet<>();
@@ -218,6 +219,27 @@ public class StreamView implements AutoCloseable {
         return read(Long.MAX_VALUE);
     }
 
+    /**
+     * Read the next item from the stream, waiting for one to be written if there is none.
+     * If the runtime subscribes to stream tails, this waits for the sequencer to push a
+     * new tail instead of polling it.
+     *
+     * @param timeout How long to wait for an item.
+     * @return The next item from the stream, or null if none was written before the timeout.
+     */
+    public synchronized LogData read(Duration timeout) {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        while (true) {
+            LogData r = read();
+            long remaining = deadline - System.nanoTime();
+            if (r != null || remaining <= 0) {
+                return r;
+            }
+            runtime.getSequencerView().awaitStreamTail(streamID, getCurrentContext().logPointer.get() - 1,
+                    Duration.ofNanos(remaining));
+        }
+    }
+
     public synchronized LogData read(long maxGlobal) {
         while (true) {
             /*
@@ -355,7 +377,7 @@ public class StreamView implements AutoCloseable {
             boolean max = false;
             if (pos == Long.MAX_VALUE) {
                 max = true;
-                latestToken = runtime.getSequencerView().nextToken(Collections.singleton(streamID), 0).getToken();
+                latestToken = runtime.getSequencerView().getStreamTail(streamID);
                 log.trace("Linearization point set to {}", latestToken);
             }
             ArrayList<LogData> al = new ArrayList<>();
@@ -110,12 +110,18 @@ public class StreamsView {
             if (object instanceof TXEntry) {
                 long token;
                 if (overwrite) {
-                    TokenResponse temp = runtime.getSequencerView().nextToken(streamIDs, 1, true, false, true, ((TXEntry) object).getReadTimestamp());
+                    // The sequencer already found no conflicts up to the token which was overwritten,
+                    // so only check for conflicts after it, or this transaction would conflict with itself.
+                    long readTimestamp = ((TXEntry) object).getReadTimestamp() == -1L ? -1L
+                            : Math.max(((TXEntry) object).getReadTimestamp(), tokenResponse.getToken());
+                    TokenResponse temp = runtime.getSequencerView().nextToken(streamIDs, 1, true, false, true,
+                            readTimestamp, ((TXEntry) object).getConflictKeys(), ((TXEntry) object).getWriteKeys());
                     token = temp.getToken();
                     tokenResponse = new TokenResponse(token, temp.getBackpointerMap(), tokenResponse.getStreamAddresses());
                 } else {
                     log.trace("object is instance of TXEntry! readTimestamp: {}", ((TXEntry) object).getReadTimestamp());
-                    tokenResponse = runtime.getSequencerView().nextToken(streamIDs, 1, false, false, true, ((TXEntry) object).getReadTimestamp());
+                    tokenResponse = runtime.getSequencerView().nextToken(streamIDs, 1, false, false, true, ((TXEntry) object).getReadTimestamp(),
+                            ((TXEntry) object).getConflictKeys(), ((TXEntry) object).getWriteKeys());
                     token = tokenResponse.getToken();
                 }
                 log.trace("Write[{}]: acquired token = {}, global addr: {}", streamIDs, tokenResponse, token);
@@ -0,0 +1,367 @@
+package org.corfudb.util;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * A concurrent map from UUIDs to primitive longs.
+ * <p>
+ * Entries are stored in open-addressing (linear probing) tables of
+ * (most significant bits, least significant bits, value) triples, so an
+ * entry costs 24 bytes of table space instead of a map node, a UUID and a
+ * boxed Long, and updates do not allocate.
+ * <p>
+ * The map is split into segments. Reads never lock. Writes lock the
+ * segment of the key. A slot is empty until its value is set, and a new
+ * slot is published by writing its key before its value, so a reader which
+ * observes a value also observes its key. A resize builds a new table under
+ * the segment lock and publishes it atomically; readers of the old table
+ * still see a consistent snapshot. Removed entries are left as tombstones
+ * until the next resize, and tables only shrink when shrink() is called.
+ * <p>
+ * Long.MIN_VALUE and Long.MIN_VALUE + 1 are reserved and may not be used
+ * as values.
+ */
+public class ConcurrentUuidLongMap {
+
+    /**
+     * Marks a removed entry.
+     */
+    private static final long TOMBSTONE = Long.MIN_VALUE;
+
+    /**
+     * Marks a slot which has never held an entry.
+     */
+    private static final long EMPTY_VALUE = Long.MIN_VALUE + 1;
+
+    private static final int DEFAULT_SEGMENTS = 64;
+
+    private static final int DEFAULT_SEGMENT_CAPACITY = 16;
+
+    /**
+     * The fraction of slots (live entries and tombstones) in a segment which triggers a resize.
+     */
+    private static final float LOAD_FACTOR = 0.75f;
+
+    /**
+     * A consumer of map entries.
+     */
+    @FunctionalInterface
+    public interface EntryConsumer {
+        void accept(UUID key, long value);
+    }
+
+    private final Segment[] segments;
+
+    private final int segmentShift;
+
+    public ConcurrentUuidLongMap() {
+        this(DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * Create a new map.
+     *
+     * @param concurrency The expected number of concurrent writers, rounded up to a power of two.
+     */
+    public ConcurrentUuidLongMap(int concurrency) {
+        int numSegments = 1;
+        while (numSegments < concurrency) {
+            numSegments <<= 1;
+        }
+        segments = new Segment[numSegments];
+        for (int i = 0; i < numSegments; i++) {
+            segments[i] = new Segment(DEFAULT_SEGMENT_CAPACITY);
+        }
+        segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+    }
+
+    /**
+     * Get the value of a key.
+     *
+     * @param key          The key to look up.
+     * @param defaultValue The value to return if the key is not present.
+     * @return The value of the key, or defaultValue if it is not present.
+     */
+    public long getOrDefault(UUID key, long defaultValue) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        int hash = hash(msb, lsb);
+        return segmentFor(hash).get(msb, lsb, hash, defaultValue);
+    }
+
+    /**
+     * Check whether a key is present.
+     *
+     * @param key The key to look up.
+     * @return True, if the key is present.
+     */
+    public boolean containsKey(UUID key) {
+        return getOrDefault(key, TOMBSTONE) != TOMBSTONE;
+    }
+
+    /**
+     * Set the value of a key.
+     *
+     * @param key   The key to set.
+     * @param value The new value.
+     */
+    public void put(UUID key, long value) {
+        merge(key, value, (oldValue, newValue) -> newValue);
+    }
+
+    /**
+     * Set the value of a key to value if it is not present, or else to the
+     * result of applying the function to the current value and value.
+     *
+     * @param key      The key to update.
+     * @param value    The value to set, or combine with the current value.
+     * @param function The function which combines the current value and value.
+     * @return The new value of the key.
+     */
+    public long merge(UUID key, long value, LongBinaryOperator function) {
+        checkValue(value);
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        int hash = hash(msb, lsb);
+        return segmentFor(hash).merge(msb, lsb, hash, value, function);
+    }
+
+    /**
+     * Remove a key.
+     *
+     * @param key The key to remove.
+     * @return True, if the key was present.
+     */
+    public boolean remove(UUID key) {
+        long msb = key.getMostSignificantBits();
+        long lsb = key.getLeastSignificantBits();
+        int hash = hash(msb, lsb);
+        return segmentFor(hash).remove(msb, lsb, hash);
+    }
+
+    /**
+     * Get the number of entries in the map. This is only exact if there are no concurrent writers.
+     *
+     * @return The number of entries in the map.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /**
+     * Remove all entries from the map.
+     */
+    public void clear() {
+        for (Segment s : segments) {
+            s.clear();
+        }
+    }
+
+    /**
+     * Rebuild the tables of segments which are mostly empty after entries were removed,
+     * releasing the memory of their tombstones and empty slots.
+     */
+    public void shrink() {
+        for (Segment s : segments) {
+            s.shrink();
+        }
+    }
+
+    /**
+     * Apply a function to each entry in the map. The iteration is weakly consistent: it may
+     * or may not reflect writes which happen concurrently with it.
+     *
+     * @param consumer The function to apply.
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (Segment s : segments) {
+            s.forEach(consumer);
+        }
+    }
+
+    private Segment segmentFor(int hash) {
+        return segmentShift == 32 ? segments[0] : segments[hash >>> segmentShift];
+    }
+
+    private static void checkValue(long value) {
+        if (value == TOMBSTONE || value == EMPTY_VALUE) {
+            throw new IllegalArgumentException("Value " + value + " is reserved and cannot be stored");
+        }
+    }
+
+    /**
+     * Mix the bits of a UUID into a hash. The high bits pick the segment and the low bits the slot.
+     */
+    private static int hash(long msb, long lsb) {
+        long h = msb * 0x9E3779B97F4A7C15L ^ lsb;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return (int) h;
+    }
+
+    /**
+     * An open-addressing table. Slot i occupies indexes 3i (msb), 3i+1 (lsb) and 3i+2 (value).
+     */
+    private static final class Table {
+        final AtomicLongArray slots;
+        final int mask;
+
+        Table(int capacity) {
+            slots = new AtomicLongArray(capacity * 3);
+            mask = capacity - 1;
+            for (int i = 0; i < capacity; i++) {
+                slots.lazySet(i * 3 + 2, EMPTY_VALUE);
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+
+    private static final class Segment {
+
+        volatile Table table;
+
+        /** Live entries. */
+        volatile int size;
+
+        /** Slots in use, including tombstones. */
+        int used;
+
+        Segment(int capacity) {
+            table = new Table(capacity);
+        }
+
+        long get(long msb, long lsb, int hash, long defaultValue) {
+            Table t = table;
+            AtomicLongArray slots = t.slots;
+            for (int i = hash & t.mask; ; i = (i + 1) & t.mask) {
+                long value = slots.get(i * 3 + 2);
+                if (value == EMPTY_VALUE) {
+                    return defaultValue;
+                }
+                if (slots.get(i * 3) == msb && slots.get(i * 3 + 1) == lsb) {
+                    return value == TOMBSTONE ? defaultValue : value;
+                }
+            }
+        }
+
+        synchronized long merge(long msb, long lsb, int hash, long value, LongBinaryOperator function) {
+            Table t = table;
+            AtomicLongArray slots = t.slots;
+            int i = hash & t.mask;
+            for (; ; i = (i + 1) & t.mask) {
+                long current = slots.get(i * 3 + 2);
+                if (current == EMPTY_VALUE) {
+                    break;
+                }
+                if (slots.get(i * 3) == msb && slots.get(i * 3 + 1) == lsb) {
+                    long newValue = current == TOMBSTONE ? value : function.applyAsLong(current, value);
+                    checkValue(newValue);
+                    slots.set(i * 3 + 2, newValue);
+                    if (current == TOMBSTONE) {
+                        size++;
+                    }
+                    return newValue;
+                }
+            }
+            // The key was not found, claim the empty slot. The key is written before the value,
+            // since readers treat a slot as empty until its value is set.
+            slots.set(i * 3, msb);
+            slots.set(i * 3 + 1, lsb);
+            slots.set(i * 3 + 2, value);
+            size++;
+            if (++used > t.capacity() * LOAD_FACTOR) {
+                // Grow if at least half of the used slots are live, otherwise just drop the tombstones.
+                resize(size > used / 2 ? t.capacity() * 2 : t.capacity());
+            }
+            return value;
+        }
+
+        synchronized boolean remove(long msb, long lsb, int hash) {
+            Table t = table;
+            AtomicLongArray slots = t.slots;
+            for (int i = hash & t.mask; ; i = (i + 1) & t.mask) {
+                long current = slots.get(i * 3 + 2);
+                if (current == EMPTY_VALUE) {
+                    return false;
+                }
+                if (slots.get(i * 3) == msb && slots.get(i * 3 + 1) == lsb) {
+                    if (current == TOMBSTONE) {
+                        return false;
+                    }
+                    slots.set(i * 3 + 2, TOMBSTONE);
+                    size--;
+                    return true;
+                }
+            }
+        }
+
+        synchronized void shrink() {
+            int capacity = DEFAULT_SEGMENT_CAPACITY;
+            while (capacity * LOAD_FACTOR < size * 2) {
+                capacity <<= 1;
+            }
+            if (capacity < table.capacity()) {
+                resize(capacity);
+            }
+        }
+
+        synchronized void clear() {
+            table = new Table(DEFAULT_SEGMENT_CAPACITY);
+            size = 0;
+            used = 0;
+        }
+
+        void forEach(EntryConsumer consumer) {
+            Table t = table;
+            AtomicLongArray slots = t.slots;
+            for (int i = 0; i < t.capacity(); i++) {
+                long value = slots.get(i * 3 + 2);
+                if (value != EMPTY_VALUE && value != TOMBSTONE) {
+                    consumer.accept(new UUID(slots.get(i * 3), slots.get(i * 3 + 1)), value);
+                }
+            }
+        }
+
+        /**
+         * Rehash the live entries into a new table and publish it. Must hold the segment lock.
+         */
+        private void resize(int capacity) {
+            Table old = table;
+            Table t = new Table(capacity);
+            AtomicLongArray oldSlots = old.slots;
+            AtomicLongArray slots = t.slots;
+            for (int i = 0; i < old.capacity(); i++) {
+                long value = oldSlots.get(i * 3 + 2);
+                if (value == EMPTY_VALUE || value == TOMBSTONE) {
+                    continue;
+                }
+                long msb = oldSlots.get(i * 3);
+                long lsb = oldSlots.get(i * 3 + 1);
+                int j = hash(msb, lsb) & t.mask;
+                while (slots.get(j * 3 + 2) != EMPTY_VALUE) {
+                    j = (j + 1) & t.mask;
+                }
+                slots.lazySet(j * 3, msb);
+                slots.lazySet(j * 3 + 1, lsb);
+                slots.lazySet(j * 3 + 2, value);
+            }
+            used = size;
+            // The volatile write publishes the new table and everything written to it.
+            table = t;
+        }
+    }
+}
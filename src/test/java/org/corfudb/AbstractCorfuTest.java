@@ -29,6 +29,12 @@ import static org.fusesource.jansi.Ansi.ansi;
  */
 public class AbstractCorfuTest {
 
+    static {
+        if (BufferLeakDetector.ENABLED) {
+            BufferLeakDetector.install();
+        }
+    }
+
     public Set<Callable<Object>> scheduledThreads;
     public Set<String> temporaryDirectories;
 
@@ -92,6 +98,15 @@ public class AbstractCorfuTest {
         scheduledThreads.clear();
     }
 
+    @After
+    public void checkForBufferLeaks() throws Exception {
+        if (BufferLeakDetector.ENABLED) {
+            assertThat(BufferLeakDetector.collectLeaks())
+                    .as("Buffers leaked during the test")
+                    .isEmpty();
+        }
+    }
+
     public String getTempDir() {
         String tempdir = com.google.common.io.Files.createTempDir().getAbsolutePath();
         temporaryDirectories.add(tempdir);
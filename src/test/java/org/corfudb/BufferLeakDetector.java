@@ -0,0 +1,103 @@
+package org.corfudb;
+
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.IThrowableProxy;
+import ch.qos.logback.classic.spi.ThrowableProxyUtil;
+import ch.qos.logback.core.AppenderBase;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.IllegalReferenceCountException;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import io.netty.util.concurrent.DefaultPromise;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A leak detector which records the leaks Netty reports, so tests can fail on them.
+ * <p>
+ * It is installed when the corfu.leakCheck property is set, which the leak-check profile
+ * does. Every buffer is then tracked, and AbstractCorfuTest fails each test after which
+ * a leak is reported. Buffers released twice fail with an IllegalReferenceCountException,
+ * which Netty only logs if it is thrown by a listener of a write, such as the one which
+ * releases the buffer of a sent message, so those are reported as well.
+ */
+public class BufferLeakDetector<T> extends ResourceLeakDetector<T> {
+
+    public static final boolean ENABLED = Boolean.getBoolean("corfu.leakCheck");
+
+    private static final List<String> leaks = new ArrayList<>();
+
+    /**
+     * Install the detector. This must happen before the first buffer is allocated.
+     */
+    static void install() {
+        ResourceLeakDetector.setLevel(Level.PARANOID);
+        ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new ResourceLeakDetectorFactory() {
+            @Override
+            public <R> ResourceLeakDetector<R> newResourceLeakDetector(Class<R> resource, int samplingInterval,
+                                                                       long maxActive) {
+                return new BufferLeakDetector<>(resource, samplingInterval, maxActive);
+            }
+        });
+        Logger listenerLog = (Logger) LoggerFactory.getLogger(DefaultPromise.class);
+        AppenderBase<ILoggingEvent> appender = new AppenderBase<ILoggingEvent>() {
+            @Override
+            protected void append(ILoggingEvent event) {
+                IThrowableProxy t = event.getThrowableProxy();
+                if (t != null && t.getClassName().equals(IllegalReferenceCountException.class.getName())) {
+                    synchronized (leaks) {
+                        leaks.add("ByteBuf released twice: " + ThrowableProxyUtil.asString(t));
+                    }
+                }
+            }
+        };
+        appender.setContext(listenerLog.getLoggerContext());
+        appender.start();
+        listenerLog.addAppender(appender);
+    }
+
+    /**
+     * Collect the leaks reported since the last call. Buffers are only reported once
+     * they are garbage collected, so this collects garbage first.
+     *
+     * @return The leaks, with the records of where the leaked buffers were accessed.
+     */
+    static List<String> collectLeaks() throws InterruptedException {
+        final int gcRounds = 3;
+        final long gcWaitMillis = 10;
+        for (int i = 0; i < gcRounds; i++) {
+            System.gc();
+            Thread.sleep(gcWaitMillis);
+            // The detector looks for collected buffers whenever it tracks a new one.
+            ByteBufAllocator.DEFAULT.buffer().release();
+        }
+        synchronized (leaks) {
+            List<String> collected = new ArrayList<>(leaks);
+            leaks.clear();
+            return collected;
+        }
+    }
+
+    BufferLeakDetector(Class<?> resource, int samplingInterval, long maxActive) {
+        super(resource, samplingInterval, maxActive);
+    }
+
+    @Override
+    protected void reportTracedLeak(String resourceType, String records) {
+        synchronized (leaks) {
+            leaks.add(resourceType + " leaked:" + records);
+        }
+        super.reportTracedLeak(resourceType, records);
+    }
+
+    @Override
+    protected void reportUntracedLeak(String resourceType) {
+        synchronized (leaks) {
+            leaks.add(resourceType + " leaked");
+        }
+        super.reportUntracedLeak(resourceType);
+    }
+}
@@ -66,6 +66,7 @@ public class LogUnitServerAssertions extends AbstractAssert<LogUnitServerAsserti
             Serializers.getSerializer(Serializers.SerializerType.CORFU).serialize(data, b);
             byte[] expected = new byte[b.readableBytes()];
             b.getBytes(0, expected);
+            b.release();
             int actualbytes = actual.dataCache.get(new LogAddress(address, null)).getData().readableBytes();
             byte[] actualb = new byte[actualbytes];
             actual.dataCache.get(new LogAddress(address, null)).getData().getBytes(0, actualb);
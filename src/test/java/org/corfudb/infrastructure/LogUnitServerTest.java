@@ -1,6 +1,7 @@
 package org.corfudb.infrastructure;
 
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.google.common.collect.Range;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import org.corfudb.infrastructure.log.LogAddress;
@@ -10,6 +11,9 @@ import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
@@ -51,6 +55,40 @@ public class LogUnitServerTest extends AbstractServerTest {
         assertThat(dataCache.get(new LogAddress(address, null)).getData().capacity()).isEqualTo(1);
     }
 
+    @Test
+    public void rejectedWritesReleaseTheirData() throws Exception {
+        LogUnitServer s1 = new LogUnitServer(ServerContextBuilder.emptyContext());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        ByteBuf first = ByteBufAllocator.DEFAULT.buffer(1).writeByte(42);
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(writeRequest(0L, first)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.WRITE_OK);
+
+        ByteBuf second = ByteBufAllocator.DEFAULT.buffer(1).writeByte(43);
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(writeRequest(0L, second)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ERROR_OVERWRITE);
+        // The cache keeps the written entry, the rejected one is released.
+        assertThat(first.refCnt())
+                .isEqualTo(1);
+        assertThat(second.refCnt())
+                .isEqualTo(0);
+    }
+
+    private static WriteRequest writeRequest(long address, ByteBuf b) {
+        WriteRequest wr = WriteRequest.builder()
+                .writeMode(WriteMode.NORMAL)
+                .data(new LogData(DataType.DATA, b))
+                .build();
+        wr.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+        wr.setRank(0L);
+        wr.setBackpointerMap(Collections.emptyMap());
+        wr.setGlobalAddress(address);
+        return wr;
+    }
+
     @Test
     public void checkThatWritesArePersisted()
             throws Exception {
@@ -130,5 +168,281 @@ public class LogUnitServerTest extends AbstractServerTest {
                 .matchesDataAtAddress(10000000, "10000000".getBytes());
     }
 
-}
+    @Test
+    public void checkThatWriteBackWritesArePersisted()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        // A tiny dirty limit forces writers to be throttled on almost every write.
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setMaxDirty(64)
+                .setMaxDirtyAge(10)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        for (long i = 0; i < 100; i++) {
+            ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+            b.writeBytes(Long.toString(i).getBytes());
+            WriteRequest m = WriteRequest.builder()
+                    .writeMode(WriteMode.NORMAL)
+                    .data(new LogData(DataType.DATA, b))
+                    .build();
+            m.setGlobalAddress(i);
+            m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+            m.setRank(0L);
+            m.setBackpointerMap(Collections.emptyMap());
+            sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+        }
+
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setMaxDirty(64)
+                .setMaxDirtyAge(10)
+                .build());
+        this.router.reset();
+        this.router.addServer(s2);
+
+        for (long i = 0; i < 100; i++) {
+            assertThat(s2)
+                    .containsDataAtAddress(i)
+                    .matchesDataAtAddress(i, Long.toString(i).getBytes());
+        }
+    }
 
+    @Test
+    public void writeBackLogsShareOneDirtyBudget()
+            throws Exception {
+        final int entrySize = 1024;
+        final int numStreams = 8;
+        final int writesPerStream = 2;
+        final long maxDirty = 4 * entrySize;
+        String serviceDir = getTempDir();
+
+        // The age limit is never reached, so only throttled writers flush.
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setMaxDirty(maxDirty)
+                .setMaxDirtyAge(60000)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        // Each stream log stays below the limit, but together they exceed it.
+        for (int i = 0; i < numStreams; i++) {
+            UUID stream = CorfuRuntime.getStreamID("stream" + i);
+            for (long address = 0; address < writesPerStream; address++) {
+                ByteBuf b = ByteBufAllocator.DEFAULT.buffer(entrySize);
+                b.writeZero(entrySize);
+                WriteRequest m = WriteRequest.builder()
+                        .writeMode(WriteMode.REPLEX_STREAM)
+                        .streamAddresses(Collections.singletonMap(stream, address))
+                        .data(new LogData(DataType.DATA, b))
+                        .build();
+                m.setStreams(Collections.singleton(stream));
+                m.setBackpointerMap(Collections.emptyMap());
+                sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+                assertThat(getLastMessage().getMsgType())
+                        .isEqualTo(CorfuMsgType.WRITE_OK);
+                assertThat(s1.getWriteBack().getDirtyBytes())
+                        .isLessThan(maxDirty + 2 * entrySize);
+            }
+        }
+
+        assertThat(s1.getWriteBack().getThrottledWrites())
+                .isGreaterThan(0L);
+        s1.shutdown();
+        assertThat(s1.getWriteBack().getDirtyBytes())
+                .isEqualTo(0L);
+    }
+
+    @Test
+    public void checkThatLargeWritesAreNotAdmittedToCache()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .setCacheMaxEntry(4)
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeData(0L, "0");
+        writeData(1L, "too large to cache");
+
+        LoadingCache<LogAddress, LogData> dataCache = s1.getDataCache();
+        assertThat(dataCache.getIfPresent(new LogAddress(0L, null)))
+                .isNotNull();
+        assertThat(dataCache.getIfPresent(new LogAddress(1L, null)))
+                .isNull();
+
+        // The entry which was not admitted is still readable, and is admitted on read.
+        assertThat(s1)
+                .matchesDataAtAddress(1, "too large to cache".getBytes());
+        assertThat(dataCache.getIfPresent(new LogAddress(1L, null)))
+                .isNotNull();
+
+        // Overwrites of entries which were not admitted are still detected.
+        writeData(1L, "overwrite");
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ERROR_OVERWRITE);
+    }
+
+    @Test
+    public void checkThatReadAdmissionPolicyWritesAround()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .setCacheAdmission("READ")
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeData(0L, "0");
+
+        LoadingCache<LogAddress, LogData> dataCache = s1.getDataCache();
+        assertThat(dataCache.getIfPresent(new LogAddress(0L, null)))
+                .isNull();
+
+        sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L)));
+        sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L)));
+        assertThat(getLastPayloadMessageAs(ReadResponse.class).getReadSet().get(0L).getType())
+                .isEqualTo(DataType.DATA);
+        assertThat(dataCache.stats().hitCount())
+                .isEqualTo(1L);
+    }
+
+    @Test
+    public void checkThatReplexWritesAroundEveryStream()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .setCacheAdmission("READ")
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        b.writeBytes("0".getBytes());
+        Map<UUID, Long> streamAddresses = new HashMap<>();
+        streamAddresses.put(streamA, 0L);
+        streamAddresses.put(streamB, 0L);
+        WriteRequest m = WriteRequest.builder()
+                .writeMode(WriteMode.REPLEX_STREAM)
+                .streamAddresses(streamAddresses)
+                .data(new LogData(DataType.DATA, b))
+                .build();
+        m.setStreams(streamAddresses.keySet());
+        m.setBackpointerMap(Collections.emptyMap());
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.WRITE_OK);
+        assertThat(b.refCnt())
+                .isEqualTo(0);
+
+        for (UUID stream : streamAddresses.keySet()) {
+            sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(Range.singleton(0L), stream)));
+            assertThat(getLastPayloadMessageAs(ReadResponse.class).getReadSet().get(0L).getType())
+                    .isEqualTo(DataType.DATA);
+        }
+    }
+
+    @Test
+    public void holeFillsOnlyHideOverwrites()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .setCacheAdmission("READ")
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeData(0L, "0");
+
+        // The address was written around the cache, so there is no hole to fill.
+        sendMessage(CorfuMsgType.FILL_HOLE.payloadMsg(new TrimRequest(null, 0L)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ACK);
+        sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L)));
+        assertThat(getLastPayloadMessageAs(ReadResponse.class).getReadSet().get(0L).getType())
+                .isEqualTo(DataType.DATA);
+
+        // Any other failure is reported to the client.
+        sendMessage(CorfuMsgType.FILL_HOLE.payloadMsg(new TrimRequest(null, -1L)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ERROR_SERVER_EXCEPTION);
+    }
+
+    @Test
+    public void onlyCacheMissesAndDiskWritesBlock()
+            throws Exception {
+        String serviceDir = getTempDir();
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setSync(true)
+                .setCacheAdmission("READ")
+                .build());
+
+        this.router.reset();
+        this.router.addServer(s1);
+        writeData(0L, "0");
+
+        CorfuMsg read = CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L));
+        assertThat(s1.isBlocking(read))
+                .isTrue();
+        sendMessage(read);
+        // The read admitted the entry, so it is now served from the cache.
+        assertThat(s1.isBlocking(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L))))
+                .isFalse();
+        assertThat(s1.isBlocking(CorfuMsgType.WRITE.payloadMsg(WriteRequest.builder().build())))
+                .isTrue();
+        assertThat(s1.isBlocking(CorfuMsgType.TRIM.payloadMsg(new TrimRequest(null, 0L))))
+                .isFalse();
+
+        LogUnitServer s2 = new LogUnitServer(new ServerContextBuilder().build());
+        assertThat(s2.isBlocking(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(0L))))
+                .isFalse();
+        assertThat(s2.isBlocking(CorfuMsgType.WRITE.payloadMsg(WriteRequest.builder().build())))
+                .isFalse();
+    }
+
+    private void writeData(long address, String data) {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        b.writeBytes(data.getBytes());
+        WriteRequest m = WriteRequest.builder()
+                .writeMode(WriteMode.NORMAL)
+                .data(new LogData(DataType.DATA, b))
+                .build();
+        m.setGlobalAddress(address);
+        m.setStreams(Collections.singleton(CorfuRuntime.getStreamID("a")));
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.emptyMap());
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+    }
+
+}
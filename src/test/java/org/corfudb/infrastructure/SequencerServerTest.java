@@ -1,11 +1,28 @@
 package org.corfudb.infrastructure;
 
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.corfudb.infrastructure.log.InMemoryLog;
+import org.corfudb.infrastructure.log.RollingLog;
 import org.corfudb.protocols.wireprotocol.*;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.SequencerServerAssertions.assertThat;
@@ -213,4 +230,687 @@ public class SequencerServerTest extends AbstractServerTest {
                 .tokenIsAt(2);
     }
 
+    @Test
+    public void checkSequencerStreamStateIsCheckpointed()
+            throws Exception {
+        String serviceDir = getTempDir();
+        UUID streamA = CorfuRuntime.getStreamID("a");
+
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0)
+                .build());
+        setServer(s1);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        s1.shutdown();
+
+        SequencerServer s2 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(-1)
+                .build());
+        setServer(s2);
+        assertThat(s2)
+                .tokenIsAt(2);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamA), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(1L);
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getStreamAddresses())
+                .containsEntry(streamA, 1L);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getBackpointerMap())
+                .containsEntry(streamA, 1L);
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getStreamAddresses())
+                .containsEntry(streamA, 2L);
+    }
+
+    @Test
+    public void sequencerRecoversFromLogSuffix()
+            throws Exception {
+        String serviceDir = getTempDir();
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0)
+                .build());
+        setServer(s1);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        s1.shutdown();
+
+        // Entries written after the checkpoint, which the sequencer must rediscover.
+        InMemoryLog suffix = new InMemoryLog(0L, Long.MAX_VALUE);
+        suffix.write(1L, logEntry(streamA, 1L));
+        suffix.write(2L, logEntry(streamB, 0L));
+        suffix.write(4L, logEntry(streamA, 2L));
+
+        SequencerServer s2 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(-1)
+                .setRecoverScan(2)
+                .build());
+        s2.recoverFromLog(suffix);
+        setServer(s2);
+        assertThat(s2)
+                .tokenIsAt(5);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getBackpointerMap())
+                .containsEntry(streamA, 4L);
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getStreamAddresses())
+                .containsEntry(streamA, 3L);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamB), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getBackpointerMap())
+                .containsEntry(streamB, 2L);
+    }
+
+    @Test
+    public void sequencerRecoversFromRollingLog()
+            throws Exception {
+        String serviceDir = getTempDir();
+        String logDir = serviceDir + File.separator + "log";
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0)
+                .build());
+        s1.shutdown();
+
+        // The log skips a whole file, which recovery must scan past.
+        RollingLog rollingLog = new RollingLog(0L, Long.MAX_VALUE, logDir, true);
+        rollingLog.write(1L, logEntry(streamA, 0L));
+        rollingLog.write(2L, logEntry(streamB, 0L));
+        rollingLog.write(25000L, logEntry(streamA, 1L));
+        rollingLog.close();
+        File[] files = new File(serviceDir).listFiles();
+
+        SequencerServer s2 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(-1)
+                .setRecoverScan(4)
+                .build());
+        s2.recoverFromLog(new RollingLog(0L, Long.MAX_VALUE, logDir, true));
+        assertThat(s2)
+                .tokenIsAt(25001);
+        // Recovery only reads the files the log has.
+        assertThat(new File(serviceDir).listFiles())
+                .containsOnly(files);
+
+        TokenResponse next = s2.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 25000L);
+        assertThat(next.getStreamAddresses())
+                .containsEntry(streamA, 2L);
+        next = s2.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false));
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamB, 2L);
+    }
+
+    private LogData logEntry(UUID stream, long localOffset) {
+        LogData entry = new LogData(DataType.DATA, Unpooled.buffer());
+        entry.setStreams(Collections.singleton(stream));
+        entry.setLogicalAddresses(Collections.singletonMap(stream, localOffset));
+        return entry;
+    }
+
+    @Test
+    public void concurrentTokensKeepBackpointersOrdered()
+            throws Exception {
+        final int num_threads = Runtime.getRuntime().availableProcessors();
+        final int num_records = 10000;
+        final int num_streams = 4;
+        SequencerServer s1 = new SequencerServer(ServerContextBuilder.emptyContext());
+
+        UUID[] streams = new UUID[num_streams];
+        Map<UUID, Map<Long, Long>> issued = new ConcurrentHashMap<>();
+        for (int i = 0; i < num_streams; i++) {
+            streams[i] = CorfuRuntime.getStreamID("stream" + i);
+            issued.put(streams[i], new ConcurrentHashMap<>());
+        }
+
+        scheduleConcurrently(num_threads, threadNumber -> {
+            for (int i = 0; i < num_records; i++) {
+                Set<UUID> requested = new HashSet<>();
+                requested.add(streams[(threadNumber + i) % num_streams]);
+                if (i % 2 == 0) {
+                    requested.add(streams[(threadNumber + i + 1) % num_streams]);
+                }
+                TokenResponse tr = s1.issueTokens(new TokenRequest(1L, requested, false, false));
+                for (UUID id : requested) {
+                    issued.get(id).put(tr.getToken(), tr.getBackpointerMap().get(id));
+                }
+                // Read-only queries run alongside issuance.
+                s1.issueTokens(new TokenRequest(0L, requested, false, false));
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        executeScheduled(num_threads, 60, TimeUnit.SECONDS);
+        calculateRequestsPerSecond("TPS", num_threads * num_records * 2, startTime);
+
+        assertThat(s1)
+                .tokenIsAt(num_threads * num_records);
+        // Each token of a stream must point back at the previous token of that stream.
+        for (UUID id : streams) {
+            long previous = -1L;
+            for (Map.Entry<Long, Long> e : new TreeMap<>(issued.get(id)).entrySet()) {
+                assertThat(e.getValue())
+                        .isEqualTo(previous);
+                previous = e.getKey();
+            }
+        }
+    }
+
+    @Test
+    public void batchedRequestsAreResolvedInOrder() {
+        final int num_requests = 10;
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setBatchTokens(true)
+                .build());
+        assertThat(s1.isBatching())
+                .isTrue();
+
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        List<CorfuMsg> batch = new ArrayList<>();
+        for (int i = 0; i < num_requests; i++) {
+            batch.add(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                    new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        }
+        batch.add(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamA), false, false)));
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).setClientID(testClientId);
+            batch.get(i).setRequestID(i);
+        }
+
+        s1.handleMessageBatch(batch, null, router);
+
+        assertThat(getResponseMessages())
+                .hasSize(num_requests + 1);
+        for (int i = 0; i < num_requests; i++) {
+            TokenResponse tr = ((CorfuPayloadMsg<TokenResponse>) getResponseMessages().get(i)).getPayload();
+            assertThat(getResponseMessages().get(i).getRequestID())
+                    .isEqualTo(i);
+            assertThat(tr.getToken())
+                    .isEqualTo(i);
+            assertThat(tr.getBackpointerMap())
+                    .containsEntry(streamA, (long) i - 1);
+        }
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(num_requests - 1);
+    }
+
+    /**
+     * Only token requests are batched, so token requests read in the same cycle as
+     * a subscription are still answered.
+     */
+    @Test
+    public void subscriptionsAreNotBatchedWithTokenRequests() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setBatchTokens(true)
+                .build());
+        NettyServerRouter serverRouter = new NettyServerRouter(Collections.emptyMap());
+        serverRouter.addServer(s1);
+        EmbeddedChannel channel = new EmbeddedChannel(serverRouter);
+
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        List<CorfuMsg> msgs = Arrays.asList(
+                CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(1L, Collections.singleton(streamA), false, false)),
+                CorfuMsgType.STREAM_SUBSCRIBE.payloadMsg(new StreamSubscription(Collections.singleton(streamA))),
+                CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        for (int i = 0; i < msgs.size(); i++) {
+            msgs.get(i).setClientID(testClientId);
+            msgs.get(i).setRequestID(i);
+        }
+        channel.writeInbound(msgs.toArray());
+
+        Map<Long, CorfuMsg> responses = new HashMap<>();
+        for (Object o = channel.readOutbound(); o != null; o = channel.readOutbound()) {
+            CorfuMsg m = (CorfuMsg) o;
+            if (m.getMsgType() != CorfuMsgType.STREAM_TAILS_NOTIFY) {
+                responses.put(m.getRequestID(), m);
+            }
+        }
+        assertThat(responses)
+                .hasSize(msgs.size());
+        assertThat(responses.get(1L).getMsgType())
+                .isEqualTo(CorfuMsgType.STREAM_TAILS);
+        assertThat(((CorfuPayloadMsg<TokenResponse>) responses.get(0L)).getPayload().getToken())
+                .isEqualTo(0L);
+        assertThat(((CorfuPayloadMsg<TokenResponse>) responses.get(2L)).getPayload().getToken())
+                .isEqualTo(1L);
+        channel.close();
+    }
+
+    @Test
+    public void subscriptionsOfClosedConnectionsAreDropped() {
+        SequencerServer s1 = new SequencerServer(ServerContextBuilder.emptyContext());
+        NettyServerRouter serverRouter = new NettyServerRouter(Collections.emptyMap());
+        serverRouter.addServer(s1);
+        EmbeddedChannel channel = new EmbeddedChannel(serverRouter);
+
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        CorfuMsg subscribe = CorfuMsgType.STREAM_SUBSCRIBE.payloadMsg(
+                new StreamSubscription(Collections.singleton(streamA)));
+        subscribe.setClientID(testClientId);
+        channel.writeInbound(subscribe);
+        assertThat(s1.subscribers)
+                .hasSize(1);
+        assertThat(s1.streamSubscribers)
+                .containsOnlyKeys(streamA);
+
+        // The stream never advances, so the subscription is only dropped because the connection closed.
+        channel.close();
+        assertThat(s1.subscribers)
+                .isEmpty();
+        assertThat(s1.streamSubscribers)
+                .isEmpty();
+    }
+
+    @Test
+    public void multiTokenRequestsAreResolvedInOrder() {
+        final int num_requests = 10;
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        List<TokenRequest> requests = new ArrayList<>();
+        for (int i = 0; i < num_requests; i++) {
+            requests.add(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        }
+        requests.add(new TokenRequest(0L, Collections.singleton(streamA), false, false));
+
+        sendMessage(CorfuMsgType.TOKEN_MULTI_REQ.payloadMsg(new MultiTokenRequest(requests)));
+
+        List<TokenResponse> responses = getLastPayloadMessageAs(MultiTokenResponse.class).getResponses();
+        assertThat(responses)
+                .hasSize(num_requests + 1);
+        for (int i = 0; i < num_requests; i++) {
+            assertThat(responses.get(i).getToken())
+                    .isEqualTo(i);
+            assertThat(responses.get(i).getBackpointerMap())
+                    .containsEntry(streamA, (long) i - 1);
+            assertThat(responses.get(i).getStreamAddresses())
+                    .containsEntry(streamA, (long) i);
+        }
+        assertThat(responses.get(num_requests).getToken())
+                .isEqualTo(num_requests - 1);
+    }
+
+    @Test
+    public void keyConflictsOnlyAbortOverlappingKeys() {
+        SequencerServer s1 = new SequencerServer(ServerContextBuilder.emptyContext());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+
+        // A write without conflict keys conflicts with every key.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(0L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 0L, 1L)).getToken())
+                .isEqualTo(1L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 0L, 2L)).getToken())
+                .isEqualTo(2L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 0L, 1L)).getToken())
+                .isEqualTo(-1L);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false,
+                true, 1L)).getToken())
+                .isEqualTo(-1L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 2L, 3L)).getToken())
+                .isEqualTo(3L);
+
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(4L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 3L, 5L)).getToken())
+                .isEqualTo(-1L);
+    }
+
+    @Test
+    public void onlyWrittenKeysAreRecorded() {
+        SequencerServer s1 = new SequencerServer(ServerContextBuilder.emptyContext());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false)).getToken())
+                .isEqualTo(0L);
+        // A transaction which read key 1 and wrote key 2.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false, true, 0L,
+                Collections.singletonMap(streamA, new HashSet<>(Arrays.asList(1L, 2L))),
+                Collections.singletonMap(streamA, Collections.singleton(2L)))).getToken())
+                .isEqualTo(1L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 0L, 2L)).getToken())
+                .isEqualTo(-1L);
+        // Key 1 was only read, so reading it earlier does not conflict.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false, true, 0L,
+                Collections.singletonMap(streamA, Collections.singleton(1L)), Collections.emptyMap())).getToken())
+                .isEqualTo(2L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 1L, 1L)).getToken())
+                .isEqualTo(3L);
+    }
+
+    @Test
+    public void keysReadBeforeStartupAreCheckedPerStream() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(100L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+
+        assertThat(s1.issueTokens(keyedRequest(streamA, 99L, 1L)).getToken())
+                .isEqualTo(100L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 99L, 2L)).getToken())
+                .isEqualTo(101L);
+        // The conflict table does not cover writes before the sequencer started.
+        assertThat(s1.issueTokens(keyedRequest(streamA, 50L, 3L)).getToken())
+                .isEqualTo(-1L);
+    }
+
+    @Test
+    public void partitionsIssueAddressesFromTheirOwnBlocks() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(0L)
+                .setSequencerPartition(1)
+                .setSequencerPartitions(2)
+                .setTokenBlock(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(10L);
+        assertThat(s1.issueTokens(new TokenRequest(5L, Collections.emptySet(), false, false)).getToken())
+                .isEqualTo(11L);
+        // A range which does not fit in the rest of a block starts at the next owned block.
+        assertThat(s1.issueTokens(new TokenRequest(5L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(30L);
+        // Tokens can be required to be after an address.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false,
+                false, -1L, Collections.emptyMap(), Collections.emptyMap(), 45L, -1L)).getToken())
+                .isEqualTo(50L);
+        // A query with a bound moves the sequencer past it.
+        assertThat(s1.issueTokens(new TokenRequest(0L, Collections.emptySet(), false, false,
+                false, -1L, Collections.emptyMap(), Collections.emptyMap(), 70L, -1L)).getToken())
+                .isEqualTo(70L);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.emptySet(), false, false)).getToken())
+                .isEqualTo(71L);
+        // Ranges larger than a block are rejected.
+        assertThat(s1.issueTokens(new TokenRequest(11L, Collections.emptySet(), false, false)).getToken())
+                .isEqualTo(-1L);
+    }
+
+    @Test
+    public void streamsAreRegisteredAtAssignedAddresses() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(0L)
+                .setSequencerPartition(1)
+                .setSequencerPartitions(2)
+                .setTokenBlock(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(10L);
+        // The stream was issued a later address than the assigned one.
+        assertThat(s1.issueTokens(assignedRequest(streamA, 5L)).getToken())
+                .isEqualTo(-1L);
+
+        TokenResponse registered = s1.issueTokens(assignedRequest(streamA, 25L));
+        assertThat(registered.getToken())
+                .isEqualTo(25L);
+        assertThat(registered.getBackpointerMap())
+                .containsEntry(streamA, 10L);
+        assertThat(registered.getStreamAddresses())
+                .containsEntry(streamA, 1L);
+
+        // Later tokens are issued after the assigned address.
+        TokenResponse next = s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        assertThat(next.getToken())
+                .isEqualTo(30L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 25L);
+    }
+
+    @Test
+    public void releasedRequestsRestoreTheirStreams() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(0L)
+                .setSequencerPartition(1)
+                .setSequencerPartitions(2)
+                .setTokenBlock(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false)).getToken())
+                .isEqualTo(10L);
+        // Issued as the coordinator of a request across partitions, which another partition rejects.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false, true, 10L,
+                Collections.singletonMap(streamA, Collections.singleton(1L)),
+                Collections.singletonMap(streamA, Collections.singleton(1L)), 15L, -1L)).getToken())
+                .isEqualTo(16L);
+        assertThat(s1.issueTokens(releaseRequest(streamA, 16L)).getToken())
+                .isEqualTo(16L);
+
+        TokenResponse query = s1.issueTokens(new TokenRequest(0L, Collections.singleton(streamA), false, false));
+        assertThat(query.getToken())
+                .isEqualTo(10L);
+        assertThat(query.getStreamAddresses())
+                .containsEntry(streamA, 0L);
+        // The released write of key 1 does not conflict.
+        TokenResponse next = s1.issueTokens(keyedRequest(streamA, 10L, 1L));
+        assertThat(next.getToken())
+                .isEqualTo(17L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 10L);
+        assertThat(next.getStreamAddresses())
+                .containsEntry(streamA, 1L);
+        // Requests are only released once.
+        assertThat(s1.issueTokens(releaseRequest(streamA, 16L)).getToken())
+                .isEqualTo(-1L);
+
+        // A write registered before a released request is kept.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false, true, 17L,
+                Collections.singletonMap(streamA, Collections.singleton(1L)),
+                Collections.singletonMap(streamA, Collections.singleton(1L)), 25L, -1L)).getToken())
+                .isEqualTo(30L);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false, true, -1L,
+                Collections.singletonMap(streamB, Collections.singleton(1L)),
+                Collections.singletonMap(streamB, Collections.singleton(1L)), -1L, 26L)).getToken())
+                .isEqualTo(26L);
+        assertThat(s1.issueTokens(releaseRequest(streamA, 30L)).getToken())
+                .isEqualTo(30L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 25L, 1L)).getToken())
+                .isEqualTo(-1L);
+        assertThat(s1.issueTokens(keyedRequest(streamA, 26L, 1L)).getToken())
+                .isEqualTo(31L);
+    }
+
+    @Test
+    public void idleStreamsAreEvictedOutsideTheConflictWindow() {
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(0L)
+                .setConflictWindow(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        UUID streamC = UUID.nameUUIDFromBytes("streamC".getBytes());
+
+        s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamC), false, false));
+        for (int i = 0; i < 20; i++) {
+            s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false));
+        }
+        s1.evictIdleStreams();
+        assertThat(s1.lastIssuedMap.containsKey(streamA))
+                .isFalse();
+        assertThat(s1.lastIssuedMap.containsKey(streamB))
+                .isTrue();
+        assertThat(s1.evictedStreams.size())
+                .isEqualTo(2);
+
+        // Evicted streams keep their tail, backpointer and local offsets.
+        TokenResponse query = s1.issueTokens(new TokenRequest(0L, Collections.singleton(streamA), false, false));
+        assertThat(query.getToken())
+                .isEqualTo(0L);
+        assertThat(query.getStreamAddresses())
+                .containsEntry(streamA, 0L);
+        TokenResponse next = s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        assertThat(next.getToken())
+                .isEqualTo(22L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 0L);
+        assertThat(next.getStreamAddresses())
+                .containsEntry(streamA, 1L);
+
+        // Transactions which read before the window abort, later ones are checked as usual.
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamC), false, false,
+                true, 5L)).getToken())
+                .isEqualTo(-1L);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamC), false, false,
+                true, 20L)).getToken())
+                .isEqualTo(23L);
+
+        // Streams which became active again are evicted with their new state.
+        for (int i = 0; i < 20; i++) {
+            s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false));
+        }
+        s1.evictIdleStreams();
+        assertThat(s1.lastIssuedMap.size())
+                .isEqualTo(1);
+        assertThat(s1.evictedStreams.size())
+                .isEqualTo(2);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false))
+                .getBackpointerMap())
+                .containsEntry(streamA, 22L);
+        assertThat(s1.issueTokens(new TokenRequest(0L, Collections.singleton(streamC), false, false)).getToken())
+                .isEqualTo(23L);
+    }
+
+    /**
+     * A release in a batch takes the stripes of the streams it restores, so it must not
+     * hold the stripes of the batch meanwhile, or two batches could take them in
+     * opposite orders.
+     */
+    @Test
+    public void releasesInABatchDoNotHoldTheStripesOfTheBatch()
+            throws Exception {
+        final long timeout_millis = 10000;
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setInitialToken(0L)
+                .setSequencerPartition(1)
+                .setSequencerPartitions(2)
+                .setTokenBlock(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        ReentrantLock stripeA = (ReentrantLock) s1.streamLocks.get(streamA);
+        ReentrantLock stripeB = (ReentrantLock) s1.streamLocks.get(streamB);
+        assertThat(stripeA)
+                .isNotSameAs(stripeB);
+        assertThat(s1.issueTokens(assignedRequest(streamB, 5L)).getToken())
+                .isEqualTo(5L);
+
+        List<TokenResponse> resps;
+        stripeB.lock();
+        try {
+            CompletableFuture<List<TokenResponse>> batch = CompletableFuture.supplyAsync(() ->
+                    s1.issueTokens(Arrays.asList(
+                            new TokenRequest(1L, Collections.singleton(streamA), false, false),
+                            releaseRequest(streamB, 5L),
+                            new TokenRequest(1L, Collections.singleton(streamA), false, false))));
+            while (!stripeB.hasQueuedThreads()) {
+                Thread.sleep(1);
+            }
+            // The release waits for the stripe of its stream without the stripe of the batch.
+            assertThat(stripeA.tryLock(timeout_millis, TimeUnit.MILLISECONDS))
+                    .isTrue();
+            stripeA.unlock();
+            stripeB.unlock();
+            resps = batch.get();
+        } finally {
+            if (stripeB.isHeldByCurrentThread()) {
+                stripeB.unlock();
+            }
+        }
+        assertThat(resps)
+                .extracting(TokenResponse::getToken)
+                .containsExactly(10L, 5L, 11L);
+        assertThat(s1.issueTokens(new TokenRequest(0L, Collections.singleton(streamB), false, false))
+                .getToken())
+                .isEqualTo(-1L);
+    }
+
+    @Test
+    public void reactivatedStreamsKeepTheirLocalOffsets()
+            throws Exception {
+        String serviceDir = getTempDir();
+        SequencerServer s1 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(0L)
+                .setConflictWindow(10L)
+                .build());
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false));
+        for (int i = 0; i < 20; i++) {
+            s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false));
+        }
+        s1.evictIdleStreams();
+        assertThat(s1.lastIssuedMap.containsKey(streamA))
+                .isFalse();
+
+        // An overwrite retry reactivates the stream without advancing its local offset.
+        s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), true, false));
+        s1.checkpointState();
+        SequencerServer s2 = new SequencerServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .setInitialToken(-1L)
+                .build());
+        assertThat(s2.issueTokens(new TokenRequest(0L, Collections.singleton(streamA), false, false))
+                .getStreamAddresses())
+                .containsEntry(streamA, 0L);
+
+        // The stream is active again, so its summary is dropped by the next eviction.
+        for (int i = 0; i < 5; i++) {
+            s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamB), false, false));
+        }
+        s1.evictIdleStreams();
+        assertThat(s1.lastIssuedMap.containsKey(streamA))
+                .isTrue();
+        assertThat(s1.evictedStreams.getLastIssued(streamA, -1L))
+                .isEqualTo(-1L);
+        assertThat(s1.issueTokens(new TokenRequest(1L, Collections.singleton(streamA), false, false))
+                .getStreamAddresses())
+                .containsEntry(streamA, 1L);
+    }
+
+    private static TokenRequest assignedRequest(UUID stream, long assignedToken) {
+        return new TokenRequest(1L, Collections.singleton(stream), false, false, false, -1L,
+                Collections.emptyMap(), Collections.emptyMap(), -1L, assignedToken);
+    }
+
+    private static TokenRequest releaseRequest(UUID stream, long token) {
+        return new TokenRequest(0L, Collections.singleton(stream), false, false, false, -1L,
+                Collections.emptyMap(), Collections.emptyMap(), -1L, token);
+    }
+
+    /**
+     * A transaction resolution request which reads and writes the given keys of a stream.
+     */
+    private static TokenRequest keyedRequest(UUID stream, long readTimestamp, Long... keys) {
+        Map<UUID, Set<Long>> keyMap = Collections.singletonMap(stream, new HashSet<>(Arrays.asList(keys)));
+        return new TokenRequest(1L, Collections.singleton(stream), false, false, true, readTimestamp,
+                keyMap, keyMap);
+    }
 }
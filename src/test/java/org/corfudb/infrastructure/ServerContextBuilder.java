@@ -19,8 +19,21 @@ public class ServerContextBuilder {
     boolean memory = true;
     String logPath = null;
     boolean sync = false;
+    long maxDirty = 0;
+    long maxDirtyAge = 1000;
     int maxCache = 1000000;
+    String cacheAdmission = "ALL";
+    long cacheMaxEntry = 0;
     int checkpoint = 100;
+    boolean batchTokens = false;
+    int recoverScan = 0;
+    int conflictTableSize = 262144;
+    int sequencerPartition = 0;
+    int sequencerPartitions = 1;
+    long tokenBlock = 1000L;
+    long tailNotifyDelay = 1L;
+    long conflictWindow = 0L;
+    String transport = "AUTO";
     String address = "test";
     int port = 9000;
     IServerRouter serverRouter;
@@ -40,8 +53,21 @@ public class ServerContextBuilder {
         }
          builder
                 .put("--sync", sync)
+                .put("--max-dirty", maxDirty)
+                .put("--max-dirty-age", maxDirtyAge)
                 .put("--max-cache", maxCache)
+                .put("--cache-admission", cacheAdmission)
+                .put("--cache-max-entry", cacheMaxEntry)
                 .put("--checkpoint", checkpoint)
+                .put("--batch-tokens", batchTokens)
+                .put("--recover-scan", recoverScan)
+                .put("--conflict-table-size", conflictTableSize)
+                .put("--sequencer-partition", sequencerPartition)
+                .put("--sequencer-partitions", sequencerPartitions)
+                .put("--token-block", tokenBlock)
+                .put("--tail-notify-delay", tailNotifyDelay)
+                .put("--conflict-window", conflictWindow)
+                .put("--transport", transport)
                 .put("--address", address)
                 .put("<port>", port);
         return new ServerContext(builder.build(), serverRouter);
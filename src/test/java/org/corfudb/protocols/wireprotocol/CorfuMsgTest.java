@@ -0,0 +1,123 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class CorfuMsgTest extends AbstractCorfuTest {
+
+    final UUID clientID = UUID.randomUUID();
+
+    private CorfuMsg ping(long requestID, long epoch) {
+        return new CorfuMsg(clientID, requestID, epoch, null, CorfuMsgType.PING);
+    }
+
+    @Test
+    public void legacyHeaderRoundTrips() {
+        ByteBuf b = Unpooled.buffer();
+        ping(1L, 2L).serialize(b);
+        assertThat(b.readableBytes())
+                .isEqualTo(37);
+        assertThat(CorfuMsg.getHeaderFormat(b))
+                .isEqualTo(HeaderFormat.LEGACY);
+        CorfuMsg m = CorfuMsg.deserialize(b);
+        assertThat(m.getClientID())
+                .isEqualTo(clientID);
+        assertThat(m.getRequestID())
+                .isEqualTo(1L);
+        assertThat(m.getEpoch())
+                .isEqualTo(2L);
+        assertThat(m.getMsgType())
+                .isEqualTo(CorfuMsgType.PING);
+    }
+
+    @Test
+    public void compactHeaderRoundTrips() {
+        final long[] values = {0L, 1L, 127L, 128L, Integer.MAX_VALUE, Long.MAX_VALUE, -1L, Long.MIN_VALUE};
+        for (long v : values) {
+            ByteBuf b = Unpooled.buffer();
+            ping(v, v).serializeCompact(b, true);
+            assertThat(CorfuMsg.getHeaderFormat(b))
+                    .isEqualTo(HeaderFormat.COMPACT);
+            CorfuMsg m = CorfuMsg.deserialize(b, null);
+            assertThat(m.getClientID())
+                    .isEqualTo(clientID);
+            assertThat(m.getRequestID())
+                    .isEqualTo(v);
+            assertThat(m.getEpoch())
+                    .isEqualTo(v);
+            assertThat(b.readableBytes())
+                    .isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void compactHeaderWithoutClientIDUsesTheConnectionID() {
+        ByteBuf b = Unpooled.buffer();
+        ping(1L, 0L).serializeCompact(b, false);
+        assertThat(b.readableBytes())
+                .isEqualTo(5);
+        assertThat(CorfuMsg.deserialize(b.duplicate(), clientID).getClientID())
+                .isEqualTo(clientID);
+        assertThatThrownBy(() -> CorfuMsg.deserialize(b.duplicate(), null))
+                .isInstanceOf(RuntimeException.class);
+    }
+
+    @Test
+    public void payloadMessagesRoundTripWithCompactHeaders() {
+        ByteBuf b = Unpooled.buffer();
+        CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(42L)).serializeCompact(b, true);
+        CorfuMsg m = CorfuMsg.deserialize(b, null);
+        assertThat(((CorfuPayloadMsg<ReadRequest>) m).getPayload().getRange().lowerEndpoint())
+                .isEqualTo(42L);
+    }
+
+    @Test
+    public void encoderSendsTheClientIDOnceAndServersReplyInKind() {
+        EmbeddedChannel client = new EmbeddedChannel(
+                new NettyCorfuMessageDecoder(), new NettyCorfuMessageEncoder(HeaderFormat.COMPACT));
+        EmbeddedChannel server = new EmbeddedChannel(
+                new NettyCorfuMessageDecoder(), new NettyCorfuMessageEncoder());
+
+        client.writeOutbound(ping(0L, 0L), ping(1L, 0L));
+        ByteBuf first = client.readOutbound();
+        ByteBuf second = client.readOutbound();
+        assertThat(first.readableBytes())
+                .isEqualTo(21);
+        assertThat(second.readableBytes())
+                .isEqualTo(5);
+
+        server.writeInbound(first, second);
+        CorfuMsg request = server.readInbound();
+        request = server.readInbound();
+        assertThat(request.getClientID())
+                .isEqualTo(clientID);
+        assertThat(request.getRequestID())
+                .isEqualTo(1L);
+
+        CorfuMsg response = new CorfuMsg(CorfuMsgType.PONG);
+        response.copyBaseFields(request);
+        server.writeOutbound(response);
+        ByteBuf reply = server.readOutbound();
+        assertThat(CorfuMsg.getHeaderFormat(reply))
+                .isEqualTo(HeaderFormat.COMPACT);
+
+        // A server replies to legacy clients in the legacy format.
+        EmbeddedChannel legacyServer = new EmbeddedChannel(
+                new NettyCorfuMessageDecoder(), new NettyCorfuMessageEncoder());
+        ByteBuf legacy = Unpooled.buffer();
+        ping(2L, 0L).serialize(legacy);
+        legacyServer.writeInbound(legacy);
+        legacyServer.writeOutbound(response);
+        ByteBuf legacyReply = legacyServer.readOutbound();
+        assertThat(CorfuMsg.getHeaderFormat(legacyReply))
+                .isEqualTo(HeaderFormat.LEGACY);
+    }
+}
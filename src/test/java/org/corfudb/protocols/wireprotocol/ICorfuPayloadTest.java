@@ -0,0 +1,156 @@
+package org.corfudb.protocols.wireprotocol;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ICorfuPayloadTest extends AbstractCorfuTest {
+
+    final UUID streamA = UUID.randomUUID();
+    final UUID streamB = UUID.randomUUID();
+
+    @SuppressWarnings("unchecked")
+    private <T> T roundTrip(CorfuMsgType type, T payload) {
+        ByteBuf b = Unpooled.buffer();
+        type.payloadMsg(payload).serializeCompact(b, true);
+        return ((CorfuPayloadMsg<T>) CorfuMsg.deserialize(b, null)).getPayload();
+    }
+
+    private TokenResponse tokenResponse() {
+        return new TokenResponse(10L, ImmutableMap.of(streamA, 3L, streamB, 7L),
+                ImmutableMap.of(streamA, 1L));
+    }
+
+    @Test
+    public void tokenRequestsRoundTrip() {
+        TokenRequest simple = new TokenRequest(1L, ImmutableSet.of(streamA, streamB), false, false);
+        assertThat(roundTrip(CorfuMsgType.TOKEN_REQ, simple))
+                .isEqualTo(simple);
+
+        TokenRequest resolution = new TokenRequest(0L, null, true, false, true, 5L,
+                ImmutableMap.of(streamA, ImmutableSet.of(1L, 2L)), ImmutableMap.of(streamA, ImmutableSet.of(2L)), 3L, 4L);
+        assertThat(roundTrip(CorfuMsgType.TOKEN_REQ, resolution))
+                .isEqualTo(resolution);
+    }
+
+    @Test
+    public void tokenResponsesRoundTrip() {
+        assertThat(roundTrip(CorfuMsgType.TOKEN_RES, tokenResponse()))
+                .isEqualTo(tokenResponse());
+    }
+
+    @Test
+    public void writeRequestsAndReadResponsesRoundTrip() {
+        LogData data = new LogData(DataType.DATA, Unpooled.wrappedBuffer(new byte[]{1, 2, 3}));
+        data.setStreams(ImmutableSet.of(streamA));
+        data.setBackpointerMap(ImmutableMap.of(streamA, 4L));
+        data.setGlobalAddress(5L);
+
+        WriteRequest write = roundTrip(CorfuMsgType.WRITE,
+                new WriteRequest(WriteMode.REPLEX_STREAM, ImmutableMap.of(streamB, 2L), data));
+        assertThat(write.getWriteMode())
+                .isEqualTo(WriteMode.REPLEX_STREAM);
+        assertThat(write.getStreamAddresses())
+                .containsEntry(streamB, 2L);
+        assertThat(write.getData().getData().readableBytes())
+                .isEqualTo(3);
+        assertThat(write.getStreams())
+                .containsExactly(streamA);
+        assertThat(write.getBackpointerMap())
+                .containsEntry(streamA, 4L);
+        assertThat(write.getGlobalAddress())
+                .isEqualTo(5L);
+
+        ReadResponse rr = new ReadResponse();
+        rr.put(5L, data);
+        rr.put(6L, LogData.HOLE);
+        Map<Long, LogData> readSet = roundTrip(CorfuMsgType.READ_RESPONSE, rr).getReadSet();
+        assertThat(readSet.get(5L).getBackpointerMap())
+                .containsEntry(streamA, 4L);
+        assertThat(readSet.get(6L).getType())
+                .isEqualTo(DataType.HOLE);
+    }
+
+    @Test
+    public void decodedCollectionsAreUnmodifiable() {
+        Map<UUID, Long> map = roundTrip(CorfuMsgType.TOKEN_RES, tokenResponse()).getBackpointerMap();
+        assertThatThrownBy(() -> map.put(streamA, 0L))
+                .isInstanceOf(UnsupportedOperationException.class);
+        Set<UUID> set = roundTrip(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, ImmutableSet.of(streamA), false, false)).getStreams();
+        assertThatThrownBy(() -> set.add(streamB))
+                .isInstanceOf(UnsupportedOperationException.class);
+    }
+
+    @Test
+    public void stringsAreEncodedAsUtf8() {
+        ByteBuf b = Unpooled.buffer();
+        ICorfuPayload.serialize(b, "\u00e9t\u00e9");
+        assertThat(b.getInt(0))
+                .isEqualTo(5);
+        assertThat(ICorfuPayload.fromBuffer(b, String.class))
+                .isEqualTo("\u00e9t\u00e9");
+    }
+
+    /**
+     * Decode a token response the way payloads were decoded before they had cached
+     * constructors: a map lookup for every value and collections built with builders.
+     */
+    @SuppressWarnings("unchecked")
+    private static TokenResponse reflectiveTokenResponse(ByteBuf buf) {
+        Map<Class<?>, ICorfuPayload.PayloadConstructor<?>> constructors = ICorfuPayload.constructorMap;
+        Long token = (Long) constructors.get(Long.class).construct(buf);
+        Map<UUID, Long>[] maps = new Map[2];
+        for (int m = 0; m < maps.length; m++) {
+            int numEntries = buf.readInt();
+            ImmutableMap.Builder<UUID, Long> builder = ImmutableMap.builder();
+            for (int i = 0; i < numEntries; i++) {
+                builder.put((UUID) constructors.get(UUID.class).construct(buf),
+                        (Long) constructors.get(Long.class).construct(buf));
+            }
+            maps[m] = builder.build();
+        }
+        return new TokenResponse(token, maps[0], maps[1]);
+    }
+
+    @Test
+    public void compareDecodingThroughput() {
+        final int iterations = 200_000;
+        Map<UUID, Long> backpointers = new HashMap<>();
+        for (int i = 0; i < 8; i++) {
+            backpointers.put(UUID.randomUUID(), (long) i);
+        }
+        ByteBuf b = Unpooled.buffer();
+        new TokenResponse(10L, backpointers, backpointers).doSerialize(b);
+
+        assertThat(new TokenResponse(b.duplicate()))
+                .isEqualTo(reflectiveTokenResponse(b.duplicate()));
+
+        // Warm up both paths before timing them.
+        for (int i = 0; i < iterations; i++) {
+            new TokenResponse(b.duplicate());
+            reflectiveTokenResponse(b.duplicate());
+        }
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            reflectiveTokenResponse(b.duplicate());
+        }
+        calculateRequestsPerSecond("Reflective", iterations, start);
+        start = System.currentTimeMillis();
+        for (int i = 0; i < iterations; i++) {
+            new TokenResponse(b.duplicate());
+        }
+        calculateRequestsPerSecond("Codec", iterations, start);
+    }
+}
@@ -3,8 +3,10 @@ package org.corfudb.runtime.clients;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Range;
+import io.netty.buffer.AbstractByteBufAllocator;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
 import org.corfudb.infrastructure.AbstractServer;
 import org.corfudb.infrastructure.LogUnitServer;
 import org.corfudb.protocols.wireprotocol.DataType;
@@ -12,9 +14,12 @@ import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.ServerErrorException;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -57,6 +62,44 @@ public class LogUnitClientTest extends AbstractClientTest {
                 .isEqualTo(testString);
     }
 
+    @Test
+    public void writesReleaseTheBuffersTheyOwn()
+            throws Exception {
+        List<ByteBuf> allocated = new ArrayList<>();
+        router.setAllocator(new AbstractByteBufAllocator(false) {
+            @Override
+            protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+                ByteBuf b = Unpooled.buffer(initialCapacity, maxCapacity);
+                allocated.add(b);
+                return b;
+            }
+
+            @Override
+            protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+                return newHeapBuffer(initialCapacity, maxCapacity);
+            }
+
+            @Override
+            public boolean isDirectBufferPooled() {
+                return false;
+            }
+        });
+        client.write(0, Collections.<UUID>emptySet(), 0, "hello world".getBytes(),
+                Collections.emptyMap()).get();
+        assertThat(allocated)
+                .isNotEmpty()
+                .extracting(ByteBuf::refCnt)
+                .containsOnly(0);
+
+        // The caller keeps its reference to a buffer it writes.
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        b.writeBytes("hello world".getBytes());
+        client.write(1, Collections.<UUID>emptySet(), 0, b, Collections.emptyMap()).get();
+        assertThat(b.refCnt())
+                .isEqualTo(1);
+        b.release();
+    }
+
     @Test
     public void overwriteThrowsException()
             throws Exception {
@@ -81,6 +124,14 @@ public class LogUnitClientTest extends AbstractClientTest {
                 .isEqualTo(testString);
     }
 
+    @Test
+    public void failedHoleFillThrowsServerError()
+            throws Exception {
+        assertThatThrownBy(() -> client.fillHole(-1).get())
+                .isInstanceOf(ExecutionException.class)
+                .hasCauseInstanceOf(ServerErrorException.class);
+    }
+
     @Test
     public void holeFillCannotBeOverwritten()
             throws Exception {
@@ -110,6 +161,8 @@ public class LogUnitClientTest extends AbstractClientTest {
                 .containsEntry(CorfuRuntime.getStreamID("hello"), 1337L);
         assertThat(r.getBackpointerMap())
                 .containsEntry(CorfuRuntime.getStreamID("hello2"), 1338L);
+        // Entries read from a log unit own their data until their payload is read.
+        r.release();
     }
 
     @Test
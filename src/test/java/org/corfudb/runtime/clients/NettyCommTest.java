@@ -2,14 +2,17 @@ package org.corfudb.runtime.clients;
 
 import com.google.common.collect.ImmutableMap;
 import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
 import io.netty.handler.codec.LengthFieldBasedFrameDecoder;
 import io.netty.handler.codec.LengthFieldPrepender;
 import io.netty.handler.logging.LogLevel;
@@ -19,19 +22,50 @@ import io.netty.util.concurrent.EventExecutorGroup;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.AbstractCorfuTest;
+import org.corfudb.BufferLeakDetector;
+import org.corfudb.infrastructure.AbstractServer;
 import org.corfudb.infrastructure.BaseServer;
+import org.corfudb.infrastructure.CorfuServer;
+import org.corfudb.infrastructure.IServerRouter;
+import org.corfudb.infrastructure.LogUnitServer;
 import org.corfudb.infrastructure.NettyServerRouter;
+import org.corfudb.infrastructure.SequencerServer;
 import org.corfudb.infrastructure.ServerContextBuilder;
+import org.corfudb.protocols.wireprotocol.CorfuMsg;
+import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.HeaderFormat;
+import org.corfudb.protocols.wireprotocol.JSONPayloadMsg;
+import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageDecoder;
 import org.corfudb.protocols.wireprotocol.NettyCorfuMessageEncoder;
+import org.corfudb.protocols.wireprotocol.NettyFlushConsolidator;
+import org.corfudb.protocols.wireprotocol.ReadResponse;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
+import org.corfudb.runtime.exceptions.NetworkException;
+import org.corfudb.util.NettyTransport;
+import org.junit.Assume;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * Created by mwei on 3/28/16.
@@ -39,6 +73,7 @@ import static org.assertj.core.api.Assertions.assertThat;
 @Slf4j
 public class NettyCommTest extends AbstractCorfuTest {
 
+    private static final long LEAK_CHECK_TIMEOUT_MILLIS = 60000;
 
     private Integer findRandomOpenPort() throws IOException {
         try (
@@ -79,18 +114,534 @@ public class NettyCommTest extends AbstractCorfuTest {
         });
     }
 
-    void runWithBaseServer(NettyCommFunction actionFn)
+    @Test
+    public void requestsMadeWhileDisconnectedAreReplayed() throws Exception {
+        final int replay_queue_size = 16;
+        final long timeout_millis = 30000;
+        runWithBaseServer((r, d) -> {
+            r.stop();
+            r.setReplayQueueSize(replay_queue_size);
+            r.setTimeoutResponse(timeout_millis);
+            r.start();
+            d.shutdownServer();
+            while (r.getConnected_p()) {
+                Thread.sleep(1);
+            }
+            CompletableFuture<Boolean> ping = r.getClient(BaseClient.class).ping();
+            assertThat(ping.isDone())
+                    .isFalse();
+            d.bootstrapServer();
+            assertThat(ping.get(timeout_millis, TimeUnit.MILLISECONDS))
+                    .isTrue();
+        });
+    }
+
+    @Test
+    public void reconnectsBackOffExponentially() {
+        NettyClientRouter r = new NettyClientRouter("localhost", 0);
+        r.setTimeoutRetry(1000);
+        assertThat(r.reconnectDelay(0))
+                .isBetween(NettyClientRouter.RECONNECT_MIN_DELAY_MILLIS / 2, NettyClientRouter.RECONNECT_MIN_DELAY_MILLIS);
+        assertThat(r.reconnectDelay(3))
+                .isBetween(NettyClientRouter.RECONNECT_MIN_DELAY_MILLIS * 4, NettyClientRouter.RECONNECT_MIN_DELAY_MILLIS * 8);
+        assertThat(r.reconnectDelay(Integer.MAX_VALUE))
+                .isBetween(500L, 1000L);
+    }
+
+    @Test
+    public void nettyServerBatchesTokenRequests() throws Exception {
+        final int num_requests = 1000;
+        SequencerServer s = new SequencerServer(new ServerContextBuilder()
+                .setBatchTokens(true)
+                .build());
+        runWithBaseServer((r, d) -> {
+            UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+            List<CompletableFuture<TokenResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < num_requests; i++) {
+                futures.add(r.getClient(SequencerClient.class)
+                        .nextToken(Collections.singleton(streamA), 1));
+            }
+            Set<Long> tokens = new HashSet<>();
+            for (CompletableFuture<TokenResponse> f : futures) {
+                tokens.add(f.get().getToken());
+            }
+            assertThat(tokens)
+                    .hasSize(num_requests);
+        }, s);
+    }
+
+    @Test
+    public void nettyServerClientPingableOverEpoll() throws Exception {
+        Assume.assumeTrue(NettyTransport.EPOLL.isAvailable());
+        runWithBaseServer(NettyTransport.EPOLL, (r, d) -> {
+            assertThat(r.getTransport())
+                    .isEqualTo(NettyTransport.EPOLL);
+            assertThat(r.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+        });
+    }
+
+    @Test
+    public void unavailableTransportFallsBackToNio() throws Exception {
+        Assume.assumeFalse(NettyTransport.EPOLL.isAvailable());
+        assertThat(NettyTransport.select("epoll"))
+                .isEqualTo(NettyTransport.NIO);
+        assertThat(new NettyClientRouter("localhost", 0, NettyTransport.EPOLL).getTransport())
+                .isEqualTo(NettyTransport.NIO);
+    }
+
+    /**
+     * Compare the round-trip latency of pings over loopback on each available transport.
+     */
+    @Test
+    public void loopbackLatencyPerTransport() throws Exception {
+        final int num_warmup = 1000;
+        final int num_pings = 10000;
+        for (NettyTransport transport : NettyTransport.values()) {
+            if (!transport.isAvailable()) {
+                continue;
+            }
+            runWithBaseServer(transport, (r, d) -> {
+                BaseClient client = r.getClient(BaseClient.class);
+                for (int i = 0; i < num_warmup; i++) {
+                    client.pingSync();
+                }
+                long start = System.nanoTime();
+                for (int i = 0; i < num_pings; i++) {
+                    assertThat(client.pingSync())
+                            .isTrue();
+                }
+                long rttMicros = (System.nanoTime() - start) / num_pings / 1000;
+                if (!testStatus.equals("")) {
+                    testStatus += ";";
+                }
+                testStatus += transport + "-RTT-US=" + rttMicros;
+            });
+        }
+    }
+
+    @Test
+    public void onlyBlockingMessagesLeaveTheEventLoop() throws Exception {
+        final int num_pings = 100;
+        runWithBaseServer((r, d) -> {
+            for (int i = 0; i < num_pings; i++) {
+                assertThat(r.getClient(BaseClient.class).pingSync())
+                        .isTrue();
+            }
+            assertThat(d.getBlockingThreads().get())
+                    .isEqualTo(0);
+        });
+        runWithBaseServer(NettyTransport.NIO, ImmutableMap.of("--blocking-messages", "PING"), (r, d) -> {
+            for (int i = 0; i < num_pings; i++) {
+                assertThat(r.getClient(BaseClient.class).pingSync())
+                        .isTrue();
+            }
+            // The pings of a channel are all handled by one blocking thread.
+            assertThat(d.getBlockingThreads().get())
+                    .isEqualTo(1);
+        });
+    }
+
+    @Test
+    public void requestsTimeOutAfterTimeoutResponse() throws Exception {
+        final long timeout_millis = 100;
+        final long max_wait_millis = 2000;
+        runWithBaseServer((r, d) -> {
+            r.setTimeoutResponse(timeout_millis);
+            assertThat(r.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+            // There is no sequencer, so the server drops token requests.
+            long start = System.currentTimeMillis();
+            assertThatThrownBy(() -> r.getClient(SequencerClient.class)
+                    .nextToken(Collections.emptySet(), 1).get())
+                    .isInstanceOf(ExecutionException.class)
+                    .hasCauseInstanceOf(TimeoutException.class);
+            assertThat(System.currentTimeMillis() - start)
+                    .isGreaterThanOrEqualTo(timeout_millis)
+                    .isLessThan(max_wait_millis);
+            assertThat(r.outstandingRequests.isEmpty())
+                    .isTrue();
+            assertThat(r.getChannels())
+                    .extracting(NettyClientRouter.PooledChannel::getOutstanding)
+                    .containsOnly(0);
+        });
+    }
+
+    @Test
+    public void outstandingRequestsAreCapped() throws Exception {
+        final int max_outstanding = 4;
+        final long timeout_millis = 100;
+        runWithBaseServer((r, d) -> {
+            r.stop();
+            r.setMaxOutstanding(max_outstanding)
+                    .setBackpressure(NettyClientRouter.Backpressure.FAIL);
+            r.setTimeoutResponse(timeout_millis);
+            r.start();
+            // There is no sequencer, so the server drops token requests.
+            List<CompletableFuture<TokenResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < max_outstanding; i++) {
+                futures.add(r.getClient(SequencerClient.class)
+                        .nextToken(Collections.emptySet(), 1));
+            }
+            assertThatThrownBy(() -> r.getClient(SequencerClient.class)
+                    .nextToken(Collections.emptySet(), 1))
+                    .isInstanceOf(NetworkException.class);
+            // Requests which time out free their slots.
+            for (CompletableFuture<TokenResponse> f : futures) {
+                assertThatThrownBy(f::get)
+                        .hasCauseInstanceOf(TimeoutException.class);
+            }
+            assertThat(r.outstandingRequests.isEmpty())
+                    .isTrue();
+            assertThat(r.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+        });
+    }
+
+    /**
+     * Senders which wait for capacity all get through, however few requests may be
+     * outstanding and however few bytes may be queued on the channel.
+     */
+    @Test
+    public void backpressureSlowsSendersDown() throws Exception {
+        final int max_outstanding = 4;
+        final int num_threads = 8;
+        final int num_pings = 200;
+        runWithBaseServer((r, d) -> {
+            r.stop();
+            r.setMaxOutstanding(max_outstanding)
+                    .setWriteBufferWaterMark(1, 2);
+            r.start();
+            assertThat(r.getBackpressure())
+                    .isEqualTo(NettyClientRouter.Backpressure.WAIT);
+            pingConcurrently(r.getClient(BaseClient.class), num_threads, num_pings);
+            assertThat(r.outstandingRequests.isEmpty())
+                    .isTrue();
+
+            // The same burst fails once the limit is reached if senders may not wait.
+            r.setBackpressure(NettyClientRouter.Backpressure.FAIL);
+            assertThatThrownBy(() -> pingConcurrently(r.getClient(BaseClient.class), num_threads, num_pings))
+                    .isInstanceOf(NetworkException.class);
+        });
+    }
+
+    /**
+     * Responses completed on the event loop of one router may send requests on another,
+     * and the event loop must not wait for the capacity of the other router.
+     */
+    @Test
+    public void eventLoopsOfOtherRoutersDoNotWaitForCapacity() throws Exception {
+        final long timeout_millis = 1000;
+        runWithBaseServer((r, d) -> {
+            r.stop();
+            r.setMaxOutstanding(1);
+            r.setTimeoutResponse(timeout_millis);
+            r.start();
+            assertThat(r.getBackpressure())
+                    .isEqualTo(NettyClientRouter.Backpressure.WAIT);
+            NettyClientRouter other = new NettyClientRouter("localhost", d.getPort());
+            try {
+                other.start();
+                // There is no sequencer, so the server drops the token request, which
+                // holds the only slot of the router until it times out.
+                CompletableFuture<TokenResponse> held = r.getClient(SequencerClient.class)
+                        .nextToken(Collections.emptySet(), 1);
+                CompletableFuture<Throwable> sent = new CompletableFuture<>();
+                other.getClient(BaseClient.class).ping().thenRun(() -> {
+                    try {
+                        r.getClient(SequencerClient.class).nextToken(Collections.emptySet(), 1);
+                        sent.complete(null);
+                    } catch (Throwable t) {
+                        sent.complete(t);
+                    }
+                });
+                // Had the event loop waited, the request would have been sent once the
+                // held one timed out.
+                assertThat(sent.get())
+                        .isInstanceOf(NetworkException.class);
+                assertThat(held.isDone())
+                        .isFalse();
+            } finally {
+                other.stop();
+            }
+        });
+    }
+
+    /**
+     * Compare the size and throughput of pings with compact headers with legacy headers.
+     */
+    @Test
+    public void compactHeadersShrinkSmallMessages() throws Exception {
+        assumeThroughputIsMeasurable();
+        final int num_threads = 8;
+        final int num_pings = 2000;
+        runWithBaseServer((r, d) -> {
+            for (HeaderFormat format : new HeaderFormat[]{HeaderFormat.COMPACT, HeaderFormat.LEGACY}) {
+                r.stop();
+                r.setHeaderFormat(format);
+                r.start();
+                BaseClient client = r.getClient(BaseClient.class);
+                pingConcurrently(client, num_threads, num_pings);
+                long startTime = System.currentTimeMillis();
+                pingConcurrently(client, num_threads, num_pings);
+                calculateRequestsPerSecond(format + "-OPS", num_threads * num_pings, startTime);
+                // The server replies in the format of the client.
+                assertThat(peerHeaderFormat(r))
+                        .isEqualTo(format);
+
+                CorfuMsg ping = new CorfuMsg(r.getClientID(), num_threads * num_pings, 0L,
+                        null, CorfuMsgType.PING);
+                ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+                if (format == HeaderFormat.COMPACT) {
+                    ping.serializeCompact(b, false);
+                } else {
+                    ping.serialize(b);
+                }
+                testStatus += ";" + format + "-PING-BYTES=" + b.readableBytes();
+                b.release();
+            }
+        });
+    }
+
+    /**
+     * Routers send the legacy header format by default, and only switch to the compact
+     * format once the server advertises support for it.
+     */
+    @Test
+    public void compactHeadersAreOnlySentToServersWhichSupportThem() throws Exception {
+        runWithBaseServer((r, d) -> {
+            assertThat(r.getHeaderFormat())
+                    .isEqualTo(HeaderFormat.LEGACY);
+            assertThat(r.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+            assertThat(peerHeaderFormat(r))
+                    .isEqualTo(HeaderFormat.LEGACY);
+
+            r.stop();
+            r.setHeaderFormat(HeaderFormat.COMPACT);
+            r.start();
+            assertThat(r.getClient(BaseClient.class).getVersionInfo().get().getHeaderFormats())
+                    .contains(HeaderFormat.COMPACT);
+            assertThat(r.getClient(BaseClient.class).pingSync())
+                    .isTrue();
+            assertThat(peerHeaderFormat(r))
+                    .isEqualTo(HeaderFormat.COMPACT);
+        });
+
+        runWithBaseServer((r, d) -> {
+            r.stop();
+            r.setHeaderFormat(HeaderFormat.COMPACT);
+            r.start();
+            assertThat(r.getClient(BaseClient.class).getVersionInfo().get().getHeaderFormats())
+                    .isNull();
+            assertThat(r.getClient(SequencerClient.class).nextToken(Collections.emptySet(), 1).get().getToken())
+                    .isEqualTo(0L);
+            assertThat(peerHeaderFormat(r))
+                    .isEqualTo(HeaderFormat.LEGACY);
+        }, new SequencerServer(new ServerContextBuilder().build()), new LegacyVersionServer());
+    }
+
+    /**
+     * Compare the throughput of pings to a server in the same JVM over local channels with
+     * pings over a socket.
+     */
+    @Test
+    public void localTransportSkipsTheSocket() throws Exception {
+        assumeThroughputIsMeasurable();
+        final int num_threads = 8;
+        final int num_pings = 2000;
+        runWithBaseServer((r, d) -> {
+            String name = "local-" + d.getPort();
+            Channel server = CorfuServer.bindLocal(name, d.getBossGroup(), d.getWorkerGroup(), d.getRouter())
+                    .sync().channel();
+            NettyClientRouter local = new NettyClientRouter(new LocalAddress(name));
+            try {
+                local.start();
+                assertThat(local.getChannels().get(0).getChannel().pipeline().get(LengthFieldPrepender.class))
+                        .isNull();
+                BaseClient localClient = local.getClient(BaseClient.class);
+                assertThat(localClient.pingSync())
+                        .isTrue();
+
+                BaseClient socketClient = r.getClient(BaseClient.class);
+                pingConcurrently(socketClient, num_threads, num_pings);
+                long startTime = System.currentTimeMillis();
+                pingConcurrently(socketClient, num_threads, num_pings);
+                calculateRequestsPerSecond("SOCKET-OPS", num_threads * num_pings, startTime);
+
+                pingConcurrently(localClient, num_threads, num_pings);
+                startTime = System.currentTimeMillis();
+                pingConcurrently(localClient, num_threads, num_pings);
+                calculateRequestsPerSecond("LOCAL-OPS", num_threads * num_pings, startTime);
+            } finally {
+                local.stop();
+                server.close().sync();
+            }
+        });
+    }
+
+    /**
+     * Compare the throughput of many concurrent small requests when the client consolidates
+     * its flushes with flushing every message.
+     */
+    @Test
+    public void concurrentRequestsShareFlushes() throws Exception {
+        assumeThroughputIsMeasurable();
+        final int num_threads = 8;
+        final int num_pings = 2000;
+        runWithBaseServer((r, d) -> {
+            BaseClient client = r.getClient(BaseClient.class);
+            NettyFlushConsolidator consolidator = r.getChannels().get(0).getChannel().pipeline()
+                    .get(NettyFlushConsolidator.class);
+            pingConcurrently(client, num_threads, num_pings);
+
+            long startTime = System.currentTimeMillis();
+            pingConcurrently(client, num_threads, num_pings);
+            calculateRequestsPerSecond("OPS", num_threads * num_pings, startTime);
+            assertThat(consolidator.getWrites())
+                    .isGreaterThanOrEqualTo(num_threads * num_pings);
+            assertThat(consolidator.getFlushes())
+                    .isLessThan(consolidator.getWrites());
+            testStatus += ";WRITES-PER-FLUSH=" + consolidator.getWrites() / consolidator.getFlushes();
+
+            // A threshold of one message flushes every write right away.
+            r.getChannels().get(0).getChannel().pipeline().replace(NettyFlushConsolidator.class, "unconsolidated",
+                    new NettyFlushConsolidator(1, 0));
+            startTime = System.currentTimeMillis();
+            pingConcurrently(client, num_threads, num_pings);
+            calculateRequestsPerSecond("UNCONSOLIDATED-OPS", num_threads * num_pings, startTime);
+        });
+    }
+
+    /**
+     * Compare the tail latency of token requests mixed with large reads when reads have their
+     * own channel with sharing one channel.
+     */
+    @Test
+    public void bulkReadsDoNotDelayTokenRequests() throws Exception {
+        final int entry_size = 4 * 1024 * 1024;
+        final int num_tokens = 500;
+        SequencerServer sequencer = new SequencerServer(new ServerContextBuilder().build());
+        // The entry must fit in the cache. The in-memory log keeps the cached buffer, so an
+        // eviction would free the data the log serves reads from.
+        LogUnitServer logUnit = new LogUnitServer(new ServerContextBuilder()
+                .setMaxCache(2 * entry_size)
+                .build());
+        runWithBaseServer((r, d) -> {
+            assertThat(r.getChannels())
+                    .extracting(NettyClientRouter.PooledChannel::getLane)
+                    .containsExactly(NettyClientRouter.Lane.LATENCY, NettyClientRouter.Lane.BULK);
+            ByteBuf entry = ByteBufAllocator.DEFAULT.buffer(entry_size);
+            entry.writeZero(entry_size);
+            assertThat(r.getClient(LogUnitClient.class)
+                    .write(0L, Collections.emptySet(), 0L, entry, Collections.emptyMap()).get())
+                    .isTrue();
+            entry.release();
+
+            // Warm up, then measure a router whose reads share the channel of the token requests.
+            tokenLatencyP99WithReads(r, num_tokens);
+            NettyClientRouter shared = new NettyClientRouter("localhost", d.getPort(), d.getTransport())
+                    .setChannels(1, 0);
+            shared.addClient(new SequencerClient());
+            shared.addClient(new LogUnitClient());
+            shared.start();
+            long sharedP99;
+            try {
+                sharedP99 = tokenLatencyP99WithReads(shared, num_tokens);
+            } finally {
+                shared.stop();
+            }
+
+            NettyFlushConsolidator latency = r.getChannels().get(0).getChannel().pipeline()
+                    .get(NettyFlushConsolidator.class);
+            NettyFlushConsolidator bulk = r.getChannels().get(1).getChannel().pipeline()
+                    .get(NettyFlushConsolidator.class);
+            long bulkWrites = bulk.getWrites();
+            long laneP99 = tokenLatencyP99WithReads(r, num_tokens);
+            // The reads went to the bulk channel, and the token requests to the latency channel.
+            assertThat(bulk.getWrites())
+                    .isGreaterThan(bulkWrites);
+            assertThat(latency.getWrites())
+                    .isGreaterThanOrEqualTo(num_tokens * 2);
+            testStatus += "P99-US=" + laneP99 + ";SHARED-P99-US=" + sharedP99;
+        }, sequencer, logUnit);
+    }
+
+    /**
+     * Request tokens one at a time while large reads are streamed on the same router.
+     *
+     * @return The 99th percentile latency of the token requests, in microseconds.
+     */
+    private long tokenLatencyP99WithReads(NettyClientRouter r, int num_tokens) throws Exception {
+        final int reads_outstanding = 4;
+        AtomicBoolean done = new AtomicBoolean(false);
+        Thread reader = new Thread(() -> {
+            List<CompletableFuture<ReadResponse>> reads = new ArrayList<>();
+            while (!done.get()) {
+                while (reads.size() < reads_outstanding) {
+                    reads.add(r.getClient(LogUnitClient.class).read(0L));
+                }
+                release(reads.remove(0).join());
+            }
+            reads.forEach(f -> release(f.join()));
+        });
+        reader.start();
+        long[] latencies = new long[num_tokens];
+        try {
+            for (int i = 0; i < num_tokens; i++) {
+                long start = System.nanoTime();
+                r.getClient(SequencerClient.class).nextToken(Collections.emptySet(), 1).get();
+                latencies[i] = (System.nanoTime() - start) / 1000;
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+        Arrays.sort(latencies);
+        return latencies[num_tokens * 99 / 100];
+    }
+
+    private void release(ReadResponse response) {
+        response.getReadSet().values().forEach(LogData::release);
+    }
+
+    private void pingConcurrently(BaseClient client, int num_threads, int num_pings) throws Exception {
+        scheduleConcurrently(num_threads, t -> {
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < num_pings; i++) {
+                futures.add(client.ping());
+            }
+            for (CompletableFuture<Boolean> f : futures) {
+                assertThat(f.get())
+                        .isTrue();
+            }
+        });
+        executeScheduled(num_threads, 30, TimeUnit.SECONDS);
+    }
+
+    void runWithBaseServer(NettyCommFunction actionFn, AbstractServer... servers)
+            throws Exception {
+        runWithBaseServer(NettyTransport.NIO, actionFn, servers);
+    }
+
+    void runWithBaseServer(NettyTransport transport, NettyCommFunction actionFn, AbstractServer... servers)
+            throws Exception {
+        runWithBaseServer(transport, Collections.emptyMap(), actionFn, servers);
+    }
+
+    void runWithBaseServer(NettyTransport transport, Map<String, Object> opts, NettyCommFunction actionFn,
+                           AbstractServer... servers)
             throws Exception {
 
-        NettyServerRouter nsr = new NettyServerRouter(new ImmutableMap.Builder<String, Object>().build());
-        nsr.addServer(new BaseServer());
         int port = findRandomOpenPort();
 
-        NettyServerData d = new NettyServerData(port);
-        NettyClientRouter ncr = new NettyClientRouter("localhost", port);
+        NettyServerData d = new NettyServerData(transport, opts, port, servers);
+        NettyClientRouter ncr = leakCheckTimeouts(new NettyClientRouter("localhost", port, transport));
         try {
             d.bootstrapServer();
             ncr.addClient(new BaseClient());
+            ncr.addClient(new SequencerClient());
+            ncr.addClient(new LogUnitClient());
             ncr.start();
             actionFn.runTest(ncr, d);
         } catch (Exception ex) {
@@ -107,6 +658,50 @@ public class NettyCommTest extends AbstractCorfuTest {
 
     }
 
+    /**
+     * Tracking every buffer makes the leak check too slow to measure the throughput of
+     * thousands of small requests, so those measurements are skipped when it is enabled.
+     */
+    private void assumeThroughputIsMeasurable() {
+        Assume.assumeFalse(BufferLeakDetector.ENABLED);
+    }
+
+    /**
+     * Tracking every buffer slows bursts of requests down past the default response timeout,
+     * so routers wait longer for responses when the leak check is enabled.
+     */
+    private NettyClientRouter leakCheckTimeouts(NettyClientRouter r) {
+        if (BufferLeakDetector.ENABLED) {
+            r.timeoutResponse = LEAK_CHECK_TIMEOUT_MILLIS;
+        }
+        return r;
+    }
+
+    /**
+     * Get the header format the server last replied in on the first channel of a router,
+     * which is the format the router sent.
+     */
+    private HeaderFormat peerHeaderFormat(NettyClientRouter r) {
+        return r.getChannels().get(0).getChannel().attr(NettyCorfuMessageDecoder.PEER_HEADER_FORMAT).get();
+    }
+
+    /**
+     * A base server which answers version requests like a server which predates the
+     * compact header format.
+     */
+    public static class LegacyVersionServer extends BaseServer {
+
+        @Override
+        public void handleMessage(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+            if (msg.getMsgType() == CorfuMsgType.VERSION_REQUEST) {
+                r.sendResponse(ctx, msg, new JSONPayloadMsg<>(ImmutableMap.of("upTime", 0L),
+                        CorfuMsgType.VERSION_RESPONSE));
+            } else {
+                super.handleMessage(msg, ctx, r);
+            }
+        }
+    }
+
     @FunctionalInterface
     public interface NettyCommFunction {
         void runTest(NettyClientRouter r, NettyServerData d) throws Exception;
@@ -117,16 +712,29 @@ public class NettyCommTest extends AbstractCorfuTest {
         ServerBootstrap b;
         ChannelFuture f;
         int port;
+        NettyTransport transport;
+        Map<String, Object> opts;
+        AtomicInteger blockingThreads = new AtomicInteger(0);
         EventLoopGroup bossGroup;
         EventLoopGroup workerGroup;
         EventExecutorGroup ee;
-        public NettyServerData(int port) {
+        AbstractServer[] servers;
+        NettyServerRouter router;
+        public NettyServerData(NettyTransport transport, Map<String, Object> opts, int port,
+                               AbstractServer... servers) {
+            this.transport = transport;
+            this.opts = opts;
             this.port = port;
+            this.servers = servers;
         }
 
         void bootstrapServer() throws Exception {
-            NettyServerRouter nsr = new NettyServerRouter(new ImmutableMap.Builder<String, Object>().build());
-            bossGroup = new NioEventLoopGroup(1, new ThreadFactory() {
+            NettyServerRouter nsr = new NettyServerRouter(opts);
+            router = nsr;
+            for (AbstractServer server : servers) {
+                nsr.addServer(server);
+            }
+            bossGroup = transport.newEventLoopGroup(1, new ThreadFactory() {
                 final AtomicInteger threadNum = new AtomicInteger(0);
 
                 @Override
@@ -137,7 +745,7 @@ public class NettyCommTest extends AbstractCorfuTest {
                 }
             });
 
-            workerGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
+            workerGroup = transport.newEventLoopGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
                 final AtomicInteger threadNum = new AtomicInteger(0);
 
                 @Override
@@ -150,19 +758,18 @@ public class NettyCommTest extends AbstractCorfuTest {
 
             ee = new DefaultEventExecutorGroup(Runtime.getRuntime().availableProcessors() * 2, new ThreadFactory() {
 
-                final AtomicInteger threadNum = new AtomicInteger(0);
-
                 @Override
                 public Thread newThread(Runnable r) {
                     Thread t = new Thread(r);
-                    t.setName("event-" + threadNum.getAndIncrement());
+                    t.setName("event-" + blockingThreads.getAndIncrement());
                     return t;
                 }
             });
+            nsr.setBlockingExecutors(ee);
 
             b = new ServerBootstrap();
             b.group(bossGroup, workerGroup)
-                    .channel(NioServerSocketChannel.class)
+                    .channel(transport.getServerChannelClass())
                     .option(ChannelOption.SO_BACKLOG, 100)
                     .childOption(ChannelOption.SO_KEEPALIVE, true)
                     .childOption(ChannelOption.SO_REUSEADDR, true)
@@ -172,11 +779,12 @@ public class NettyCommTest extends AbstractCorfuTest {
                     .childHandler(new ChannelInitializer<SocketChannel>() {
                         @Override
                         public void initChannel(io.netty.channel.socket.SocketChannel ch) throws Exception {
+                            ch.pipeline().addLast(new NettyFlushConsolidator());
                             ch.pipeline().addLast(new LengthFieldPrepender(4));
                             ch.pipeline().addLast(new LengthFieldBasedFrameDecoder(Integer.MAX_VALUE, 0, 4, 0, 4));
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageDecoder());
-                            ch.pipeline().addLast(ee, new NettyCorfuMessageEncoder());
-                            ch.pipeline().addLast(ee, nsr);
+                            ch.pipeline().addLast(new NettyCorfuMessageDecoder());
+                            ch.pipeline().addLast(new NettyCorfuMessageEncoder());
+                            ch.pipeline().addLast(nsr);
                         }
                     });
             f = b.bind(port).sync();
@@ -186,6 +794,7 @@ public class NettyCommTest extends AbstractCorfuTest {
             f.channel().close().awaitUninterruptibly();
             bossGroup.shutdownGracefully();
             workerGroup.shutdownGracefully();
+            ee.shutdownGracefully();
         }
 
     }
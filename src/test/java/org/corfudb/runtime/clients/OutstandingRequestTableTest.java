@@ -0,0 +1,102 @@
+package org.corfudb.runtime.clients;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class OutstandingRequestTableTest extends AbstractCorfuTest {
+
+    @Test
+    public void addedRequestsCanBeFoundAndRemoved() {
+        OutstandingRequestTable table = new OutstandingRequestTable(4);
+        AtomicLong requestID = new AtomicLong();
+        OutstandingRequestTable.Request<Void> r = new OutstandingRequestTable.Request<>();
+
+        assertThat(table.add(r, requestID))
+                .isTrue();
+        assertThat(r.getRequestID())
+                .isEqualTo(0L);
+        assertThat(table.get(0L))
+                .isSameAs(r);
+        // A request ID which maps to the same slot is not found.
+        assertThat(table.get(4L))
+                .isNull();
+        assertThat(table.remove(r))
+                .isTrue();
+        assertThat(table.remove(r))
+                .isFalse();
+        assertThat(table.get(0L))
+                .isNull();
+        assertThat(table.isEmpty())
+                .isTrue();
+    }
+
+    @Test
+    public void capacityIsRoundedUpToAPowerOfTwo() {
+        assertThat(new OutstandingRequestTable(1).capacity())
+                .isEqualTo(1);
+        assertThat(new OutstandingRequestTable(5).capacity())
+                .isEqualTo(8);
+        assertThat(new OutstandingRequestTable(8).capacity())
+                .isEqualTo(8);
+    }
+
+    @Test
+    public void fullTableRefusesRequests() {
+        OutstandingRequestTable table = new OutstandingRequestTable(4);
+        AtomicLong requestID = new AtomicLong();
+        List<OutstandingRequestTable.Request<Void>> requests = new ArrayList<>();
+        for (int i = 0; i < table.capacity(); i++) {
+            OutstandingRequestTable.Request<Void> r = new OutstandingRequestTable.Request<>();
+            assertThat(table.add(r, requestID))
+                    .isTrue();
+            requests.add(r);
+        }
+        assertThat(table.add(new OutstandingRequestTable.Request<>(), requestID))
+                .isFalse();
+        assertThat(table.size())
+                .isEqualTo(table.capacity());
+
+        table.remove(requests.get(2));
+        assertThat(table.add(new OutstandingRequestTable.Request<>(), requestID))
+                .isTrue();
+    }
+
+    @Test
+    public void occupiedSlotsAreSkipped() {
+        OutstandingRequestTable table = new OutstandingRequestTable(4);
+        AtomicLong requestID = new AtomicLong();
+        OutstandingRequestTable.Request<Void> slow = new OutstandingRequestTable.Request<>();
+        table.add(slow, requestID);
+        for (int i = 1; i < table.capacity(); i++) {
+            OutstandingRequestTable.Request<Void> r = new OutstandingRequestTable.Request<>();
+            table.add(r, requestID);
+            table.remove(r);
+        }
+        // Request ID 4 maps to the slot of the slow request, so it is skipped.
+        OutstandingRequestTable.Request<Void> r = new OutstandingRequestTable.Request<>();
+        assertThat(table.add(r, requestID))
+                .isTrue();
+        assertThat(r.getRequestID())
+                .isEqualTo(5L);
+        assertThat(table.get(0L))
+                .isSameAs(slow);
+    }
+
+    @Test
+    public void forEachVisitsOutstandingRequests() {
+        OutstandingRequestTable table = new OutstandingRequestTable(8);
+        AtomicLong requestID = new AtomicLong();
+        for (int i = 0; i < 3; i++) {
+            table.add(new OutstandingRequestTable.Request<>(), requestID);
+        }
+        table.forEach(table::remove);
+        assertThat(table.isEmpty())
+                .isTrue();
+    }
+}
@@ -3,11 +3,19 @@ package org.corfudb.runtime.clients;
 import com.google.common.collect.ImmutableSet;
 import org.corfudb.infrastructure.AbstractServer;
 import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.protocols.wireprotocol.TokenRequest;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -78,4 +86,46 @@ public class SequencerClientTest extends AbstractClientTest {
         assertThat(tokenA3)
                 .isEqualTo(tokenA2);
     }
+
+    @Test
+    public void multiTokenRequestsWork()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        List<TokenResponse> responses = client.nextTokens(Arrays.asList(
+                new TokenRequest(1L, Collections.singleton(streamA), false, false),
+                new TokenRequest(2L, Collections.emptySet(), false, false),
+                new TokenRequest(1L, Collections.singleton(streamA), false, false))).get();
+        assertThat(responses)
+                .extracting(TokenResponse::getToken)
+                .containsExactly(0L, 1L, 3L);
+        assertThat(responses.get(2).getBackpointerMap())
+                .containsEntry(streamA, 0L);
+    }
+
+    @Test
+    public void combinedRequestsGetTheirOwnTokens()
+            throws Exception {
+        final int num_threads = 8;
+        final int num_requests = 100;
+        Map<Long, Integer> tokens = new ConcurrentHashMap<>();
+        scheduleConcurrently(num_threads, threadNumber -> {
+            UUID stream = new UUID(0L, threadNumber);
+            long last = -1L;
+            for (int i = 0; i < num_requests; i++) {
+                TokenResponse tr = client.nextTokenCombined(
+                        new TokenRequest(1L, Collections.singleton(stream), false, false),
+                        Duration.ofMillis(1)).get();
+                assertThat(tr.getBackpointerMap())
+                        .containsEntry(stream, last);
+                assertThat(tr.getStreamAddresses())
+                        .containsEntry(stream, (long) i);
+                assertThat(tokens.put(tr.getToken(), threadNumber))
+                        .isNull();
+                last = tr.getToken();
+            }
+        });
+        executeScheduled(num_threads, 30, TimeUnit.SECONDS);
+        assertThat(tokens)
+                .hasSize(num_threads * num_requests);
+    }
 }
@@ -67,6 +67,13 @@ public class TestClientRouter implements IClientRouter {
     @Setter
     public String address;
 
+    /**
+     * The allocator of the buffers clients of this router send.
+     */
+    @Getter
+    @Setter
+    public ByteBufAllocator allocator = ByteBufAllocator.DEFAULT;
+
     /** The server router endpoint this client should route to. */
     TestServerRouter serverRouter;
 
@@ -163,6 +170,7 @@ public class TestClientRouter implements IClientRouter {
                 log.trace("Sent message: {}", message);
                 routeMessage(message);
         }
+        message.release();
         // Generate a timeout future, which will complete exceptionally if the main future is not completed.
         final CompletableFuture<T> cfTimeout = CFUtils.within(cf, Duration.ofMillis(5000));
         cfTimeout.exceptionally(e -> {
@@ -192,6 +200,7 @@ public class TestClientRouter implements IClientRouter {
             // Write the message out to the channel.
                 routeMessage(message);
         }
+        message.release();
     }
 
     /**
@@ -294,7 +303,9 @@ public class TestClientRouter implements IClientRouter {
         ByteBuf oBuf = ByteBufAllocator.DEFAULT.buffer();
         message.serialize(oBuf);
         oBuf.resetReaderIndex();
-        return CorfuMsg.deserialize(oBuf);
+        CorfuMsg msgOut = CorfuMsg.deserialize(oBuf);
+        oBuf.release();
+        return msgOut;
     }
 
 }
@@ -333,6 +333,55 @@ public class SMRMapTest extends AbstractViewTest {
                 .isInstanceOf(TransactionAbortedException.class);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void transactionsOnDisjointKeysDoNotConflict()
+            throws Exception {
+        Map<String, String> testMap = getRuntime().getObjectsView()
+                .open(CorfuRuntime.getStreamID("A"), SMRMap.class);
+        testMap.put("a", "z");
+        getRuntime().getObjectsView().TXBegin();
+        assertThat(testMap.put("a", "a"))
+                .isEqualTo("z");
+        CompletableFuture.runAsync(() -> {
+            try {
+                getRuntime().getObjectsView().TXBegin();
+                testMap.put("b", "b");
+                getRuntime().getObjectsView().TXEnd();
+            } catch (TransactionAbortedException tae) {
+                throw new RuntimeException(tae);
+            }
+        }).join();
+        getRuntime().getObjectsView().TXEnd();
+        assertThat(testMap)
+                .containsEntry("a", "a")
+                .containsEntry("b", "b");
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void transactionsOnTheSameKeyConflict()
+            throws Exception {
+        Map<String, String> testMap = getRuntime().getObjectsView()
+                .open(CorfuRuntime.getStreamID("A"), SMRMap.class);
+        testMap.put("a", "z");
+        getRuntime().getObjectsView().TXBegin();
+        assertThat(testMap.get("a"))
+                .isEqualTo("z");
+        testMap.put("b", "b");
+        CompletableFuture.runAsync(() -> {
+            try {
+                getRuntime().getObjectsView().TXBegin();
+                testMap.put("a", "a");
+                getRuntime().getObjectsView().TXEnd();
+            } catch (TransactionAbortedException tae) {
+                throw new RuntimeException(tae);
+            }
+        }).join();
+        assertThatThrownBy(() -> getRuntime().getObjectsView().TXEnd())
+                .isInstanceOf(TransactionAbortedException.class);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void smrMapCanContainCustomObjects()
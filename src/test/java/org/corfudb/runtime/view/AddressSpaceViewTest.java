@@ -40,6 +40,25 @@ public class AddressSpaceViewTest extends AbstractViewTest {
                 .isEqualTo(DataType.HOLE);
     }
 
+    @Test
+    public void readersKeepEntriesTheCacheDropped()
+            throws Exception {
+        getDefaultRuntime().setCacheDisabled(false).connect();
+
+        byte[] testPayload = "hello world".getBytes();
+        getRuntime().getAddressSpaceView().write(0, Collections.emptySet(),
+                testPayload, Collections.emptyMap(), Collections.emptyMap());
+        LogData entry = getRuntime().getAddressSpaceView().read(0L);
+
+        // The cache frees the data of the entries it drops, while the reader still holds one.
+        getRuntime().getAddressSpaceView().resetCaches();
+        while (entry.getData().refCnt() > 0) {
+            Thread.sleep(1);
+        }
+        assertThat(entry.getPayload(getRuntime()))
+                .isEqualTo(testPayload);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void ensureStripingWorks()
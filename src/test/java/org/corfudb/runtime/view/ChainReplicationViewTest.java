@@ -1,6 +1,9 @@
 package org.corfudb.runtime.view;
 
 import com.google.common.collect.ImmutableList;
+import io.netty.buffer.AbstractByteBufAllocator;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
 import lombok.Getter;
 import org.corfudb.infrastructure.LayoutServer;
 import org.corfudb.infrastructure.LogUnitServer;
@@ -9,7 +12,9 @@ import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -157,4 +162,62 @@ public class ChainReplicationViewTest extends AbstractViewTest {
         assertThat(getLogUnit(9002))
                 .matchesDataAtAddress(0, testPayload);
     }
+
+    @Test
+    public void chainWritesAreSerializedOnce()
+            throws Exception {
+        addServer(9000);
+        addServer(9001);
+        addServer(9002);
+
+        bootstrapAllServers(new TestLayoutBuilder()
+                .addLayoutServer(9000)
+                .addSequencer(9000)
+                .buildSegment()
+                    .setReplicationMode(Layout.ReplicationMode.CHAIN_REPLICATION)
+                    .buildStripe()
+                        .addLogUnit(9000)
+                        .addLogUnit(9001)
+                        .addLogUnit(9002)
+                    .addToSegment()
+                .addToLayout()
+                .build());
+
+        List<ByteBuf> allocated = new ArrayList<>();
+        CorfuRuntime r = getRuntime().setAllocator(new AbstractByteBufAllocator(false) {
+            @Override
+            protected ByteBuf newHeapBuffer(int initialCapacity, int maxCapacity) {
+                ByteBuf b = Unpooled.buffer(initialCapacity, maxCapacity);
+                allocated.add(b);
+                return b;
+            }
+
+            @Override
+            protected ByteBuf newDirectBuffer(int initialCapacity, int maxCapacity) {
+                return newHeapBuffer(initialCapacity, maxCapacity);
+            }
+
+            @Override
+            public boolean isDirectBufferPooled() {
+                return false;
+            }
+        }).connect();
+        byte[] testPayload = "hello world".getBytes();
+
+        allocated.clear();
+        r.getAddressSpaceView().write(0, Collections.emptySet(),
+                testPayload, Collections.emptyMap(), Collections.emptyMap());
+
+        // One buffer is shared by every unit of the chain and the read cache.
+        assertThat(allocated)
+                .hasSize(1);
+        assertThat(r.getAddressSpaceView().read(0L).getPayload(r))
+                .isEqualTo(testPayload);
+        assertThat(getLogUnit(9000))
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(getLogUnit(9001))
+                .matchesDataAtAddress(0, testPayload);
+        assertThat(getLogUnit(9002))
+                .matchesDataAtAddress(0, testPayload);
+    }
 }
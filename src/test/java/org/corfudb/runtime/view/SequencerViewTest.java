@@ -1,11 +1,28 @@
 package org.corfudb.runtime.view;
 
 import lombok.Getter;
+import org.corfudb.infrastructure.ServerContext;
+import org.corfudb.infrastructure.ServerContextBuilder;
+import org.corfudb.infrastructure.TestLayoutBuilder;
+import org.corfudb.infrastructure.TestServerRouter;
+import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.CorfuPayloadMsg;
+import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.TokenRequest;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.TestRule;
 import org.junit.Test;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -79,4 +96,279 @@ public class SequencerViewTest extends AbstractViewTest {
         assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
                 .containsEntry(streamB, 1L);
     }
+
+    @Test
+    public void leasedTokensAreHandedOutLocally() {
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("stream B".getBytes());
+        AtomicInteger tokenRequests = new AtomicInteger();
+        addClientRule(new TestRule().matches(m -> {
+            if (m.getMsgType() == CorfuMsgType.TOKEN_REQ) {
+                tokenRequests.incrementAndGet();
+            }
+            return false;
+        }));
+
+        r.getSequencerView().enableTokenLease(streamA, 10, Duration.ofMinutes(1));
+        for (long i = 0; i < 10; i++) {
+            TokenResponse tr = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+            assertThat(tr.getToken())
+                    .isEqualTo(i);
+            assertThat(tr.getBackpointerMap())
+                    .containsEntry(streamA, i - 1);
+            assertThat(tr.getStreamAddresses())
+                    .containsEntry(streamA, i);
+        }
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                .isEqualTo(9L);
+        assertThat(tokenRequests.get())
+                .isEqualTo(1);
+
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                .isEqualTo(10L);
+    }
+
+    @Test
+    public void expiredLeaseTokensAreHoleFilled()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+
+        r.getSequencerView().enableTokenLease(streamA, 10, Duration.ofMillis(50));
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(1L);
+
+        // The rest of the block is released once the lease expires.
+        for (int i = 0; i < 100 && r.getAddressSpaceView().fetch(9L).getType() != DataType.HOLE; i++) {
+            Thread.sleep(50);
+        }
+        for (long address = 2; address < 10; address++) {
+            assertThat(r.getAddressSpaceView().fetch(address).getType())
+                    .isEqualTo(DataType.HOLE);
+        }
+
+        TokenResponse tr = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(tr.getToken())
+                .isEqualTo(10L);
+        assertThat(tr.getStreamAddresses())
+                .containsEntry(streamA, 10L);
+
+        r.getSequencerView().disableTokenLease(streamA);
+        assertThat(r.getAddressSpaceView().fetch(19L).getType())
+                .isEqualTo(DataType.HOLE);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(20L);
+    }
+
+    @Test
+    public void concurrentRequestsAreCombined()
+            throws Exception {
+        final int num_threads = 8;
+        final int num_requests = 200;
+        CorfuRuntime r = getDefaultRuntime().setTokenCombineWindow(Duration.ofMillis(1));
+        AtomicInteger sequencerMessages = new AtomicInteger();
+        addClientRule(new TestRule().matches(m -> {
+            if (m.getMsgType() == CorfuMsgType.TOKEN_REQ || m.getMsgType() == CorfuMsgType.TOKEN_MULTI_REQ) {
+                sequencerMessages.incrementAndGet();
+            }
+            return false;
+        }));
+
+        Set<Long> tokens = ConcurrentHashMap.newKeySet();
+        scheduleConcurrently(num_threads, threadNumber -> {
+            UUID stream = new UUID(0L, threadNumber);
+            for (int i = 0; i < num_requests; i++) {
+                TokenResponse tr = r.getSequencerView().nextToken(Collections.singleton(stream), 1);
+                assertThat(tr.getStreamAddresses())
+                        .containsEntry(stream, (long) i);
+                tokens.add(tr.getToken());
+            }
+        });
+        long startTime = System.currentTimeMillis();
+        executeScheduled(num_threads, 30, TimeUnit.SECONDS);
+        calculateRequestsPerSecond("TPS", num_threads * num_requests, startTime);
+        testStatus += ";MSGS=" + sequencerMessages.get();
+
+        assertThat(tokens)
+                .hasSize(num_threads * num_requests);
+        assertThat(sequencerMessages.get())
+                .isLessThan(num_threads * num_requests / 2);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void streamTailsArePushedToSubscribers()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime().setStreamTailRefresh(Duration.ofMinutes(1));
+        CorfuRuntime writer = new CorfuRuntime(getDefaultEndpoint()).connect();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        AtomicInteger queries = new AtomicInteger();
+        AtomicInteger subscriptions = new AtomicInteger();
+        addClientRule(new TestRule().matches(m -> {
+            if (m.getMsgType() == CorfuMsgType.TOKEN_REQ
+                    && ((CorfuPayloadMsg<TokenRequest>) m).getPayload().getNumTokens() == 0) {
+                queries.incrementAndGet();
+            } else if (m.getMsgType() == CorfuMsgType.STREAM_SUBSCRIBE) {
+                subscriptions.incrementAndGet();
+            }
+            return false;
+        }));
+
+        assertThat(r.getSequencerView().getStreamTail(streamA))
+                .isEqualTo(-1L);
+        long token = writer.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken();
+        assertThat(r.getSequencerView().awaitStreamTail(streamA, -1L, Duration.ofSeconds(10)))
+                .isEqualTo(token);
+        assertThat(r.getSequencerView().getStreamTail(streamA))
+                .isEqualTo(token);
+
+        // Tokens issued to the subscriber itself are visible right away.
+        long own = r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken();
+        assertThat(r.getSequencerView().getStreamTail(streamA))
+                .isEqualTo(own);
+
+        assertThat(queries.get())
+                .isEqualTo(0);
+        assertThat(subscriptions.get())
+                .isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void partitionedSequencerIssuesTokensPerPartition()
+            throws Exception {
+        addServer(9000, partitionContext(9000, 0));
+        addServer(9001, partitionContext(9001, 1));
+        Layout layout = new TestLayoutBuilder()
+                .addLayoutServer(9000)
+                .addSequencer(9000)
+                .addSequencer(9001)
+                .buildSegment()
+                    .buildStripe()
+                        .addLogUnit(9000)
+                    .addToSegment()
+                .addToLayout()
+                .build();
+        layout.setPartitionedSequencer(true);
+        bootstrapAllServers(layout);
+        CorfuRuntime r = getRuntime().connect();
+
+        UUID streamA = streamInPartition(r, 0);
+        UUID streamB = streamInPartition(r, 1);
+
+        // Each partition issues addresses from its own blocks.
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                .isEqualTo(PARTITION_TOKEN_BLOCK);
+        assertThat(r.getSequencerView().nextToken(Collections.emptySet(), 0).getToken())
+                .isEqualTo(PARTITION_TOKEN_BLOCK);
+
+        // A request across partitions is issued after the tails of both streams.
+        TokenResponse both = r.getSequencerView().nextToken(new HashSet<>(Arrays.asList(streamA, streamB)), 1);
+        assertThat(both.getToken())
+                .isGreaterThan(PARTITION_TOKEN_BLOCK);
+        assertThat(both.getBackpointerMap())
+                .containsEntry(streamA, 0L)
+                .containsEntry(streamB, PARTITION_TOKEN_BLOCK);
+        assertThat(both.getStreamAddresses())
+                .containsEntry(streamA, 1L)
+                .containsEntry(streamB, 1L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getBackpointerMap())
+                .containsEntry(streamA, both.getToken());
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
+                .containsEntry(streamB, both.getToken());
+
+        // Entries written across partitions are read from both streams.
+        r.getStreamsView().write(new HashSet<>(Arrays.asList(streamA, streamB)), "hello".getBytes());
+        assertThat(r.getStreamsView().get(streamA).read().getPayload(r))
+                .isEqualTo("hello".getBytes());
+        assertThat(r.getStreamsView().get(streamB).read().getPayload(r))
+                .isEqualTo("hello".getBytes());
+
+        // Tokens stay unique across partitions.
+        Set<Long> tokens = ConcurrentHashMap.newKeySet();
+        scheduleConcurrently(4, threadNumber -> {
+            for (int i = 0; i < 100; i++) {
+                Set<UUID> streams = threadNumber % 2 == 0 ? Collections.singleton(threadNumber == 0 ? streamA : streamB)
+                        : new HashSet<>(Arrays.asList(streamA, streamB));
+                assertThat(tokens.add(r.getSequencerView().nextToken(streams, 1).getToken()))
+                        .isTrue();
+            }
+        });
+        executeScheduled(4, 30, TimeUnit.SECONDS);
+        assertThat(tokens)
+                .hasSize(400);
+    }
+
+    @Test
+    public void partitionedSequencerReleasesRejectedRequests()
+            throws Exception {
+        addServer(9000, partitionContext(9000, 0));
+        addServer(9001, partitionContext(9001, 1));
+        Layout layout = new TestLayoutBuilder()
+                .addLayoutServer(9000)
+                .addSequencer(9000)
+                .addSequencer(9001)
+                .buildSegment()
+                    .buildStripe()
+                        .addLogUnit(9000)
+                    .addToSegment()
+                .addToLayout()
+                .build();
+        layout.setPartitionedSequencer(true);
+        bootstrapAllServers(layout);
+        CorfuRuntime r = getRuntime().connect();
+
+        UUID streamA = streamInPartition(r, 0);
+        UUID streamB = streamInPartition(r, 1);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                .isEqualTo(PARTITION_TOKEN_BLOCK);
+
+        // No partition issues an address at or below a tail once it was read.
+        assertThat(r.getSequencerView().getStreamTail(streamB))
+                .isEqualTo(PARTITION_TOKEN_BLOCK);
+        TokenResponse afterTail = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(afterTail.getToken())
+                .isGreaterThan(PARTITION_TOKEN_BLOCK);
+
+        // The transaction conflicts on the second partition, which releases the first.
+        assertThat(r.getSequencerView().nextToken(new HashSet<>(Arrays.asList(streamA, streamB)), 1,
+                false, false, true, afterTail.getToken() - 1).getToken())
+                .isEqualTo(-1L);
+        assertThat(r.getSequencerView().getStreamTail(streamA))
+                .isEqualTo(afterTail.getToken());
+        TokenResponse next = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, afterTail.getToken());
+        assertThat(next.getStreamAddresses())
+                .containsEntry(streamA, 2L);
+    }
+
+    private static final long PARTITION_TOKEN_BLOCK = 10L;
+
+    private ServerContext partitionContext(int port, int partition) {
+        return new ServerContextBuilder()
+                .setSingle(false)
+                .setServerRouter(new TestServerRouter())
+                .setPort(port)
+                .setSequencerPartition(partition)
+                .setSequencerPartitions(2)
+                .setTokenBlock(PARTITION_TOKEN_BLOCK)
+                .build();
+    }
+
+    private static UUID streamInPartition(CorfuRuntime r, int partition) {
+        for (int i = 0; ; i++) {
+            UUID id = UUID.nameUUIDFromBytes(("stream " + i).getBytes());
+            if (r.getLayoutView().getLayout().getSequencerPartition(id) == partition) {
+                return id;
+            }
+        }
+    }
 }
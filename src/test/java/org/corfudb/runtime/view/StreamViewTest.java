@@ -8,6 +8,7 @@ import org.corfudb.runtime.clients.SequencerClient;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.util.Collections;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -46,6 +47,49 @@ public class StreamViewTest extends AbstractViewTest {
                 .isEqualTo(null);
     }
 
+    @Test
+    @SuppressWarnings("unchecked")
+    public void readWaitsForTailNotifications()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        r.setStreamTailRefresh(Duration.ofMinutes(1));
+        CorfuRuntime writer = new CorfuRuntime(getDefaultEndpoint()).connect();
+
+        StreamView sv = r.getStreamsView().get(streamA);
+        assertThat(sv.read(Duration.ofMillis(10)))
+                .isEqualTo(null);
+
+        scheduleConcurrently(1, t -> {
+            Thread.sleep(50);
+            writer.getStreamsView().get(streamA).write("hello world".getBytes());
+        });
+        scheduleConcurrently(1, t -> assertThat(sv.read(Duration.ofSeconds(10)).getPayload(r))
+                .isEqualTo("hello world".getBytes()));
+        executeScheduled(2, 30, TimeUnit.SECONDS);
+
+        assertThat(sv.read())
+                .isEqualTo(null);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void canReadWriteFromLeasedStream()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        r.getSequencerView().enableTokenLease(streamA, 4, Duration.ofMinutes(1));
+
+        StreamView sv = r.getStreamsView().get(streamA);
+        for (int i = 0; i < 10; i++) {
+            sv.write(("hello " + i).getBytes());
+        }
+        for (int i = 0; i < 10; i++) {
+            assertThat(sv.read().getPayload(getRuntime()))
+                    .isEqualTo(("hello " + i).getBytes());
+        }
+        assertThat(sv.read())
+                .isEqualTo(null);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void canReadWriteFromStreamConcurrent()
@@ -0,0 +1,198 @@
+package org.corfudb.util;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ConcurrentUuidLongMapTest extends AbstractCorfuTest {
+
+    @Test
+    public void putAndGet() {
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap();
+        UUID a = UUID.randomUUID();
+        UUID nil = new UUID(0L, 0L);
+
+        assertThat(map.getOrDefault(a, -1L))
+                .isEqualTo(-1L);
+        map.put(a, 5L);
+        map.put(nil, 0L);
+        assertThat(map.getOrDefault(a, -1L))
+                .isEqualTo(5L);
+        assertThat(map.getOrDefault(nil, -1L))
+                .isEqualTo(0L);
+        map.put(a, 7L);
+        assertThat(map.getOrDefault(a, -1L))
+                .isEqualTo(7L);
+        assertThat(map.size())
+                .isEqualTo(2);
+    }
+
+    @Test
+    public void mergeAppliesFunction() {
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap();
+        UUID a = UUID.randomUUID();
+
+        assertThat(map.merge(a, 10L, Math::max))
+                .isEqualTo(10L);
+        assertThat(map.merge(a, 3L, Math::max))
+                .isEqualTo(10L);
+        assertThat(map.merge(a, 3L, Long::sum))
+                .isEqualTo(13L);
+    }
+
+    @Test
+    public void removedKeysCanBeReinserted() {
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap(1);
+        UUID[] keys = new UUID[100];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = UUID.randomUUID();
+            map.put(keys[i], i);
+        }
+        for (int i = 0; i < keys.length; i += 2) {
+            assertThat(map.remove(keys[i]))
+                    .isTrue();
+        }
+        assertThat(map.remove(keys[0]))
+                .isFalse();
+        assertThat(map.size())
+                .isEqualTo(keys.length / 2);
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(map.containsKey(keys[i]))
+                    .isEqualTo(i % 2 == 1);
+        }
+        map.put(keys[0], 42L);
+        assertThat(map.getOrDefault(keys[0], -1L))
+                .isEqualTo(42L);
+
+        Map<UUID, Long> entries = new HashMap<>();
+        map.forEach(entries::put);
+        assertThat(entries)
+                .hasSize(keys.length / 2 + 1)
+                .containsEntry(keys[0], 42L)
+                .containsEntry(keys[1], 1L);
+    }
+
+    @Test
+    public void shrinkKeepsLiveEntries() {
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap(1);
+        UUID[] keys = new UUID[1000];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = UUID.randomUUID();
+            map.put(keys[i], i);
+        }
+        for (int i = 10; i < keys.length; i++) {
+            map.remove(keys[i]);
+        }
+        map.shrink();
+        assertThat(map.size())
+                .isEqualTo(10);
+        for (int i = 0; i < keys.length; i++) {
+            assertThat(map.getOrDefault(keys[i], -1L))
+                    .isEqualTo(i < 10 ? i : -1L);
+        }
+        // The shrunk map still grows.
+        for (int i = 10; i < keys.length; i++) {
+            map.put(keys[i], i);
+        }
+        assertThat(map.size())
+                .isEqualTo(keys.length);
+    }
+
+    @Test
+    public void reservedValuesAreRejected() {
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap();
+        assertThatThrownBy(() -> map.put(UUID.randomUUID(), Long.MIN_VALUE))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> map.put(UUID.randomUUID(), Long.MIN_VALUE + 1))
+                .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void concurrentWritersAndReaders()
+            throws Exception {
+        final int num_threads = 8;
+        final int num_records = 10000;
+        ConcurrentUuidLongMap map = new ConcurrentUuidLongMap(4);
+
+        scheduleConcurrently(num_threads, threadNumber -> {
+            for (int i = 0; i < num_records; i++) {
+                UUID key = new UUID(threadNumber, i);
+                map.put(key, i);
+                assertThat(map.getOrDefault(key, -1L))
+                        .isEqualTo(i);
+                // Readers of keys written by other threads see either nothing or the value.
+                long other = map.getOrDefault(new UUID((threadNumber + 1) % num_threads, i), -1L);
+                assertThat(other == -1L || other == i)
+                        .isTrue();
+            }
+        });
+        executeScheduled(num_threads, 30, TimeUnit.SECONDS);
+
+        assertThat(map.size())
+                .isEqualTo(num_threads * num_records);
+        for (int t = 0; t < num_threads; t++) {
+            for (int i = 0; i < num_records; i++) {
+                assertThat(map.getOrDefault(new UUID(t, i), -1L))
+                        .isEqualTo(i);
+            }
+        }
+    }
+
+    /**
+     * Compare the bytes allocated and the update rate of this map with the
+     * ConcurrentHashMap it replaces in the sequencer.
+     */
+    @Test
+    public void memoryAndThroughputComparedToConcurrentHashMap() {
+        final int num_streams = 200000;
+        UUID[] keys = new UUID[num_streams];
+        for (int i = 0; i < num_streams; i++) {
+            keys[i] = UUID.randomUUID();
+        }
+
+        long before = allocatedBytes();
+        ConcurrentHashMap<UUID, Long> boxed = new ConcurrentHashMap<>();
+        long startTime = System.currentTimeMillis();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < num_streams; i++) {
+                // Copy the key, as each stream in a request is deserialized into a new UUID.
+                boxed.merge(new UUID(keys[i].getMostSignificantBits(), keys[i].getLeastSignificantBits()),
+                        (long) round * num_streams + i, Math::max);
+            }
+        }
+        calculateRequestsPerSecond("CHM-OPS", num_streams * 5, startTime);
+        long boxedBytes = allocatedBytes() - before;
+        assertThat(boxed)
+                .hasSize(num_streams);
+
+        before = allocatedBytes();
+        ConcurrentUuidLongMap primitive = new ConcurrentUuidLongMap();
+        startTime = System.currentTimeMillis();
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < num_streams; i++) {
+                primitive.merge(keys[i], (long) round * num_streams + i, Math::max);
+            }
+        }
+        calculateRequestsPerSecond("OPS", num_streams * 5, startTime);
+        long primitiveBytes = allocatedBytes() - before;
+        assertThat(primitive.size())
+                .isEqualTo(num_streams);
+
+        testStatus += ";CHM-ALLOC-MB=" + boxedBytes / (1024 * 1024)
+                + ";ALLOC-MB=" + primitiveBytes / (1024 * 1024);
+    }
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}